@@ -0,0 +1,154 @@
+import java.util.Arrays;
+
+/**
+ * Red Black Tree that keeps its nodes in parallel arrays instead of node
+ * objects. A node is an index into int arrays for its left, right and parent
+ * links and its packed color and height, and into object arrays for its key and
+ * value. That is 24 bytes per entry with compressed oops, against about 48 for a
+ * BALST node, and neighboring slots sit next to each other in memory.
+ *
+ * Removed slots are reused by later inserts, and the arrays grow by half when
+ * they run out of slots. They never shrink.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class ArrayBALST<K extends Comparable<K>, V> extends IndexedBALST<K, V> {
+
+	private static final int DEFAULT_CAPACITY = 16; // keys held before the first growth
+
+	// index i of each array belongs to the node in slot i
+	private int[] lefts;
+	private int[] rights;
+	private int[] parents;
+	private int[] meta;
+	private Object[] keys;
+	private Object[] values;
+
+	/**
+	 * Constructor for the tree
+	 */
+	public ArrayBALST() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor for a tree with room for the given number of keys before the
+	 * arrays have to grow
+	 *
+	 * @param initialCapacity number of keys to make room for
+	 * @throws IllegalArgumentException if initialCapacity is negative
+	 */
+	public ArrayBALST(int initialCapacity) {
+		if (initialCapacity < 0 || initialCapacity == Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("illegal capacity " + initialCapacity);
+		}
+		int slots = initialCapacity + 1; // slot 0 is never used
+		lefts = new int[slots];
+		rights = new int[slots];
+		parents = new int[slots];
+		meta = new int[slots];
+		keys = new Object[slots];
+		values = new Object[slots];
+	}
+
+	/**
+	 * Returns the number of keys the tree can hold before its arrays grow
+	 *
+	 * @return number of slots, not counting slot 0
+	 */
+	public int capacity() {
+		return lefts.length - 1;
+	}
+
+	@Override
+	int left(int node) {
+		return lefts[node];
+	}
+
+	@Override
+	int right(int node) {
+		return rights[node];
+	}
+
+	@Override
+	int parent(int node) {
+		return parents[node];
+	}
+
+	@Override
+	int meta(int node) {
+		return meta[node];
+	}
+
+	@Override
+	void setLeft(int node, int child) {
+		lefts[node] = child;
+	}
+
+	@Override
+	void setRight(int node, int child) {
+		rights[node] = child;
+	}
+
+	@Override
+	void setParent(int node, int parent) {
+		parents[node] = parent;
+	}
+
+	@Override
+	void setMeta(int node, int meta) {
+		this.meta[node] = meta;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	K key(int node) {
+		return (K) keys[node];
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	V value(int node) {
+		return (V) values[node];
+	}
+
+	@Override
+	void setEntry(int node, K key, V value) {
+		keys[node] = key;
+		values[node] = value;
+	}
+
+	@Override
+	void copyEntry(int from, int to) {
+		keys[to] = keys[from];
+		values[to] = values[from];
+	}
+
+	@Override
+	void clearEntry(int node) {
+		// drops the references so the removed key and value can be collected
+		keys[node] = null;
+		values[node] = null;
+	}
+
+	@Override
+	void ensureCapacity(int slots) {
+		if (slots <= lefts.length) {
+			return;
+		}
+
+		// grows by half, or to exactly the slots needed when that is not enough or
+		// would overflow
+		int length = lefts.length + (lefts.length >> 1);
+		if (length < slots) {
+			length = slots;
+		}
+		lefts = Arrays.copyOf(lefts, length);
+		rights = Arrays.copyOf(rights, length);
+		parents = Arrays.copyOf(parents, length);
+		meta = Arrays.copyOf(meta, length);
+		keys = Arrays.copyOf(keys, length);
+		values = Arrays.copyOf(values, length);
+	}
+}
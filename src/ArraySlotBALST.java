@@ -0,0 +1,121 @@
+import java.util.Arrays;
+
+/**
+ * Slots of a SlotBALST kept in parallel arrays on the heap: int arrays for the
+ * left, right and parent links and the packed color and height of each node,
+ * and an object array for the values. Subclasses add an array for their kind of
+ * key, so a tree of primitive keys only has to say how its keys are stored,
+ * copied and compared. Removed slots are reused by later inserts, and the arrays
+ * grow by half when they run out of slots. They never shrink.
+ */
+abstract class ArraySlotBALST extends SlotBALST {
+
+	static final int DEFAULT_CAPACITY = 16; // keys held before the first growth
+
+	// index i of each array belongs to the node in slot i, read directly by
+	// subclasses on their descents
+	int[] lefts;
+	int[] rights;
+	int[] parents;
+	int[] meta;
+	Object[] values;
+
+	/**
+	 * Constructor for an empty tree with room for DEFAULT_CAPACITY keys
+	 */
+	ArraySlotBALST() {
+		int slots = DEFAULT_CAPACITY + 1; // slot 0 is never used
+		lefts = new int[slots];
+		rights = new int[slots];
+		parents = new int[slots];
+		meta = new int[slots];
+		values = new Object[slots];
+	}
+
+	/**
+	 * copies the key of one slot into another
+	 *
+	 * @param from slot to copy from
+	 * @param to   slot to copy into
+	 */
+	abstract void copyKey(int from, int to);
+
+	/**
+	 * grows the array of keys to the given length, keeping the keys in it
+	 *
+	 * @param length new number of slots, counting slot 0
+	 */
+	abstract void resizeKeys(int length);
+
+	@Override
+	final int left(int node) {
+		return lefts[node];
+	}
+
+	@Override
+	final int right(int node) {
+		return rights[node];
+	}
+
+	@Override
+	final int parent(int node) {
+		return parents[node];
+	}
+
+	@Override
+	final int meta(int node) {
+		return meta[node];
+	}
+
+	@Override
+	final void setLeft(int node, int child) {
+		lefts[node] = child;
+	}
+
+	@Override
+	final void setRight(int node, int child) {
+		rights[node] = child;
+	}
+
+	@Override
+	final void setParent(int node, int parent) {
+		parents[node] = parent;
+	}
+
+	@Override
+	final void setMeta(int node, int meta) {
+		this.meta[node] = meta;
+	}
+
+	@Override
+	final void copyEntry(int from, int to) {
+		copyKey(from, to);
+		values[to] = values[from];
+	}
+
+	@Override
+	final void clearEntry(int node) {
+		// drops the reference so the removed value can be collected
+		values[node] = null;
+	}
+
+	@Override
+	final void ensureCapacity(int slots) {
+		if (slots <= lefts.length) {
+			return;
+		}
+
+		// grows by half, or to exactly the slots needed when that is not enough or
+		// would overflow
+		int length = lefts.length + (lefts.length >> 1);
+		if (length < slots) {
+			length = slots;
+		}
+		lefts = Arrays.copyOf(lefts, length);
+		rights = Arrays.copyOf(rights, length);
+		parents = Arrays.copyOf(parents, length);
+		meta = Arrays.copyOf(meta, length);
+		values = Arrays.copyOf(values, length);
+		resizeKeys(length);
+	}
+}
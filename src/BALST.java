@@ -1,8 +1,21 @@
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
@@ -12,7 +25,7 @@ import java.util.Queue;
  * @param <K> is the generic type of key
  * @param <V> is the generic type of value
  */
-public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
+public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V>, Iterable<K> {
 
 	// inner class
 	/**
@@ -29,10 +42,12 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 		// private fields of a node
 		private K key;
 		private V value;
-		private BSTNode leftChild;
-		private BSTNode rightChild;
-		private BSTNode parent;
+		private BSTNode<K, V> leftChild;
+		private BSTNode<K, V> rightChild;
+		private BSTNode<K, V> parent;
 		boolean isRed; // Tells whether the node is red, if not, its black
+		private int height; // number of levels in the subtree rooted at this node
+		private int subtreeSize; // number of nodes in the subtree rooted at this node
 
 		/**
 		 * Constructor
@@ -49,10 +64,10 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 			rightChild = null;
 			parent = null;
 			isRed = true;
+			height = 1;
+			subtreeSize = 1;
 		}
 
-		
-		
 		/**
 		 * Returns the key for the given node
 		 * 
@@ -62,6 +77,15 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 			return this.key;
 		}
 
+		/**
+		 * Sets the key of the given node
+		 * 
+		 * @param key
+		 */
+		void setKey(K key) {
+			this.key = key;
+		}
+
 		/**
 		 * Returns the value of the given node
 		 * 
@@ -71,12 +95,21 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 			return this.value;
 		}
 
+		/**
+		 * Sets the value of the given node
+		 * 
+		 * @param value
+		 */
+		void setValue(V value) {
+			this.value = value;
+		}
+
 		/**
 		 * Sets the right child of the given node
 		 * 
 		 * @param right the node that is to be the right child
 		 */
-		void setRight(BSTNode right) {
+		void setRight(BSTNode<K, V> right) {
 			this.rightChild = right;
 		}
 
@@ -85,7 +118,7 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 		 * 
 		 * @param left the node that is to be the left child
 		 */
-		void setLeft(BSTNode left) {
+		void setLeft(BSTNode<K, V> left) {
 			this.leftChild = left;
 		}
 
@@ -94,7 +127,7 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 		 * 
 		 * @return Node rightChild
 		 */
-		BSTNode getRight() {
+		BSTNode<K, V> getRight() {
 			return rightChild;
 		}
 
@@ -103,7 +136,7 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 		 * 
 		 * @return Node leftChild
 		 */
-		BSTNode getLeft() {
+		BSTNode<K, V> getLeft() {
 			return leftChild;
 		}
 
@@ -130,7 +163,7 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 		 * 
 		 * @param parent
 		 */
-		void setParent(BSTNode parent) {
+		void setParent(BSTNode<K, V> parent) {
 			this.parent = parent;
 		}
 
@@ -139,24 +172,512 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 		 * 
 		 * @return
 		 */
-		BSTNode getParent() {
+		BSTNode<K, V> getParent() {
 			return parent;
 		}
 
+		/**
+		 * returns the number of levels in the subtree rooted at this node
+		 * 
+		 * @return height of the subtree
+		 */
+		int getHeight() {
+			return height;
+		}
+
+		/**
+		 * returns the number of nodes in the subtree rooted at this node
+		 * 
+		 * @return size of the subtree
+		 */
+		int getSubtreeSize() {
+			return subtreeSize;
+		}
+
+		/**
+		 * recomputes the height and subtree size of this node from its children
+		 */
+		void update() {
+			int leftHeight = leftChild == null ? 0 : leftChild.height;
+			int rightHeight = rightChild == null ? 0 : rightChild.height;
+			height = Math.max(leftHeight, rightHeight) + 1;
+			subtreeSize = sizeOf(leftChild) + sizeOf(rightChild) + 1;
+		}
+
+		/**
+		 * returns the number of nodes in the subtree rooted at the given node
+		 * 
+		 * @param node the root of the subtree, may be null
+		 * @return size of the subtree, 0 if there is no node
+		 */
+		static int sizeOf(BSTNode<?, ?> node) {
+			return node == null ? 0 : node.subtreeSize;
+		}
+
+	}
+
+	/**
+	 * Iterator that walks the nodes in sorted order by following parent links, so
+	 * it only holds the next node and the one last returned. It can stop at an
+	 * upper bound, and fails fast if the tree is changed other than through its own
+	 * remove method.
+	 *
+	 * @param <T> the type of element returned for each node
+	 */
+	private abstract class NodeIterator<T> implements Iterator<T> {
+
+		private BSTNode<K, V> next; // node returned by the next call to next()
+		private BSTNode<K, V> lastReturned; // node returned by the last call to next()
+		private int expectedModCount; // modCount the tree should still have
+		private final K fence; // upper bound of the keys returned, null for none
+		private final boolean fenceInclusive; // whether a key equal to the fence is returned
+
+		/**
+		 * Constructor
+		 * 
+		 * @param first          the first node to return, null for none
+		 * @param fence          the key to stop at, null to go to the end of the tree
+		 * @param fenceInclusive whether a key equal to the fence is returned
+		 */
+		NodeIterator(BSTNode<K, V> first, K fence, boolean fenceInclusive) {
+			this.fence = fence;
+			this.fenceInclusive = fenceInclusive;
+			next = beyondFence(first) ? null : first;
+			expectedModCount = modCount;
+		}
+
+		/**
+		 * checks whether the given node comes after the upper bound
+		 * 
+		 * @param node the node to check, may be null
+		 * @return true if the node exists and is past the fence
+		 */
+		private boolean beyondFence(BSTNode<K, V> node) {
+			if (node == null || fence == null) {
+				return false;
+			}
+			int cmp = node.getKey().compareTo(fence);
+			return fenceInclusive ? cmp > 0 : cmp >= 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		/**
+		 * moves on to the next node in sorted order
+		 * 
+		 * @return the node that was next
+		 */
+		BSTNode<K, V> nextNode() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			lastReturned = next;
+			next = successor(next);
+			if (beyondFence(next)) {
+				next = null;
+			}
+			return lastReturned;
+		}
+
+		/**
+		 * removes the key last returned from the tree. A node with two children
+		 * takes the contents of its predecessor, which was already returned, so the
+		 * next node is not affected.
+		 */
+		@Override
+		public void remove() {
+			if (lastReturned == null) {
+				throw new IllegalStateException();
+			}
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			size--;
+			modCount++;
+			removeHelp(lastReturned);
+			expectedModCount = modCount;
+			lastReturned = null;
+		}
+	}
+
+	/**
+	 * Iterator over the keys in sorted order
+	 */
+	private final class KeyIterator extends NodeIterator<K> {
+
+		KeyIterator(BSTNode<K, V> first, K fence, boolean fenceInclusive) {
+			super(first, fence, fenceInclusive);
+		}
+
+		@Override
+		public K next() {
+			return nextNode().getKey();
+		}
+	}
+
+	/**
+	 * Iterator over the key, value pairs in sorted order. Each pair is a snapshot
+	 * taken when it is returned.
+	 */
+	private final class EntryIterator extends NodeIterator<Map.Entry<K, V>> {
+
+		EntryIterator(BSTNode<K, V> first, K fence, boolean fenceInclusive) {
+			super(first, fence, fenceInclusive);
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			BSTNode<K, V> node = nextNode();
+			return new AbstractMap.SimpleImmutableEntry<K, V>(node.getKey(), node.getValue());
+		}
+	}
+
+	/**
+	 * A live view of the keys of the tree that fall between two bounds. Nothing is
+	 * copied when the view is made: each iteration finds the first key in O(log n)
+	 * and then walks forward to the upper bound, so a scan costs O(log n + k) for k
+	 * keys. The view always reflects the current contents of the tree.
+	 */
+	public final class Range implements Iterable<K> {
+
+		private final K from; // lower bound, null for none
+		private final boolean fromInclusive; // whether a key equal to from is in the range
+		private final K to; // upper bound, null for none
+		private final boolean toInclusive; // whether a key equal to to is in the range
+
+		/**
+		 * Constructor
+		 * 
+		 * @param from          lower bound, null for none
+		 * @param fromInclusive whether a key equal to from is in the range
+		 * @param to            upper bound, null for none
+		 * @param toInclusive   whether a key equal to to is in the range
+		 */
+		private Range(K from, boolean fromInclusive, K to, boolean toInclusive) {
+			this.from = from;
+			this.fromInclusive = fromInclusive;
+			this.to = to;
+			this.toInclusive = toInclusive;
+		}
+
+		/**
+		 * returns the node of the first key in the range
+		 * 
+		 * @return the first node, may be past the upper bound or null
+		 */
+		private BSTNode<K, V> first() {
+			return from == null ? firstNode() : ceilingNode(from, fromInclusive);
+		}
+
+		/**
+		 * Returns an iterator over the keys in the range in sorted order
+		 * 
+		 * @return iterator over the keys
+		 */
+		@Override
+		public Iterator<K> iterator() {
+			return new KeyIterator(first(), to, toInclusive);
+		}
+
+		/**
+		 * Returns an iterator over the key, value pairs in the range in sorted order
+		 * 
+		 * @return iterator over the entries
+		 */
+		public Iterator<Map.Entry<K, V>> entryIterator() {
+			return new EntryIterator(first(), to, toInclusive);
+		}
+
+		/**
+		 * Returns a sequential stream of the keys in the range in sorted order
+		 * 
+		 * @return stream of the keys
+		 */
+		public Stream<K> stream() {
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(),
+					Spliterator.SORTED | Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+		}
+
+		/**
+		 * Returns the number of keys currently in the range in O(log n)
+		 * 
+		 * @return number of keys in the range
+		 */
+		public int size() {
+			int below = from == null ? 0 : countBelow(from, !fromInclusive);
+			int upTo = to == null ? BALST.this.size : countBelow(to, toInclusive);
+			return Math.max(0, upTo - below);
+		}
+
+		/**
+		 * Returns the keys in the range, which copies them, so iterating or
+		 * streaming the view should be preferred for large ranges
+		 * 
+		 * @return list of the keys in sorted order
+		 */
+		public List<K> toList() {
+			List<K> list = new ArrayList<K>(size());
+			forEach(list::add);
+			return list;
+		}
+	}
+
+	/**
+	 * KeyNotFoundException that skips filling in its stack trace. A missing key is
+	 * an expected outcome for callers of the strict methods, so throwing one only
+	 * costs the allocation.
+	 */
+	@SuppressWarnings("serial")
+	static final class StacklessKeyNotFoundException extends KeyNotFoundException {
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	/**
+	 * DuplicateKeyException that skips filling in its stack trace, for the same
+	 * reason as StacklessKeyNotFoundException
+	 */
+	@SuppressWarnings("serial")
+	static final class StacklessDuplicateKeyException extends DuplicateKeyException {
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	/**
+	 * What happened to one key of a batch operation
+	 */
+	public enum BatchOutcome {
+		/** the key was added to the tree */
+		INSERTED,
+		/** the key was not added because it was already in the tree */
+		DUPLICATE,
+		/** the key was removed from the tree */
+		REMOVED,
+		/** the key is in the tree */
+		FOUND,
+		/** the key is not in the tree */
+		NOT_FOUND,
+		/** the key was null and was skipped */
+		NULL_KEY
 	}
 
 	// private fields
 	private BSTNode<K, V> root;// root of the tree
 	private int numKeys; // number of keys in the tree
 	private int size; // size of the tree
+	private final BALSTDiagnostics diagnostics; // hook told about lookups and rotations
+	private int modCount; // number of inserts and removes, used by iterators to fail fast
 
 	/**
 	 * Constructor for the tree
 	 */
 	public BALST() {
+		this(BALSTDiagnostics.NONE);
+	}
+
+	/**
+	 * Constructor for a tree that reports its lookups and rotations to the given
+	 * diagnostics
+	 * 
+	 * @param diagnostics the hook to report to, BALSTDiagnostics.NONE for none
+	 */
+	public BALST(BALSTDiagnostics diagnostics) {
+		if (diagnostics == null) {
+			throw new IllegalArgumentException("diagnostics must not be null, use BALSTDiagnostics.NONE");
+		}
 		root = null;
 		numKeys = 0;
 		size = 0;
+		this.diagnostics = diagnostics;
+	}
+
+	/**
+	 * Builds a tree from keys that are already in strictly increasing order, with
+	 * values[i] stored under keys[i]. The tree is put together bottom up in O(n)
+	 * without any searching or rebalancing: each range of keys gets its middle key
+	 * as the root, and only the nodes on the deepest, incomplete level are red.
+	 * 
+	 * @param keys   the keys in strictly increasing order
+	 * @param values the values, one per key
+	 * @return a new tree holding every key, value pair
+	 * @throws IllegalNullKeyException if a key is null
+	 * @throws DuplicateKeyException   if a key appears more than once
+	 * @throws IllegalArgumentException if the keys are not sorted or the arrays
+	 *                                  differ in length
+	 */
+	public static <K extends Comparable<K>, V> BALST<K, V> fromSorted(K[] keys, V[] values)
+			throws IllegalNullKeyException, DuplicateKeyException {
+		checkLengths(keys.length, values.length);
+		return fromSorted(Arrays.asList(keys).iterator(), Arrays.asList(values).iterator(), keys.length);
+	}
+
+	/**
+	 * Builds a tree from count keys that are read in strictly increasing order,
+	 * pairing each key with the next value, in O(n). The keys are checked while
+	 * they are read.
+	 * 
+	 * @param keys   the keys in strictly increasing order
+	 * @param values the values, one per key
+	 * @param count  the number of keys to read
+	 * @return a new tree holding every key, value pair
+	 * @throws IllegalNullKeyException if a key is null
+	 * @throws DuplicateKeyException   if a key appears more than once
+	 * @throws IllegalArgumentException if the keys are not sorted or there are
+	 *                                  fewer than count keys or values
+	 */
+	public static <K extends Comparable<K>, V> BALST<K, V> fromSorted(Iterator<? extends K> keys,
+			Iterator<? extends V> values, int count) throws IllegalNullKeyException, DuplicateKeyException {
+
+		BSTNode<K, V>[] nodes = newNodeArray(count);
+		for (int i = 0; i < count; i++) {
+			if (!keys.hasNext() || !values.hasNext()) {
+				throw new IllegalArgumentException("expected " + count + " keys and values but got " + i);
+			}
+			K key = keys.next();
+			checkKey(key);
+			if (i > 0) {
+				int cmp = nodes[i - 1].getKey().compareTo(key);
+				if (cmp == 0) {
+					throw new StacklessDuplicateKeyException();
+				}
+				if (cmp > 0) {
+					throw new IllegalArgumentException("key " + key + " comes after " + nodes[i - 1].getKey());
+				}
+			}
+			nodes[i] = new BSTNode<K, V>(key, values.next());
+		}
+		return fromNodes(nodes);
+	}
+
+	/**
+	 * Builds a tree from keys in any order, with values[i] stored under keys[i].
+	 * The pairs are sorted with a parallel sort and then built bottom up, which is
+	 * O(n log n) for the sort and O(n) for the build.
+	 * 
+	 * @param keys   the keys, in any order
+	 * @param values the values, one per key
+	 * @return a new tree holding every key, value pair
+	 * @throws IllegalNullKeyException if a key is null
+	 * @throws DuplicateKeyException   if a key appears more than once
+	 * @throws IllegalArgumentException if the arrays differ in length
+	 */
+	public static <K extends Comparable<K>, V> BALST<K, V> fromUnsorted(K[] keys, V[] values)
+			throws IllegalNullKeyException, DuplicateKeyException {
+		checkLengths(keys.length, values.length);
+
+		BSTNode<K, V>[] nodes = newNodeArray(keys.length);
+		for (int i = 0; i < keys.length; i++) {
+			checkKey(keys[i]);
+			nodes[i] = new BSTNode<K, V>(keys[i], values[i]);
+		}
+		Arrays.parallelSort(nodes, (a, b) -> a.getKey().compareTo(b.getKey()));
+
+		// equal keys end up next to each other once sorted
+		for (int i = 1; i < nodes.length; i++) {
+			if (nodes[i - 1].getKey().compareTo(nodes[i].getKey()) == 0) {
+				throw new StacklessDuplicateKeyException();
+			}
+		}
+		return fromNodes(nodes);
+	}
+
+	/**
+	 * links nodes that are in sorted order into a new tree
+	 * 
+	 * @param nodes the nodes in strictly increasing order of their keys
+	 * @return a new tree made of the nodes
+	 */
+	private static <K extends Comparable<K>, V> BALST<K, V> fromNodes(BSTNode<K, V>[] nodes) {
+		BALST<K, V> tree = new BALST<K, V>();
+		tree.root = buildFromSorted(nodes, 0, nodes.length - 1, 0, redLevel(nodes.length));
+		tree.size = nodes.length;
+		return tree;
+	}
+
+	/**
+	 * links the nodes from lo to hi into a subtree rooted at their middle node.
+	 * The recursion depth is the height of the new tree, about log2(n).
+	 * 
+	 * @param nodes    the nodes in sorted order
+	 * @param lo       index of the first node of the subtree
+	 * @param hi       index of the last node of the subtree
+	 * @param level    depth of the subtree root, 0 for the root of the tree
+	 * @param redLevel depth of the nodes that are colored red
+	 * @return the root of the subtree, null if lo is past hi
+	 */
+	private static <K extends Comparable<K>, V> BSTNode<K, V> buildFromSorted(BSTNode<K, V>[] nodes, int lo,
+			int hi, int level, int redLevel) {
+		if (lo > hi) {
+			return null;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		BSTNode<K, V> node = nodes[mid];
+
+		BSTNode<K, V> left = buildFromSorted(nodes, lo, mid - 1, level + 1, redLevel);
+		BSTNode<K, V> right = buildFromSorted(nodes, mid + 1, hi, level + 1, redLevel);
+		node.setLeft(left);
+		node.setRight(right);
+		if (left != null) {
+			left.setParent(node);
+		}
+		if (right != null) {
+			right.setParent(node);
+		}
+
+		// only the deepest level can be incomplete, so it is the only red one
+		node.setRed(level == redLevel);
+		node.update();
+		return node;
+	}
+
+	/**
+	 * finds the depth of the deepest level of a tree of the given size built by
+	 * buildFromSorted. Every path down to a full level has the same number of
+	 * black nodes, so only the nodes below that are colored red.
+	 * 
+	 * @param count the number of nodes
+	 * @return depth of the red level, from 0 at the root
+	 */
+	private static int redLevel(int count) {
+		int level = 0;
+		for (int m = count - 1; m >= 0; m = m / 2 - 1) {
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * throws if the number of keys and values differ
+	 * 
+	 * @param keys   number of keys
+	 * @param values number of values
+	 */
+	private static void checkLengths(int keys, int values) {
+		if (keys != values) {
+			throw new IllegalArgumentException(keys + " keys but " + values + " values");
+		}
+	}
+
+	/**
+	 * creates an array for the given number of nodes
+	 * 
+	 * @param count the length of the array
+	 * @return a new array of nodes
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <K extends Comparable<K>, V> BSTNode<K, V>[] newNodeArray(int count) {
+		return (BSTNode<K, V>[]) new BSTNode[count];
 	}
 
 	/**
@@ -187,16 +708,8 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 			throw new IllegalNullKeyException();
 		}
 
-		// checks if the key exists in the tree
-		if (!contains(key)) {
-			throw new KeyNotFoundException();
-		}
-
-		// creates a new node to compare to nodes in the tree
-		BSTNode comp = new BSTNode(key, null);
-
 		// the left child of the found node from the given key
-		BSTNode foundLeft = getNode(root, comp).getLeft();
+		BSTNode<K, V> foundLeft = getExistingNode(key).getLeft();
 
 		// checks if the node is null or not, and returns null if so
 		if (foundLeft == null) {
@@ -205,7 +718,7 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 
 		// returns the key of the left child of the node found in the tree of the given
 		// key
-		return (K) foundLeft.getKey();
+		return foundLeft.getKey();
 
 	}
 
@@ -224,16 +737,8 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 			throw new IllegalNullKeyException();
 		}
 
-		// checks if the key exists in the tree
-		if (!contains(key)) {
-			throw new KeyNotFoundException();
-		}
-
-		// creates a new node to compare to nodes in the tree
-		BSTNode comp = new BSTNode(key, null);
-
 		// the right child of the found node from the given key
-		BSTNode foundRight = getNode(root, comp).getRight();
+		BSTNode<K, V> foundRight = getExistingNode(key).getRight();
 
 		// checks if the node is null or not, and returns null if so
 		if (foundRight == null) {
@@ -242,124 +747,196 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 
 		// returns the key of the left child of the node found in the tree of the given
 		// key
-		return (K) foundRight.getKey();
+		return foundRight.getKey();
 
 	}
 
 	@Override
 	public int getHeight() {
-		return heightHelper(root);
+		// the height is kept up to date by every change to the tree
+		return root == null ? 0 : root.getHeight();
 	}
 
 	@Override
 	public List<K> getInOrderTraversal() {
-		List<K> list = new ArrayList<K>();
-		inOrderTraversal(list, root);
+		List<K> list = new ArrayList<K>(size);
+		forEachInOrder(list::add);
 		return list;
 	}
 
 	@Override
 	public List<K> getPreOrderTraversal() {
-		List<K> list = new ArrayList<K>();
-		preOrderTraversal(list, root);
+		List<K> list = new ArrayList<K>(size);
+		forEachPreOrder(list::add);
 		return list;
 	}
 
 	@Override
 	public List<K> getPostOrderTraversal() {
-		List<K> list = new ArrayList<K>();
-		postOrderTraversal(list, root);
+		List<K> list = new ArrayList<K>(size);
+		forEachPostOrder(list::add);
 		return list;
 	}
 
 	@Override
 	public List<K> getLevelOrderTraversal() {
-		List<K> list = new ArrayList<K>();
-		int h = heightHelper(root);
-		int i;
-		for (i = 1; i <= h; i++) {
-			levelOrderTraversal(list, root, i);
-		}
-		
+		List<K> list = new ArrayList<K>(size);
+		forEachLevelOrder(list::add);
 		return list;
 	}
 
-	@Override
-	public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
-
-		// checks if the key input is null
-		if (key == null) {
-			throw new IllegalNullKeyException();
-		}
-
-		// checks if the key already exists in the tree
-		if (contains(key)) {
-			throw new DuplicateKeyException();
-		}
+	/**
+	 * Passes every key to the action in sorted order (L V R) without building a
+	 * list of them
+	 * 
+	 * @param action called once per key
+	 */
+	public void forEachInOrder(Consumer<? super K> action) {
 
-		// creates a new BSTNode with input key and value
-		BSTNode comp = new BSTNode(key, value);
+		// stack of the nodes whose left subtree is still being visited
+		Deque<BSTNode<K, V>> stack = new ArrayDeque<>();
+		BSTNode<K, V> node = root;
 
-		size++;
-		// checksif the root of the tree is null and if so,makes new key the root
-		if (root == null) {
-			root = comp;
-			root.setRed(false);// sets the root node equal to black.
-			return;
-		}
+		while (node != null || !stack.isEmpty()) {
 
-		// calls the insertHelper to insert the node in an BST fashion, then it reshapes
-		// it
-		insertHelper(root, comp, null);
+			// first goes down the left subtree
+			while (node != null) {
+				stack.push(node);
+				node = node.getLeft();
+			}
 
-	}
+			node = stack.pop();
+			action.accept(node.getKey());
 
-	@Override
-	public boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
-		if (key == null) {
-			throw new IllegalNullKeyException();
+			// then moves on to the right subtree
+			node = node.getRight();
 		}
-		if (!contains(key)) {
-			throw new KeyNotFoundException();
-		}
-		BSTNode curr = new BSTNode(key, null);
-
-		size--;
-		removeHelp(root, curr);
-		return true;
 	}
 
 	/**
-	 * finds a node in the tree and returns its value
+	 * Passes every key to the action in pre-order (V L R) without building a list
+	 * of them
 	 * 
-	 * @param K key to be found
-	 * @return V value of the found key
+	 * @param action called once per key
 	 */
-	@Override
-	public V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
-
-		// checks if the key input is null
-		if (key == null) {
-			throw new IllegalNullKeyException();
-		}
+	public void forEachPreOrder(Consumer<? super K> action) {
+		if (root == null)
+			return;
 
-		// checks if the key exists in the tree
-		if (!contains(key)) {
-			throw new KeyNotFoundException();
-		}
+		Deque<BSTNode<K, V>> stack = new ArrayDeque<>();
+		stack.push(root);
 
-		// creates a new node to be found in the tree;
-		BSTNode comp = new BSTNode(key, null);
-		BSTNode found = getNode(root, comp);
+		while (!stack.isEmpty()) {
+			BSTNode<K, V> node = stack.pop();
+			action.accept(node.getKey());
 
-		// returns the value of the found node
-		return (V) found.getValue();
+			// the right child is pushed first so the left subtree is visited first
+			if (node.getRight() != null) {
+				stack.push(node.getRight());
+			}
+			if (node.getLeft() != null) {
+				stack.push(node.getLeft());
+			}
+		}
 	}
 
 	/**
-	 * Checks if the current input key exists within the tree
+	 * Passes every key to the action in post-order (L R V) without building a list
+	 * of them
 	 * 
-	 * @param K key
+	 * @param action called once per key
+	 */
+	public void forEachPostOrder(Consumer<? super K> action) {
+
+		// stack of the nodes whose subtrees are still being visited
+		Deque<BSTNode<K, V>> stack = new ArrayDeque<>();
+		BSTNode<K, V> node = root;
+		BSTNode<K, V> lastVisited = null;
+
+		while (node != null || !stack.isEmpty()) {
+
+			// first goes down the left subtree
+			while (node != null) {
+				stack.push(node);
+				node = node.getLeft();
+			}
+
+			BSTNode<K, V> top = stack.peek();
+
+			// the right subtree is visited before the node itself
+			if (top.getRight() != null && top.getRight() != lastVisited) {
+				node = top.getRight();
+			} else {
+				stack.pop();
+				action.accept(top.getKey());
+				lastVisited = top;
+			}
+		}
+	}
+
+	/**
+	 * Passes every key to the action in level-order, the root first and then each
+	 * level from left to right, without building a list of them
+	 * 
+	 * @param action called once per key
+	 */
+	public void forEachLevelOrder(Consumer<? super K> action) {
+		levelOrderTraversal(action, null);
+	}
+
+	@Override
+	public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+
+		checkKey(key);
+
+		// a single descent, reported to the diagnostics like put, finds either the
+		// key or the node the new key hangs from, so the size is only increased once
+		// the node has actually been placed
+		BSTNode<K, V> last = descend(root, key);
+		if (isNodeOf(last, key)) {
+			throw new StacklessDuplicateKeyException();
+		}
+		insertBelow(last, key, value);
+	}
+
+	@Override
+	public boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		if (key == null) {
+			throw new IllegalNullKeyException();
+		}
+		BSTNode<K, V> found = getExistingNode(key);
+
+		size--;
+		modCount++;
+		removeHelp(found);
+
+		// only runs when assertions are enabled
+		assert verifyInvariants();
+		return true;
+	}
+
+	/**
+	 * finds a node in the tree and returns its value
+	 * 
+	 * @param K key to be found
+	 * @return V value of the found key
+	 */
+	@Override
+	public V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
+
+		// checks if the key input is null
+		if (key == null) {
+			throw new IllegalNullKeyException();
+		}
+
+		// returns the value of the found node
+		return getExistingNode(key).getValue();
+	}
+
+	/**
+	 * Checks if the current input key exists within the tree
+	 * 
+	 * @param K key
 	 * @return boolean true if it exists, false otherwise
 	 */
 	@Override
@@ -368,11 +945,9 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 		if (key == null) {
 			throw new IllegalNullKeyException();
 		}
-		// check if the node exists in the tree
-		BSTNode comp = new BSTNode(key, null);
 
 		// returns whether the node is found or not
-		return (getNode(root, comp) != null);
+		return (getNode(key) != null);
 	}
 
 	/**
@@ -390,517 +965,1523 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 		printHelper();
 	}
 
-	// helper methods
 	/**
-	 * returns the node of a given key in the tree if it exists
+	 * Returns an iterator over the keys in sorted order. The keys are found one at
+	 * a time, so nothing is copied and the caller can stop early. The iterator
+	 * supports remove and throws ConcurrentModificationException if the tree is
+	 * changed any other way while it is in use.
 	 * 
-	 * @param key
-	 * @return BSTNode of the key found, else null
+	 * @return iterator over the keys in sorted order
 	 */
-	private static BSTNode getNode(BSTNode curr, BSTNode comp) {
+	@Override
+	public Iterator<K> iterator() {
+		return new KeyIterator(firstNode(), null, false);
+	}
 
-		if(curr == null) {
-			System.out.println("CURR NULL");
-			return null;
-		}
-		if(comp == null) {
-			System.out.println("COMP NULL");
-			return null;
-		}
-		//checks if they are both equal
-		if(curr.getKey().compareTo(comp.getKey()) == 0 ) {
-			return curr;
+	/**
+	 * Returns an iterator over the key, value pairs in sorted order of the keys,
+	 * with the same behavior as iterator()
+	 * 
+	 * @return iterator over the entries in sorted order
+	 */
+	public Iterator<Map.Entry<K, V>> entryIterator() {
+		return new EntryIterator(firstNode(), null, false);
+	}
+
+	/**
+	 * Returns a spliterator over the keys in sorted order that knows the number of
+	 * keys, so streams over it can be split and sized without copying the tree
+	 * 
+	 * @return SIZED, SORTED, ORDERED, DISTINCT and NONNULL spliterator of the keys
+	 */
+	@Override
+	public Spliterator<K> spliterator() {
+		return Spliterators.spliterator(iterator(), size,
+				Spliterator.SIZED | Spliterator.SORTED | Spliterator.ORDERED | Spliterator.DISTINCT
+						| Spliterator.NONNULL);
+	}
+
+	/**
+	 * Returns a sequential stream of the keys in sorted order
+	 * 
+	 * @return stream of the keys
+	 */
+	public Stream<K> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * Returns the smallest key in the tree
+	 * 
+	 * @return the first key, or null if the tree is empty
+	 */
+	public K firstKey() {
+		return keyOf(firstNode());
+	}
+
+	/**
+	 * Returns the largest key in the tree
+	 * 
+	 * @return the last key, or null if the tree is empty
+	 */
+	public K lastKey() {
+		return keyOf(root == null ? null : inOrderPred(root));
+	}
+
+	/**
+	 * Returns the largest key less than or equal to the given key
+	 * 
+	 * @param key the key to search for
+	 * @return the floor key, or null if there is none
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K floorKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return keyOf(floorNode(key, true));
+	}
+
+	/**
+	 * Returns the largest key strictly less than the given key
+	 * 
+	 * @param key the key to search for
+	 * @return the lower key, or null if there is none
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K lowerKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return keyOf(floorNode(key, false));
+	}
+
+	/**
+	 * Returns the smallest key greater than or equal to the given key
+	 * 
+	 * @param key the key to search for
+	 * @return the ceiling key, or null if there is none
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K ceilingKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return keyOf(ceilingNode(key, true));
+	}
+
+	/**
+	 * Returns the smallest key strictly greater than the given key
+	 * 
+	 * @param key the key to search for
+	 * @return the higher key, or null if there is none
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K higherKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return keyOf(ceilingNode(key, false));
+	}
+
+	/**
+	 * Returns a view of the keys between the two given keys
+	 * 
+	 * @param fromKey       lower bound of the range
+	 * @param fromInclusive whether fromKey itself is in the range
+	 * @param toKey         upper bound of the range
+	 * @param toInclusive   whether toKey itself is in the range
+	 * @return a live view of the keys in the range
+	 * @throws IllegalNullKeyException if either key is null
+	 */
+	public Range subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive)
+			throws IllegalNullKeyException {
+		checkKey(fromKey);
+		checkKey(toKey);
+		if (fromKey.compareTo(toKey) > 0) {
+			throw new IllegalArgumentException("fromKey " + fromKey + " is greater than toKey " + toKey);
 		}
-		// checks if the comp node is less than the current node and that the current
-		// node has a left child
-		if (curr.getLeft()!= null && comp.getKey().compareTo(curr.getKey()) < 0) {
-			return getNode(curr.getLeft(), comp);
+		return new Range(fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	/**
+	 * Returns a view of the keys from fromKey, inclusive, up to toKey, exclusive
+	 * 
+	 * @param fromKey lower bound of the range
+	 * @param toKey   upper bound of the range
+	 * @return a live view of the keys in the range
+	 * @throws IllegalNullKeyException if either key is null
+	 */
+	public Range subMap(K fromKey, K toKey) throws IllegalNullKeyException {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	/**
+	 * Returns a view of the keys less than (or equal to, if inclusive) toKey
+	 * 
+	 * @param toKey     upper bound of the range
+	 * @param inclusive whether toKey itself is in the range
+	 * @return a live view of the keys in the range
+	 * @throws IllegalNullKeyException if toKey is null
+	 */
+	public Range headMap(K toKey, boolean inclusive) throws IllegalNullKeyException {
+		checkKey(toKey);
+		return new Range(null, false, toKey, inclusive);
+	}
+
+	/**
+	 * Returns a view of the keys strictly less than toKey
+	 * 
+	 * @param toKey upper bound of the range
+	 * @return a live view of the keys in the range
+	 * @throws IllegalNullKeyException if toKey is null
+	 */
+	public Range headMap(K toKey) throws IllegalNullKeyException {
+		return headMap(toKey, false);
+	}
+
+	/**
+	 * Returns a view of the keys greater than (or equal to, if inclusive) fromKey
+	 * 
+	 * @param fromKey   lower bound of the range
+	 * @param inclusive whether fromKey itself is in the range
+	 * @return a live view of the keys in the range
+	 * @throws IllegalNullKeyException if fromKey is null
+	 */
+	public Range tailMap(K fromKey, boolean inclusive) throws IllegalNullKeyException {
+		checkKey(fromKey);
+		return new Range(fromKey, inclusive, null, false);
+	}
+
+	/**
+	 * Returns a view of the keys greater than or equal to fromKey
+	 * 
+	 * @param fromKey lower bound of the range
+	 * @return a live view of the keys in the range
+	 * @throws IllegalNullKeyException if fromKey is null
+	 */
+	public Range tailMap(K fromKey) throws IllegalNullKeyException {
+		return tailMap(fromKey, true);
+	}
+
+	/**
+	 * Returns the number of keys in the tree that are less than the given key,
+	 * which is the index the key has, or would have, in sorted order. Runs in
+	 * O(log n) using the subtree sizes.
+	 * 
+	 * @param key the key to rank, does not have to be in the tree
+	 * @return number of keys smaller than key
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public int rank(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return countBelow(key, false);
+	}
+
+	/**
+	 * Returns the key at the given index in sorted order, so select(0) is the
+	 * smallest key. Runs in O(log n) using the subtree sizes.
+	 * 
+	 * @param index the index of the key, from 0 to numKeys() - 1
+	 * @return the key at that index
+	 * @throws IndexOutOfBoundsException if index is not in the tree
+	 */
+	public K select(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index " + index + " out of " + size + " keys");
 		}
 
-		// checks if the comp node is greater than the current node and that the current
-		// node has a right child
-		if (comp.getKey().compareTo(curr.getKey()) > 0 && curr.getRight() != null) {
-			return getNode(curr.getRight(), comp);
+		BSTNode<K, V> curr = root;
+		while (true) {
+			int leftSize = BSTNode.sizeOf(curr.getLeft());
+			if (index < leftSize) {
+				curr = curr.getLeft();
+			} else if (index == leftSize) {
+				return curr.getKey();
+			} else {
+				// skips the left subtree and the current node
+				index -= leftSize + 1;
+				curr = curr.getRight();
+			}
 		}
+	}
 
+	/**
+	 * Returns the number of keys between lo and hi, both inclusive, in O(log n)
+	 * 
+	 * @param lo lower bound of the range
+	 * @param hi upper bound of the range
+	 * @return number of keys k with lo &lt;= k &lt;= hi, 0 if lo is greater than hi
+	 * @throws IllegalNullKeyException if either key is null
+	 */
+	public int countInRange(K lo, K hi) throws IllegalNullKeyException {
+		checkKey(lo);
+		checkKey(hi);
+		if (lo.compareTo(hi) > 0) {
+			return 0;
+		}
+		return countBelow(hi, true) - countBelow(lo, false);
+	}
 
-		// otherwise returns null if all else fails
+	/**
+	 * Stores the value under the key, replacing the value of the key if it is
+	 * already in the tree. Takes a single descent either way and never throws for
+	 * an existing key.
+	 * 
+	 * @param key   the key to store the value under
+	 * @param value the value to store
+	 * @return the value the key had before, or null if it was not in the tree
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public V put(K key, V value) throws IllegalNullKeyException {
+		checkKey(key);
+		BSTNode<K, V> last = descend(root, key);
+
+		if (isNodeOf(last, key)) {
+			V old = last.getValue();
+			last.setValue(value);
+			return old;
+		}
+		insertBelow(last, key, value);
 		return null;
 	}
 
 	/**
-	 * Insert Helper Method. Uses the RBT tree properties and recursion to do so.
+	 * Stores the value under the key only if the key is not in the tree yet, in a
+	 * single descent
 	 * 
-	 * @param curr
-	 * @param comp
+	 * @param key   the key to store the value under
+	 * @param value the value to store
+	 * @return the value the key already has, or null if the value was stored
+	 * @throws IllegalNullKeyException if key is null
 	 */
-	private static void insertHelper(BSTNode curr, BSTNode comp, BSTNode compParent) {
+	public V putIfAbsent(K key, V value) throws IllegalNullKeyException {
+		checkKey(key);
+		BSTNode<K, V> last = descend(root, key);
 
-		// checks if the current node being compared to is null, and if so it sets it
-		// equal to the new node
-		if (curr == null) {
+		if (isNodeOf(last, key)) {
+			return last.getValue();
+		}
+		insertBelow(last, key, value);
+		return null;
+	}
 
-			// sets the current node equal to the comp node and its parents likewise.
-			curr = comp;
-			curr.setParent(compParent);
+	/**
+	 * If the key is not in the tree, stores the value made by the mapping function
+	 * under it, unless the function returns null. Takes a single descent.
+	 * 
+	 * @param key             the key to look up
+	 * @param mappingFunction makes the value for a missing key
+	 * @return the value the key has afterwards, or null if it is still missing
+	 * @throws IllegalNullKeyException if key is null
+	 * @throws ConcurrentModificationException if the function changed the tree
+	 */
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction)
+			throws IllegalNullKeyException {
+		checkKey(key);
+		BSTNode<K, V> last = descend(root, key);
 
-			// checks if this certain case of the RBT Tree was violation: Red parent red
-			// child
-			redPropViolation(curr);
-			return;
+		if (isNodeOf(last, key)) {
+			return last.getValue();
 		}
 
-		// checks if the new node created is greater than the current node, and
-		// recursively calls the insert method if so
-		if (comp.getKey().compareTo(curr.getKey()) > 0) {
-			insertHelper(curr.getRight(), comp, curr);
+		int expectedModCount = modCount;
+		V value = mappingFunction.apply(key);
+		checkModCount(expectedModCount);
+		if (value != null) {
+			insertBelow(last, key, value);
 		}
+		return value;
+	}
 
-		// otherwise the insert is called recursively on the left node
-		else {
-			insertHelper(curr.getLeft(), comp, curr);
+	/**
+	 * Replaces the value of the key with the one made by the remapping function
+	 * from the key and its current value, which is null if the key is missing. If
+	 * the function returns null the key is removed, or left out if it was missing.
+	 * Takes a single descent.
+	 * 
+	 * @param key               the key to update
+	 * @param remappingFunction makes the new value from the key and the old value
+	 * @return the new value of the key, or null if it is not in the tree afterwards
+	 * @throws IllegalNullKeyException if key is null
+	 * @throws ConcurrentModificationException if the function changed the tree
+	 */
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction)
+			throws IllegalNullKeyException {
+		checkKey(key);
+		BSTNode<K, V> last = descend(root, key);
+		boolean present = isNodeOf(last, key);
+
+		int expectedModCount = modCount;
+		V value = remappingFunction.apply(key, present ? last.getValue() : null);
+		checkModCount(expectedModCount);
+		return store(last, present, key, value);
+	}
+
+	/**
+	 * Stores the value under the key if the key is missing, otherwise replaces its
+	 * value with the one made by the remapping function from the old value and the
+	 * given one. If the function returns null the key is removed. Takes a single
+	 * descent.
+	 * 
+	 * @param key               the key to update
+	 * @param value             the value to store or combine with the old one
+	 * @param remappingFunction combines the old value and the given value
+	 * @return the new value of the key, or null if it was removed
+	 * @throws IllegalNullKeyException if key is null
+	 * @throws ConcurrentModificationException if the function changed the tree
+	 */
+	public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction)
+			throws IllegalNullKeyException {
+		checkKey(key);
+		BSTNode<K, V> last = descend(root, key);
+
+		if (!isNodeOf(last, key)) {
+			insertBelow(last, key, value);
+			return value;
 		}
 
+		int expectedModCount = modCount;
+		V merged = remappingFunction.apply(last.getValue(), value);
+		checkModCount(expectedModCount);
+		return store(last, true, key, merged);
 	}
 
 	/**
-	 * rotates the parent node left around the parent
+	 * Inserts a batch of key, value pairs, with values.get(i) stored under
+	 * keys.get(i). The keys are handled in sorted order and each search starts
+	 * from the node the previous key ended at, climbing only as far as needed, so
+	 * keys that are close together share most of their descent. The red black
+	 * fixup still runs per key, which is amortized O(1). Nothing is thrown for
+	 * duplicate or null keys; their outcome is reported instead.
 	 * 
-	 * @param curr
+	 * @param keys   the keys to insert, in any order
+	 * @param values the values, one per key
+	 * @return outcome per key, in the order of keys: INSERTED, DUPLICATE (already
+	 *         in the tree or earlier in the batch) or NULL_KEY
+	 * @throws IllegalArgumentException if the lists differ in length
 	 */
-	private static void rotateLeft(BSTNode curr) {
-
-		BSTNode par = curr.getParent();
-		BSTNode parR = par.getRight();
-		BSTNode parL = par.getLeft();
-		BSTNode gp = par.getParent();
-
-		// checks if the current node is the right node of the parent or not
-		if (curr == parR) {
-
-			// case for a normal left rotation
-			if (gp.getRight() == par) {
-
-				// all hypothetical references for the new structure of the tree for easy
-				// understanding
-				BSTNode left = gp;// left of the new root node will be the gp
-				BSTNode right = parR;// right of the new node is still parR
-				BSTNode sib = parL;// the sibling of the current key is parL
-
-				// since the parent is now the new root node, must set its new left and right
-				// children, etc
-				par.setParent(gp.getParent());// sets the new parent of the root node"par" equal to the old root nodes
-												// parent
-				par.setLeft(left);// sets the left of the new root node equal to left (old root)
-				left.setParent(par);// sets lefts parent to the root node
-				left.setRight(sib);// sets lefts new right reference to the old sibling of the new key
-				sib.setParent(left);// sets the siblings parent equal to the new left node
-				par.setRed(false);// sets the root node to black
-				left.setRed(true);// sets the left nodes color to red
-				return;
-
-			}
-
-			// case for a left-Right rotation
-			else {
-				BSTNode left = par;// the new left node of the "root" after reconstruction
-				BSTNode right = gp;// the new right node of the "Root" after reconstruction
-				BSTNode root = parR;// the new "root" of the subtree
-				BSTNode leftS = parR.getLeft();// the leftsibling of the key node being moved
-				BSTNode rightS = parR.getRight();// the right sibling of the key node being moved
-
-				// sets the children of the "root"
-				root.setLeft(left);
-				root.setRight(right);
-				root.setParent(gp.getParent());// sets the roots parent equal to the gp parent
-
-				// sets the parents of the children to the root
-				left.setParent(root);
-				right.setParent(root);
-
-				// assigns the old siblings equal to the children of the roots children
-				left.setRight(leftS);
-				right.setLeft(rightS);
-
-				// sets the roots color equal to
+	public BatchOutcome[] insertAll(List<? extends K> keys, List<? extends V> values) {
+		checkLengths(keys.size(), values.size());
+		BatchOutcome[] outcomes = new BatchOutcome[keys.size()];
+		BSTNode<K, V> finger = null;// node the last search ended at
+
+		for (int index : sortedBatch(keys, outcomes)) {
+			K key = keys.get(index);
+			V value = values.get(index);
+
+			if (root == null) {
+				root = new BSTNode<K, V>(key, value);
 				root.setRed(false);
-				right.setRed(true);
-				return;
+				finger = root;
+			} else {
+				// walks down from where the finger search starts, reporting to the
+				// diagnostics like every other lookup
+				BSTNode<K, V> last = descend(fingerStart(finger, key), key);
+				if (isNodeOf(last, key)) {
+					outcomes[index] = BatchOutcome.DUPLICATE;
+					finger = last;
+					continue;
+				}
+				BSTNode<K, V> comp = new BSTNode<K, V>(key, value);
+				attach(last, comp, key.compareTo(last.getKey()));
+				finger = comp;
 			}
+			outcomes[index] = BatchOutcome.INSERTED;
+			size++;
+			modCount++;
 		}
+
+		// only runs when assertions are enabled
+		assert verifyInvariants();
+		return outcomes;
 	}
 
 	/**
-	 * rotates the parent node right around the parent
+	 * Removes a batch of keys, handling them in sorted order. Nothing is thrown
+	 * for missing or null keys; their outcome is reported instead. The search for
+	 * a key starts from where the previous search ended, or after a removal from
+	 * a node next to the removed key in sorted order, so keys that are close
+	 * together share most of their descent even when most of them are removed.
 	 * 
-	 * @param curr
+	 * @param keys the keys to remove, in any order
+	 * @return outcome per key, in the order of keys: REMOVED, NOT_FOUND (not in
+	 *         the tree or removed earlier in the batch) or NULL_KEY
 	 */
-	private static void rotateRight(BSTNode curr) {
-
-		BSTNode par = curr.getParent();
-		BSTNode parR = par.getRight();
-		BSTNode parL = par.getLeft();
-		BSTNode gp = par.getParent();
-
-		// checks if the current node is the right node of the parent or not
-		if (curr == parL) {
-
-			// case for a normal right rotation
-			if (gp.getLeft() == par) {
-
-				// all hypothetical references for the new structure of the tree for easy
-				// understanding
-				BSTNode left = parL;// left of the new root node will be parL
-				BSTNode right = gp;// right of the root is gp
-				BSTNode sib = parR;// the sibling of the current key is parR
-
-				// since the parent is now the new root node, must set its new left and right
-				// children, etc
-				par.setParent(gp.getParent());// sets the new parent of the root node"par" equal to the old root nodes
-												// parent
-				par.setRight(right);// sets the left of the new root node equal to left (old root)
-				right.setParent(par);// sets rights parent to the root node
-				right.setLeft(sib);// sets lefts new right reference to the old sibling of the new key
-				sib.setParent(right);// sets the siblings parent equal to the new right node
-				par.setRed(false);// sets the root node to black
-				right.setRed(true);// sets the right nodes color to red
-				return;
-
-			}
-
-			// case for a Right-left rotation
-			else {
-				BSTNode left = gp;// the new left node of the "root" after reconstruction
-				BSTNode right = par;// the new right node of the "Root" after reconstruction
-				BSTNode root = parL;// the new "root" of the subtree
-				BSTNode leftS = parL.getLeft();// the leftsibling of the key node being moved
-				BSTNode rightS = parL.getRight();// the right sibling of the key node being moved
-
-				// sets the children of the "root"
-				root.setLeft(left);
-				root.setRight(right);
-				root.setParent(gp.getParent());// sets the roots parent equal to the gp parent
-
-				// sets the parents of the children to the root
-				left.setParent(root);
-				right.setParent(root);
-
-				// assigns the old siblings equal to the children of the roots children
-				left.setRight(leftS);
-				right.setLeft(rightS);
-
-				// sets the roots color equal to
-				root.setRed(false);
-				left.setRed(true);
-				return;
+	public BatchOutcome[] removeAll(List<? extends K> keys) {
+		BatchOutcome[] outcomes = new BatchOutcome[keys.size()];
+		BSTNode<K, V> finger = null;// node the last search ended at
+
+		for (int index : sortedBatch(keys, outcomes)) {
+			K key = keys.get(index);
+			BSTNode<K, V> last = descend(fingerStart(finger, key), key);
+
+			if (last == null || key.compareTo(last.getKey()) != 0) {
+				outcomes[index] = BatchOutcome.NOT_FOUND;
+				finger = last;
+				continue;
 			}
+			// a node with two children stays in the tree holding its predecessor, which
+			// is below every later key; otherwise the successor stays, and a later key
+			// below it cannot be in the tree, so either is a finger for the next key
+			BSTNode<K, V> survivor = last.getLeft() != null && last.getRight() != null ? last : successor(last);
+			size--;
+			modCount++;
+			removeHelp(last);
+			outcomes[index] = BatchOutcome.REMOVED;
+			finger = survivor;
+		}
+
+		// only runs when assertions are enabled
+		assert verifyInvariants();
+		return outcomes;
+	}
+
+	/**
+	 * Looks up a batch of keys, handling them in sorted order with each search
+	 * starting from where the previous one ended
+	 * 
+	 * @param keys the keys to look up, in any order
+	 * @return outcome per key, in the order of keys: FOUND, NOT_FOUND or NULL_KEY
+	 */
+	public BatchOutcome[] containsAll(List<? extends K> keys) {
+		return lookupAll(keys, null);
+	}
+
+	/**
+	 * Looks up the values of a batch of keys, handling them in sorted order with
+	 * each search starting from where the previous one ended
+	 * 
+	 * @param keys   the keys to look up, in any order
+	 * @param values list the values are added to, one per key in the order of keys,
+	 *               with null for keys that are not FOUND
+	 * @return outcome per key, in the order of keys: FOUND, NOT_FOUND or NULL_KEY
+	 */
+	public BatchOutcome[] getAll(List<? extends K> keys, List<? super V> values) {
+		Object[] found = new Object[keys.size()];
+		BatchOutcome[] outcomes = lookupAll(keys, found);
+		for (Object value : found) {
+			@SuppressWarnings("unchecked")
+			V v = (V) value;
+			values.add(v);
+		}
+		return outcomes;
+	}
+
+	// helper methods
+	/**
+	 * returns the root node, for readers in this package that walk the tree
+	 * themselves
+	 * 
+	 * @return the root, null if the tree is empty
+	 */
+	BSTNode<K, V> getRoot() {
+		return root;
+	}
+
+	/**
+	 * returns the node of a given key in the tree if it exists. The tree is walked
+	 * once from the root using the key itself, so no probe node is created and
+	 * every level costs a single comparison.
+	 * 
+	 * @param key the key to be found, must not be null
+	 * @return BSTNode of the key found, else null
+	 */
+	private BSTNode<K, V> getNode(K key) {
+
+		BSTNode<K, V> curr = root;
+		int comparisons = 0;
+
+		while (curr != null) {
+			int cmp = key.compareTo(curr.getKey());
+			comparisons++;
+
+			// checks if they are both equal
+			if (cmp == 0) {
+				diagnostics.onComparisons(comparisons);
+				diagnostics.onHit();
+				return curr;
+			}
+
+			// goes left if the key is smaller than the current node, right otherwise
+			curr = cmp < 0 ? curr.getLeft() : curr.getRight();
+		}
+
+		// otherwise returns null if all else fails
+		diagnostics.onComparisons(comparisons);
+		diagnostics.onMiss();
+		return null;
+	}
+
+	/**
+	 * returns the node of a given key in the tree, throwing if it does not exist
+	 * 
+	 * @param key the key to be found, must not be null
+	 * @return BSTNode of the key found
+	 * @throws KeyNotFoundException if no node holds the key
+	 */
+	private BSTNode<K, V> getExistingNode(K key) throws KeyNotFoundException {
+		BSTNode<K, V> found = getNode(key);
+		if (found == null) {
+			throw new StacklessKeyNotFoundException();
+		}
+		return found;
+	}
+
+	/**
+	 * links a new node below the given parent and restores the red black
+	 * properties
+	 * 
+	 * @param compParent the node the new node hangs from
+	 * @param comp       the new node
+	 * @param cmp        the result of comparing the new key to the parent key, which
+	 *                   picks the side
+	 */
+	private void attach(BSTNode<K, V> compParent, BSTNode<K, V> comp, int cmp) {
+
+		// links the new node to the parent on the side the last comparison chose
+		comp.setParent(compParent);
+		if (cmp > 0) {
+			compParent.setRight(comp);
+		} else {
+			compParent.setLeft(comp);
+		}
+
+		// checks if this certain case of the RBT Tree was violation: Red parent red
+		// child
+		redPropViolation(comp);
+
+		// rotated nodes already have their new heights and sizes, so only the path
+		// back up from the new node can still be out of date
+		updatePath(compParent);
+	}
+
+	/**
+	 * rotates the subtree rooted at the given node to the left, so its right child
+	 * takes its place
+	 * 
+	 * @param curr the root of the subtree to rotate
+	 */
+	private void rotateLeft(BSTNode<K, V> curr) {
+
+		BSTNode<K, V> right = curr.getRight();// the node that moves up into currs place
+
+		// the left subtree of the right node moves under curr
+		curr.setRight(right.getLeft());
+		if (right.getLeft() != null) {
+			right.getLeft().setParent(curr);
+		}
+
+		// the right node takes currs place under its parent, or becomes the root
+		replaceChild(curr, right);
+
+		right.setLeft(curr);
+		curr.setParent(right);
+
+		// curr is now below right, so it is updated first
+		curr.update();
+		right.update();
+		diagnostics.onRotation();
+	}
+
+	/**
+	 * rotates the subtree rooted at the given node to the right, so its left child
+	 * takes its place
+	 * 
+	 * @param curr the root of the subtree to rotate
+	 */
+	private void rotateRight(BSTNode<K, V> curr) {
+
+		BSTNode<K, V> left = curr.getLeft();// the node that moves up into currs place
+
+		// the right subtree of the left node moves under curr
+		curr.setLeft(left.getRight());
+		if (left.getRight() != null) {
+			left.getRight().setParent(curr);
+		}
+
+		// the left node takes currs place under its parent, or becomes the root
+		replaceChild(curr, left);
+
+		left.setRight(curr);
+		curr.setParent(left);
+
+		// curr is now below left, so it is updated first
+		curr.update();
+		left.update();
+		diagnostics.onRotation();
+	}
+
+	/**
+	 * puts the replacement node where the old node hangs from its parent, updating
+	 * the root if the old node was the root
+	 * 
+	 * @param old         the node being replaced
+	 * @param replacement the node taking its place, may be null
+	 */
+	private void replaceChild(BSTNode<K, V> old, BSTNode<K, V> replacement) {
+
+		BSTNode<K, V> par = old.getParent();
+		if (replacement != null) {
+			replacement.setParent(par);
+		}
+
+		if (par == null) {
+			root = replacement;
+		} else if (par.getLeft() == old) {
+			par.setLeft(replacement);
+		} else {
+			par.setRight(replacement);
 		}
 	}
 
 	/**
-	 * method used to recolor certain nodes when inserted into a tree that has a
+	 * recomputes the heights and subtree sizes of the given node and every node
+	 * above it up to the root, which is O(log n) nodes
+	 * 
+	 * @param curr the lowest node that may be out of date, may be null
+	 */
+	private static <K extends Comparable<K>, V> void updatePath(BSTNode<K, V> curr) {
+		while (curr != null) {
+			curr.update();
+			curr = curr.getParent();
+		}
+	}
+
+	/**
+	 * method used to recolor the parent, uncle and grandparent of a red node that
+	 * has a red parent and a red uncle, which moves the violation up to the
+	 * grandparent
 	 * 
 	 * @param curr
 	 */
-	private static void recolor(BSTNode curr) {
+	private static <K extends Comparable<K>, V> void recolor(BSTNode<K, V> curr) {
 
 		// creates three nodes that reference all the surrounding nodes of the parent
 		// for easy access
-		BSTNode par = curr.getParent();
-		BSTNode parR = par.getRight();
-		BSTNode parL = par.getLeft();
-		BSTNode gp = par.getParent();
+		BSTNode<K, V> par = curr.getParent();
+		BSTNode<K, V> gp = par.getParent();
+		BSTNode<K, V> uncle = par == gp.getLeft() ? gp.getRight() : gp.getLeft();
+
+		// sets the colors of the four nodes at hand so the top and bottom nodes are
+		// red, and anything in between is black
+		par.setRed(false);
+		uncle.setRed(false);
+		gp.setRed(true);
+	}
+
+	/**
+	 * Helper method that removes the given node from a tree and restores the red
+	 * black properties. A node with two children takes the key and value of its in
+	 * order predecessor, which is then removed in its place, so the node that is
+	 * unlinked always has at most one child.
+	 * 
+	 * @param curr the node to be removed, already found by the single lookup descent
+	 */
+	private void removeHelp(BSTNode<K, V> curr) {
+
+		// This is now removing a node from a tree that has children on either side,
+		// using the in order predecessor.
+		if (curr.getLeft() != null && curr.getRight() != null) {
+			BSTNode<K, V> pred = inOrderPred(curr.getLeft());
+			curr.setKey(pred.getKey());
+			curr.setValue(pred.getValue());
+			curr = pred;
+		}
 
-		// checks if the current parent node is the right child of the grandparent
-		if (par == gp.getRight()) {
+		// the only child of the node, if it has one, moves up into its place
+		BSTNode<K, V> child = curr.getLeft() != null ? curr.getLeft() : curr.getRight();
 
-			// in the case that the gp is the root of the tree
-			if (gp.getParent() == null) {
-				// sets both children of the root equal to black
-				gp.getLeft().setRed(false);
-				par.setRed(false);
+		// the lowest node whose subtree lost a level, if any
+		BSTNode<K, V> changed;
+
+		if (child != null) {
+			replaceChild(curr, child);
+			// removing a black node leaves its path one black short
+			if (!curr.isRed()) {
+				blackViolation(child);
+			}
+			changed = child.getParent();
+		} else if (curr.getParent() == null) {
+			// the node was the only one in the tree
+			root = null;
+			changed = null;
+		} else {
+			// a black leaf is fixed while it is still linked, so it can stand in for the
+			// missing black node, and is unlinked afterwards
+			if (!curr.isRed()) {
+				blackViolation(curr);
 			}
+			changed = curr.getParent();
+			replaceChild(curr, null);
+		}
+
+		// rotated nodes already have their new heights and sizes, so only the path
+		// back up from the removed node can still be out of date
+		updatePath(changed);
 
-			else {// sets the colors of the four nodes at hand so the top and bottom nodes are
-					// red, and anything in between is black
-				gp.setRed(true);
-				par.setRed(false);
-				gp.getLeft().setRed(false);
-				curr.setRed(true);
+		// drops every reference so the removed node and its entry can be collected
+		curr.setParent(null);
+		curr.setLeft(null);
+		curr.setRight(null);
+		curr.setKey(null);
+		curr.setValue(null);
+	}
+
+	/**
+	 * throws if the given key is null
+	 * 
+	 * @param key the key to check
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	private static void checkKey(Object key) throws IllegalNullKeyException {
+		if (key == null) {
+			throw new IllegalNullKeyException();
+		}
+	}
+
+	/**
+	 * returns the key of the given node
+	 * 
+	 * @param node the node, may be null
+	 * @return the key of the node, null if there is no node
+	 */
+	private static <K extends Comparable<K>, V> K keyOf(BSTNode<K, V> node) {
+		return node == null ? null : node.getKey();
+	}
+
+	/**
+	 * checks whether the node a descent ended at holds the key
+	 * 
+	 * @param last the node returned by descend, may be null
+	 * @param key  the key that was searched for
+	 * @return true if the node holds the key
+	 */
+	private static <K extends Comparable<K>, V> boolean isNodeOf(BSTNode<K, V> last, K key) {
+		return last != null && key.compareTo(last.getKey()) == 0;
+	}
+
+	/**
+	 * adds a new node for the key below the node a descent for it ended at
+	 * 
+	 * @param last  the last node visited by descend, null if the tree is empty
+	 * @param key   the new key
+	 * @param value the value of the new key
+	 */
+	private void insertBelow(BSTNode<K, V> last, K key, V value) {
+		BSTNode<K, V> comp = new BSTNode<K, V>(key, value);
+		if (last == null) {
+			root = comp;
+			root.setRed(false);
+		} else {
+			attach(last, comp, key.compareTo(last.getKey()));
+		}
+		size++;
+		modCount++;
+
+		// only runs when assertions are enabled
+		assert verifyInvariants();
+	}
+
+	/**
+	 * stores the result of compute or merge: a null value removes the key, any
+	 * other value replaces or inserts it
+	 * 
+	 * @param last    the node the descent for the key ended at
+	 * @param present whether last holds the key
+	 * @param key     the key being updated
+	 * @param value   the new value
+	 * @return the new value
+	 */
+	private V store(BSTNode<K, V> last, boolean present, K key, V value) {
+		if (value == null) {
+			if (present) {
+				size--;
+				modCount++;
+				removeHelp(last);
+				// only runs when assertions are enabled
+				assert verifyInvariants();
 			}
+		} else if (present) {
+			last.setValue(value);
+		} else {
+			insertBelow(last, key, value);
 		}
+		return value;
+	}
 
-		// case for the parent being the left child of the root node of the subtree
-		else {
+	/**
+	 * throws if the tree was changed since the given modCount was read
+	 * 
+	 * @param expectedModCount the modCount read before calling user code
+	 */
+	private void checkModCount(int expectedModCount) {
+		if (modCount != expectedModCount) {
+			throw new ConcurrentModificationException();
+		}
+	}
 
-			// in the case that the gp is the root of the tree
-			if (gp.getParent() == null) {
-				// sets both children of the root equal to black
-				gp.getRight().setRed(false);
-				par.setRed(false);
+	/**
+	 * looks up every key of a batch in sorted order using finger searches
+	 * 
+	 * @param keys   the keys to look up
+	 * @param values if not null, filled with the value of each key found
+	 * @return outcome per key, in the order of keys
+	 */
+	private BatchOutcome[] lookupAll(List<? extends K> keys, Object[] values) {
+		BatchOutcome[] outcomes = new BatchOutcome[keys.size()];
+		BSTNode<K, V> finger = null;// node the last search ended at
+
+		for (int index : sortedBatch(keys, outcomes)) {
+			K key = keys.get(index);
+			BSTNode<K, V> last = descend(fingerStart(finger, key), key);
+			finger = last;
+
+			if (last != null && key.compareTo(last.getKey()) == 0) {
+				outcomes[index] = BatchOutcome.FOUND;
+				if (values != null) {
+					values[index] = last.getValue();
+				}
+			} else {
+				outcomes[index] = BatchOutcome.NOT_FOUND;
 			}
+		}
+		return outcomes;
+	}
 
-			else {// sets the colors of the four nodes at hand so the top and bottom nodes are
-					// red, and anything in between is black
-				gp.setRed(true);
-				par.setRed(false);
-				gp.getRight().setRed(false);
-				curr.setRed(true);
+	/**
+	 * orders the indexes of the non null keys of a batch by key, marking the null
+	 * keys as NULL_KEY. The sort is stable, so equal keys keep their batch order.
+	 * The keys are copied into an array once and the indexes are sorted as
+	 * primitives, and a batch that is already in order is not sorted at all.
+	 * 
+	 * @param keys     the keys of the batch
+	 * @param outcomes outcome per key, where null keys are marked
+	 * @return the indexes of the non null keys in sorted order of their keys
+	 */
+	private static <K extends Comparable<K>> int[] sortedBatch(List<? extends K> keys, BatchOutcome[] outcomes) {
+		Object[] batch = keys.toArray();
+		int[] order = new int[batch.length];
+		int count = 0;
+		boolean sorted = true;
+		for (int i = 0; i < batch.length; i++) {
+			if (batch[i] == null) {
+				outcomes[i] = BatchOutcome.NULL_KEY;
+			} else {
+				if (count > 0 && compareBatchKeys(batch, order[count - 1], i) > 0) {
+					sorted = false;
+				}
+				order[count++] = i;
 			}
 		}
+
+		int[] indexes = Arrays.copyOf(order, count);
+		if (!sorted) {
+			mergeSort(Arrays.copyOf(indexes, count), indexes, 0, count, batch);
+		}
+		return indexes;
 	}
 
 	/**
-	 * Helper method that removes the given node from a tree
+	 * stable merge sort of the indexes in [low, high) by the keys they point at.
+	 * Both arrays start with the same indexes; each level sorts the halves of one
+	 * into the other and merges them back, and the sorted range ends up in dest.
 	 * 
-	 * @param curr node that is currently being compared to
-	 * @param comp the node to be removed
+	 * @param src  the indexes to sort, used as scratch space
+	 * @param dest receives the sorted indexes
+	 * @param low  first position of the range
+	 * @param high position after the last of the range
+	 * @param keys the keys of the batch, by index
 	 */
-	private static void removeHelp(BSTNode curr, BSTNode comp) {
-		// checks if the current node is equal to the node to be removed
-		if (curr.getKey().compareTo(comp.getKey()) == 0) {
+	private static void mergeSort(int[] src, int[] dest, int low, int high, Object[] keys) {
+		// short ranges are sorted by insertion, which is stable as well
+		if (high - low < 8) {
+			for (int i = low + 1; i < high; i++) {
+				int index = dest[i];
+				int j = i;
+				while (j > low && compareBatchKeys(keys, dest[j - 1], index) > 0) {
+					dest[j] = dest[j - 1];
+					j--;
+				}
+				dest[j] = index;
+			}
+			return;
+		}
+
+		int mid = (low + high) >>> 1;
+		mergeSort(dest, src, low, mid, keys);
+		mergeSort(dest, src, mid, high, keys);
 
-			// checks if the current node is a leaf with no children
-			if (curr.getLeft() == null && curr.getRight() == null) {
-				curr = null;// removes the node
-				return;
+		// halves that are already in order only need copying
+		if (compareBatchKeys(keys, src[mid - 1], src[mid]) <= 0) {
+			System.arraycopy(src, low, dest, low, high - low);
+			return;
+		}
+
+		// takes from the left half on ties, which keeps equal keys in batch order
+		for (int i = low, p = low, q = mid; i < high; i++) {
+			if (q >= high || (p < mid && compareBatchKeys(keys, src[p], src[q]) <= 0)) {
+				dest[i] = src[p++];
+			} else {
+				dest[i] = src[q++];
 			}
+		}
+	}
+
+	/**
+	 * compares the keys of a batch at two indexes
+	 * 
+	 * @param keys the keys of the batch, all Comparable to each other
+	 * @param a    index of the first key
+	 * @param b    index of the second key
+	 * @return negative, zero or positive as the first key is below, equal to or
+	 *         above the second
+	 */
+	@SuppressWarnings("unchecked")
+	private static int compareBatchKeys(Object[] keys, int a, int b) {
+		return ((Comparable<Object>) keys[a]).compareTo(keys[b]);
+	}
+
+	/**
+	 * finds the node to start the search for a key from, given the node the search
+	 * for the previous, smaller or equal, key ended at. It climbs from that node
+	 * until it reaches a subtree whose keys are all below the key of its parent and
+	 * the parent key is above the new key; the new key then has to be in that
+	 * subtree, if it is anywhere.
+	 * 
+	 * @param finger the node the previous search ended at, null to use the root
+	 * @param key    the key being searched for
+	 * @return the root of the subtree to search
+	 */
+	private BSTNode<K, V> fingerStart(BSTNode<K, V> finger, K key) {
+		if (finger == null) {
+			return root;
+		}
 
-			/*
-			 * checks if there is a present right child or left child of the node, one not
-			 * the other. This covers the case of in order predecessors and successors in
-			 * certain situations
-			 */
-			if (curr.getLeft() == null && curr.getRight() != null) {
-				BSTNode temp = curr.getRight();// the temp node that will be the right child of the new node to be put
-												// in the removed nodes position
-				BSTNode newNode = inOrderSucc(temp);// gets the in order successor of the node
-				curr = newNode;// sets the current node equal to the in order successor
-				newNode.setRight(temp);// sets the right child of the new node to the old right child
-				return;
+		BSTNode<K, V> curr = finger;
+		while (curr.getParent() != null) {
+			BSTNode<K, V> par = curr.getParent();
+			if (curr == par.getLeft() && key.compareTo(par.getKey()) < 0) {
+				return curr;
 			}
-			if (curr.getLeft() != null && curr.getRight() == null) {
-				BSTNode temp = curr.getLeft();// the temp node that will be the left child of the new node to be put in
-												// the removed nodes position
-				BSTNode newNode = inOrderPred(temp);// gets the in order predecessor of the node
-				curr = newNode;// sets the current node equal to the in order predecessor
-				newNode.setLeft(temp);// sets the right child of the new node to the old right child
-				return;
+			curr = par;
+		}
+		return curr;
+	}
+
+	/**
+	 * walks down from the given node towards the key
+	 * 
+	 * @param curr the node to start from
+	 * @param key  the key to search for
+	 * @return the node holding the key, or the last node visited if it is not
+	 *         there, null only if curr is null
+	 */
+	private BSTNode<K, V> descend(BSTNode<K, V> curr, K key) {
+		BSTNode<K, V> last = null;
+		int comparisons = 0;
+
+		while (curr != null) {
+			last = curr;
+			int cmp = key.compareTo(curr.getKey());
+			comparisons++;
+			if (cmp == 0) {
+				diagnostics.onComparisons(comparisons);
+				diagnostics.onHit();
+				return last;
 			}
+			curr = cmp < 0 ? curr.getLeft() : curr.getRight();
+		}
+		diagnostics.onComparisons(comparisons);
+		diagnostics.onMiss();
+		return last;
+	}
 
-			// This is now removing a node from a tree that has children on either side,
-			// using the in order predecessor.
-			BSTNode temp = curr.getLeft();// the temp node that will be the left child of the new node to be put in the
-											// removed nodes position
-			BSTNode newNode = inOrderPred(temp);// gets the in order predecessor of the node
-			curr = newNode;// sets the current node equal to the in order predecessor
-			newNode.setLeft(temp);// sets the right child of the new node to the old right child
-			return;
+	/**
+	 * counts the keys below the given key in one descent from the root, adding up
+	 * the left subtrees passed on the way
+	 * 
+	 * @param key       the key to count below
+	 * @param inclusive whether a key equal to the given key is counted
+	 * @return number of keys below (or equal to) key
+	 */
+	private int countBelow(K key, boolean inclusive) {
+		BSTNode<K, V> curr = root;
+		int count = 0;
+
+		while (curr != null) {
+			int cmp = key.compareTo(curr.getKey());
+			if (cmp > 0 || (cmp == 0 && inclusive)) {
+				// the current node and its left subtree are all below the key
+				count += BSTNode.sizeOf(curr.getLeft()) + 1;
+				curr = curr.getRight();
+			} else {
+				curr = curr.getLeft();
+			}
 		}
+		return count;
+	}
 
-		// checks if the compared node is greater than the current node
-		if (comp.getKey().compareTo(curr.getKey()) > 0) {
-			removeHelp(curr.getRight(), comp);// recursively calls the method again on the right child of the current
-												// node
+	/**
+	 * returns the node with the largest key below the given key, in one descent
+	 * from the root
+	 * 
+	 * @param key       the key to search for
+	 * @param inclusive whether a node with the key itself can be returned
+	 * @return the floor (or lower) node, null if there is none
+	 */
+	private BSTNode<K, V> floorNode(K key, boolean inclusive) {
+		BSTNode<K, V> curr = root;
+		BSTNode<K, V> best = null;// the largest node below the key seen so far
+
+		while (curr != null) {
+			int cmp = key.compareTo(curr.getKey());
+			if (cmp > 0 || (cmp == 0 && inclusive)) {
+				// curr qualifies, anything closer is in its right subtree
+				best = curr;
+				curr = curr.getRight();
+			} else {
+				curr = curr.getLeft();
+			}
 		}
+		return best;
+	}
 
-		// checks if the compared node is less than the current node
-		if (comp.getKey().compareTo(curr.getKey()) < 0) {
-			removeHelp(curr.getLeft(), comp);// recursively calls the method again on the left child of the current node
+	/**
+	 * returns the node with the smallest key above the given key, in one descent
+	 * from the root
+	 * 
+	 * @param key       the key to search for
+	 * @param inclusive whether a node with the key itself can be returned
+	 * @return the ceiling (or higher) node, null if there is none
+	 */
+	private BSTNode<K, V> ceilingNode(K key, boolean inclusive) {
+		BSTNode<K, V> curr = root;
+		BSTNode<K, V> best = null;// the smallest node above the key seen so far
+
+		while (curr != null) {
+			int cmp = key.compareTo(curr.getKey());
+			if (cmp < 0 || (cmp == 0 && inclusive)) {
+				// curr qualifies, anything closer is in its left subtree
+				best = curr;
+				curr = curr.getLeft();
+			} else {
+				curr = curr.getRight();
+			}
 		}
+		return best;
 	}
 
 	/**
-	 * retrieves and removes the reference to the in order predecessor of the given
-	 * node for the BST
+	 * returns the node with the smallest key in the tree
 	 * 
-	 * @param curr the node that needs the in order predecessor
+	 * @return the left most node, null if the tree is empty
+	 */
+	private BSTNode<K, V> firstNode() {
+		return root == null ? null : inOrderSucc(root);
+	}
+
+	/**
+	 * returns the node that comes after the given node in sorted order by walking
+	 * the parent links, without using a stack
+	 * 
+	 * @param curr the node to start from
+	 * @return the next node, null if curr is the last one
 	 */
-	private static BSTNode inOrderPred(BSTNode curr) {
+	private static <K extends Comparable<K>, V> BSTNode<K, V> successor(BSTNode<K, V> curr) {
 
-		// checks if the current nodes right node is null or not and returns the current
-		// node if so. also removes that node, given that this will only be used in the
-		// remove method
-		if (curr.getRight() == null) {
-			BSTNode temp = curr;
-			curr = curr.getLeft();
-			return temp;
+		// the next node is the left most node of the right subtree if there is one
+		if (curr.getRight() != null) {
+			return inOrderSucc(curr.getRight());
+		}
+
+		// otherwise it is the first ancestor reached from its left subtree
+		BSTNode<K, V> par = curr.getParent();
+		while (par != null && curr == par.getRight()) {
+			curr = par;
+			par = par.getParent();
 		}
-		// recursively calls the method again if not
-		return inOrderPred(curr.getRight());
+		return par;
 	}
 
 	/**
-	 * retrieves and removes the reference to the in order predecessor of the given
-	 * node for the bst
+	 * retrieves the in order successor of the given node for the bst, which is the
+	 * left most node of the given subtree
 	 * 
 	 * @param curr
 	 * @return Node in order successor
 	 */
-	private static BSTNode inOrderSucc(BSTNode curr) {
+	private static <K extends Comparable<K>, V> BSTNode<K, V> inOrderSucc(BSTNode<K, V> curr) {
 
-		// checks if the current nodes left node is null or not and returns the current
-		// node if so. also removes that node, given that this will only be used in the
-		// remove method
-		if (curr.getLeft() == null) {
-			BSTNode temp = curr;
-			curr = curr.getRight();
-			return temp;
+		// walks left until the current nodes left node is null
+		while (curr.getLeft() != null) {
+			curr = curr.getLeft();
 		}
-		// recursively calls the method again if not
-		return inOrderSucc(curr.getLeft());
+		return curr;
 	}
 
-	private static void redPropViolation(BSTNode curr) {
-		// creates three nodes that reference all the surrounding nodes of the parent
-		// for easy access
-		if(curr.getParent() == null) {
-			return;
+	/**
+	 * retrieves the in order predecessor of the given node for the BST, which is the
+	 * right most node of the given subtree
+	 * 
+	 * @param curr the node that needs the in order predecessor
+	 */
+	private static <K extends Comparable<K>, V> BSTNode<K, V> inOrderPred(BSTNode<K, V> curr) {
+
+		// walks right until the current nodes right node is null
+		while (curr.getRight() != null) {
+			curr = curr.getRight();
 		}
-		BSTNode par = curr.getParent();
-		BSTNode parR = par.getRight();
-		BSTNode parL = par.getLeft();
-		BSTNode gp = par.getParent();
+		return curr;
+	}
+
+	/**
+	 * Walks up from the given node fixing red parent red child violations until the
+	 * tree is valid again or the root is reached. At most two rotations are made, the
+	 * rest of the walk only recolors.
+	 * 
+	 * @param curr the node that may be in violation
+	 */
+	private void redPropViolation(BSTNode<K, V> curr) {
 
-		if (curr.isRed() && par.isRed()) {
-			if (curr == par.getRight()) {
-				if (par.getLeft() == null || par.getRight().isRed()) {
+		// keeps moving up while the parent is red, a red parent always has a parent
+		// itself since the root is black
+		while (curr.getParent() != null && curr.getParent().isRed()) {
+
+			BSTNode<K, V> par = curr.getParent();
+			BSTNode<K, V> gp = par.getParent();
+
+			if (par == gp.getLeft()) {
+				if (isRed(gp.getRight())) {
+					// red uncle, recolor and continue from the grandparent
 					recolor(curr);
-					redPropViolation(par);r
-					return;
+					curr = gp;
 				} else {
-					rotateLeft(curr);
-					redPropViolation(par);
-					return;
+					// left-right case is turned into the left-left case first
+					if (curr == par.getRight()) {
+						rotateLeft(par);
+						curr = par;
+						par = curr.getParent();
+					}
+					par.setRed(false);
+					gp.setRed(true);
+					rotateRight(gp);
 				}
 			} else {
-				if (par.getRight() == null || par.getLeft().isRed()) {
+				if (isRed(gp.getLeft())) {
+					// red uncle, recolor and continue from the grandparent
 					recolor(curr);
-					redPropViolation(par);
-					return;
+					curr = gp;
 				} else {
-					rotateRight(curr);
-					redPropViolation(par);
-					return;
+					// right-left case is turned into the right-right case first
+					if (curr == par.getLeft()) {
+						rotateRight(par);
+						curr = par;
+						par = curr.getParent();
+					}
+					par.setRed(false);
+					gp.setRed(true);
+					rotateLeft(gp);
 				}
 			}
 		}
-		return;
+
+		// the root is always black
+		root.setRed(false);
 	}
 
-	private static int heightHelper(BSTNode node) {
-		if (node == null)
-			return 0;
-		else {
-			// gets the depth of the tree with left and right nodes
-			int lDepth = heightHelper(node.getLeft());
-			int rDepth = heightHelper(node.getRight());
+	/**
+	 * Walks up from the given node fixing the missing black node left on its path by
+	 * a removal. Every step either fixes the violation with at most three rotations
+	 * or moves it one level up.
+	 * 
+	 * @param curr the node whose path is one black node short
+	 */
+	private void blackViolation(BSTNode<K, V> curr) {
 
-			/* use the larger one */
-			if (lDepth > rDepth)
-				return (lDepth + 1);
-			else
-				return (rDepth + 1);
-		}
-	}
+		while (curr != root && !curr.isRed()) {
 
-	private void inOrderTraversal(List<K> list, BSTNode node) {
+			BSTNode<K, V> par = curr.getParent();
 
-		if (node == null)
-			return ;
+			if (curr == par.getLeft()) {
+				BSTNode<K, V> sib = par.getRight();
 
-		// first recur on left subtree
-		inOrderTraversal(list, node.getLeft());
+				// a red sibling is rotated up so the sibling becomes black
+				if (isRed(sib)) {
+					sib.setRed(false);
+					par.setRed(true);
+					rotateLeft(par);
+					sib = par.getRight();
+				}
 
-		list.add((K) node.getKey());
+				if (!isRed(sib.getLeft()) && !isRed(sib.getRight())) {
+					// the sibling can give up its black, moving the problem to the parent
+					sib.setRed(true);
+					curr = par;
+				} else {
+					if (!isRed(sib.getRight())) {
+						sib.getLeft().setRed(false);
+						sib.setRed(true);
+						rotateRight(sib);
+						sib = par.getRight();
+					}
+					sib.setRed(par.isRed());
+					par.setRed(false);
+					sib.getRight().setRed(false);
+					rotateLeft(par);
+					curr = root;
+				}
+			} else {
+				BSTNode<K, V> sib = par.getLeft();
+
+				// a red sibling is rotated up so the sibling becomes black
+				if (isRed(sib)) {
+					sib.setRed(false);
+					par.setRed(true);
+					rotateRight(par);
+					sib = par.getLeft();
+				}
 
-		// then recur on right subtree
-		inOrderTraversal(list, node.getRight());
+				if (!isRed(sib.getLeft()) && !isRed(sib.getRight())) {
+					// the sibling can give up its black, moving the problem to the parent
+					sib.setRed(true);
+					curr = par;
+				} else {
+					if (!isRed(sib.getLeft())) {
+						sib.getRight().setRed(false);
+						sib.setRed(true);
+						rotateLeft(sib);
+						sib = par.getLeft();
+					}
+					sib.setRed(par.isRed());
+					par.setRed(false);
+					sib.getLeft().setRed(false);
+					rotateRight(par);
+					curr = root;
+				}
+			}
+		}
 
-		return;
+		curr.setRed(false);
 	}
 
-	private void preOrderTraversal(List<K> list, BSTNode node) {
+	/**
+	 * Checks every red black and binary search tree property of the whole tree: the
+	 * root is black and has no parent, no red node has a red child, every path from
+	 * the root down to a missing child has the same number of black nodes, every
+	 * child points back to its parent, every cached height is one more than the
+	 * taller child, every subtree size is one more than the sizes of the children
+	 * together, the keys are in strictly increasing order and the number of
+	 * nodes matches numKeys(). Runs in O(n), so it is only called
+	 * after each change when assertions are enabled (java -ea), and by the tests.
+	 * 
+	 * @return true, so it can be used in an assert statement
+	 * @throws IllegalStateException describing the first property found broken
+	 */
+	boolean verifyInvariants() {
 
-		if (node == null)
-			return;
+		if (root == null) {
+			if (size != 0) {
+				throw new IllegalStateException("empty tree has size " + size);
+			}
+			return true;
+		}
+		if (root.isRed()) {
+			throw new IllegalStateException("root " + root.getKey() + " is red");
+		}
+		if (root.getParent() != null) {
+			throw new IllegalStateException("root " + root.getKey() + " has a parent");
+		}
+
+		// walks the tree in order with a stack, carrying the black count of each path
+		Deque<BSTNode<K, V>> nodes = new ArrayDeque<>();
+		Deque<Integer> blacks = new ArrayDeque<>();
+		BSTNode<K, V> node = root;
+		int black = 0;
+		int pathBlacks = -1;// black nodes on every path, set by the first path found
+		int count = 0;
+		K previous = null;
+
+		while (node != null || !nodes.isEmpty()) {
+
+			// goes down the left side, checking each node on the way
+			while (node != null) {
+				black += node.isRed() ? 0 : 1;
+				checkNode(node);
+				nodes.push(node);
+				blacks.push(black);
+				if (node.getLeft() == null) {
+					pathBlacks = checkPathBlacks(node, black, pathBlacks);
+				}
+				node = node.getLeft();
+			}
 
-		list.add((K) node.getKey());
+			node = nodes.pop();
+			black = blacks.pop();
+			count++;
 
-		// first recur on left subtree
-		inOrderTraversal(list, node.getLeft());
+			if (previous != null && previous.compareTo(node.getKey()) >= 0) {
+				throw new IllegalStateException("key " + node.getKey() + " comes after " + previous);
+			}
+			previous = node.getKey();
 
-		// then recur on right subtree
-		inOrderTraversal(list, node.getRight());
+			if (node.getRight() == null) {
+				pathBlacks = checkPathBlacks(node, black, pathBlacks);
+			}
+			node = node.getRight();
+		}
 
-		return;
+		if (count != size) {
+			throw new IllegalStateException(count + " nodes reachable but size is " + size);
+		}
+		return true;
 	}
 
-	private void postOrderTraversal(List<K> list, BSTNode node) {
+	/**
+	 * checks the links and colors between a node and its children
+	 * 
+	 * @param node the node to check
+	 */
+	private static <K extends Comparable<K>, V> void checkNode(BSTNode<K, V> node) {
+		BSTNode<K, V> left = node.getLeft();
+		BSTNode<K, V> right = node.getRight();
+
+		if (left != null && left.getParent() != node) {
+			throw new IllegalStateException("left child " + left.getKey() + " does not point back to " + node.getKey());
+		}
+		if (right != null && right.getParent() != node) {
+			throw new IllegalStateException("right child " + right.getKey() + " does not point back to " + node.getKey());
+		}
+		if (node.isRed() && (isRed(left) || isRed(right))) {
+			throw new IllegalStateException("red node " + node.getKey() + " has a red child");
+		}
+		int height = Math.max(left == null ? 0 : left.getHeight(), right == null ? 0 : right.getHeight()) + 1;
+		if (node.getHeight() != height) {
+			throw new IllegalStateException(
+					"node " + node.getKey() + " has height " + node.getHeight() + " instead of " + height);
+		}
+		int subtreeSize = BSTNode.sizeOf(left) + BSTNode.sizeOf(right) + 1;
+		if (node.getSubtreeSize() != subtreeSize) {
+			throw new IllegalStateException("node " + node.getKey() + " has subtree size " + node.getSubtreeSize()
+					+ " instead of " + subtreeSize);
+		}
+	}
+
+	/**
+	 * checks that a path ending below the given node has as many black nodes as the
+	 * paths seen before it
+	 * 
+	 * @param node       the last node of the path
+	 * @param black      the number of black nodes on the path
+	 * @param pathBlacks the number of black nodes on earlier paths, -1 if none yet
+	 * @return the number of black nodes every path has
+	 */
+	private static int checkPathBlacks(BSTNode<?, ?> node, int black, int pathBlacks) {
+		if (pathBlacks != -1 && pathBlacks != black) {
+			throw new IllegalStateException(
+					"path below " + node.getKey() + " has " + black + " black nodes instead of " + pathBlacks);
+		}
+		return black;
+	}
+
+	/**
+	 * returns whether the given node is red, treating missing nodes as black
+	 * 
+	 * @param node the node to check, may be null
+	 * @return true if the node exists and is red
+	 */
+	private static boolean isRed(BSTNode<?, ?> node) {
+		return node != null && node.isRed();
+	}
+
+	/**
+	 * recomputes the height of the whole tree by visiting every node, used to check
+	 * the cached height
+	 * 
+	 * @return the number of levels in the tree
+	 */
+	int computeHeight() {
+		return heightHelper(root);
+	}
 
+	/**
+	 * Counts the levels of the tree under the given node one level at a time, so
+	 * only a queue of the widest level is kept instead of a call per level
+	 * 
+	 * @param node the root of the subtree
+	 * @return the number of levels in the subtree
+	 */
+	private static int heightHelper(BSTNode<?, ?> node) {
 		if (node == null)
+			return 0;
+
+		Queue<BSTNode<?, ?>> nodes = new ArrayDeque<>();
+		nodes.add(node);
+		int height = 0;
+
+		while (!nodes.isEmpty()) {
+			// removes every node of the current level and queues the level below
+			for (int i = nodes.size(); i > 0; i--) {
+				BSTNode<?, ?> curr = nodes.poll();
+				if (curr.getLeft() != null) {
+					nodes.add(curr.getLeft());
+				}
+				if (curr.getRight() != null) {
+					nodes.add(curr.getRight());
+				}
+			}
+			height++;
+		}
+		return height;
+	}
+
+	/**
+	 * Visits every node once, level by level from the root down and left to right
+	 * within a level, passing the keys to the action.
+	 * 
+	 * @param action    called once per key
+	 * @param levelEnds if not null, filled with the number of keys visited by the
+	 *                  end of each level, so must have room for getHeight() entries
+	 */
+	private void levelOrderTraversal(Consumer<? super K> action, int[] levelEnds) {
+		if (root == null)
 			return;
 
-		list.add((K) node.getKey());
-
-		// first recur on left subtree
-		inOrderTraversal(list, node.getLeft());
-
-		// then recur on right subtree
-		inOrderTraversal(list, node.getRight());
-
-		return;
-	}
-
-	private void levelOrderTraversal(List<K> list, BSTNode root, int level){
-		if (root == null) 
-	        return; 
-	    if (level == 1) 
-	        list.add((K) root.getKey()); 
-	    else if (level > 1) 
-	    { 
-	        levelOrderTraversal(list,root.getLeft(), level-1); 
-	        levelOrderTraversal(list,root.getRight(), level-1); 
-	    } 
-	}
-	
-	private List<List<BSTNode>> traverseLevels(BSTNode root) {
-	    if (root == null) {
-	        return Collections.emptyList();
-	    }
-	    List<List<BSTNode>> levels = new LinkedList<>();
-
-	    Queue<BSTNode> nodes = new LinkedList<>();
-	    nodes.add(root);
-
-	    while (!nodes.isEmpty()) {
-	        List<BSTNode> level = new ArrayList<>(nodes.size());
-	        levels.add(level);
-
-	        for (BSTNode node : new ArrayList<>(nodes)) {
-	            level.add(node);
-	            if (node.getLeft() != null) {
-	                nodes.add(node.getLeft());
-	            }
-	            if (node.getRight() != null) {
-	                nodes.add(node.getRight());
-	            }
-	            nodes.poll();
-	        }
-	    }
-	    return levels;
-	}
-	
-	private void printHelper() {
-		    List<List<BSTNode>> levels = traverseLevels(root);
+		// the widest level of a tree holds at most half of its nodes plus one
+		Queue<BSTNode<K, V>> nodes = new ArrayDeque<>(size / 2 + 1);
+		nodes.add(root);
+		int level = 0;
+		int visited = 0;
+
+		while (!nodes.isEmpty()) {
+			// removes every node of the current level and queues the level below
+			for (int i = nodes.size(); i > 0; i--) {
+				BSTNode<K, V> curr = nodes.poll();
+				action.accept(curr.getKey());
+				visited++;
+				if (curr.getLeft() != null) {
+					nodes.add(curr.getLeft());
+				}
+				if (curr.getRight() != null) {
+					nodes.add(curr.getRight());
+				}
+			}
+			if (levelEnds != null) {
+				levelEnds[level] = visited;
+			}
+			level++;
+		}
+	}
 
-		    for (List<BSTNode> level: levels) {
-		        for (BSTNode node : level) {
-		            System.out.print(node.getKey() + " ");
-		        }
-		        System.out.println();
-		    }
-		
+	/**
+	 * prints the keys of each level of the tree on its own line
+	 */
+	private void printHelper() {
+		List<K> keys = new ArrayList<K>(size);
+		int[] levelEnds = new int[getHeight()];
+		levelOrderTraversal(keys::add, levelEnds);
+
+		StringBuilder out = new StringBuilder();
+		int start = 0;
+		for (int end : levelEnds) {
+			for (int i = start; i < end; i++) {
+				out.append(keys.get(i)).append(' ');
+			}
+			out.append(System.lineSeparator());
+			start = end;
+		}
+		System.out.print(out);
 	}
 }
-
@@ -0,0 +1,549 @@
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Small benchmark of the tree implementations, run from the command line with
+ *
+ * java BALSTBenchmark [scenario] [keys]
+ *
+ * where scenario is insert, memory, lookup, reopen, wal, concurrent, snapshot or
+ * all (the default) and keys is the number of keys in each tree (1000000 by
+ * default). Every scenario warms up before it measures and prints one line per
+ * implementation. Run it with a fixed heap (-Xms equal to -Xmx) so memory
+ * numbers are not disturbed by the heap resizing.
+ */
+public class BALSTBenchmark {
+
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int MEASURED_ROUNDS = 5;
+	private static final int WAL_KEYS = 20000; // most keys inserted by the wal scenario
+	private static final int CONCURRENT_MILLIS = 1000; // length of a concurrent round
+
+	// the implementations compared by every scenario, in the order they are printed
+	private static final Map<String, Supplier<BALSTADT<Integer, Integer>>> TREES = new LinkedHashMap<>();
+	static {
+		TREES.put("BALST", BALST::new);
+		TREES.put("ArrayBALST", ArrayBALST::new);
+		TREES.put("OffHeapBALST", () -> new OffHeapBALST<Integer, Integer>(BALSTCodec.INT, BALSTCodec.INT));
+		TREES.put("PersistentBALST", PersistentBALST::new);
+	}
+
+	private static long sink; // keeps the results of lookups alive
+	private static WeakReference<Object> lastMeasured; // tree measured last by memory
+
+	/**
+	 * Runs the scenario named by the first argument
+	 *
+	 * @param args scenario and number of keys, both optional
+	 * @throws Exception if a tree rejects a key
+	 */
+	public static void main(String[] args) throws Exception {
+		String scenario = args.length > 0 ? args[0] : "all";
+		int n = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+		Integer[] keys = shuffledKeys(n, 42);
+
+		switch (scenario) {
+		case "insert":
+			insert(keys);
+			break;
+		case "memory":
+			memory(keys);
+			break;
+		case "lookup":
+			lookup(keys);
+			break;
+		case "reopen":
+			reopen(keys);
+			break;
+		case "wal":
+			wal(keys);
+			break;
+		case "concurrent":
+			concurrent(keys);
+			break;
+		case "snapshot":
+			snapshot(keys);
+			break;
+		case "all":
+			insert(keys);
+			memory(keys);
+			lookup(keys);
+			reopen(keys);
+			wal(keys);
+			concurrent(keys);
+			snapshot(keys);
+			break;
+		default:
+			throw new IllegalArgumentException("unknown scenario " + scenario);
+		}
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Prints the average time of an insert and the final height of each tree when
+	 * the keys come in sorted, reverse sorted and random order
+	 *
+	 * @param keys keys to insert, in random order
+	 * @throws Exception if a tree rejects a key
+	 */
+	static void insert(Integer[] keys) throws Exception {
+		Integer[] sorted = keys.clone();
+		Arrays.sort(sorted);
+		Integer[] reversed = sorted.clone();
+		Collections.reverse(Arrays.asList(reversed));
+		Map<String, Integer[]> orders = new LinkedHashMap<>();
+		orders.put("sorted", sorted);
+		orders.put("reversed", reversed);
+		orders.put("random", keys);
+
+		for (Map.Entry<String, Integer[]> order : orders.entrySet()) {
+			for (Map.Entry<String, Supplier<BALSTADT<Integer, Integer>>> tree : TREES.entrySet()) {
+				double[] rounds = new double[MEASURED_ROUNDS];
+				int height = 0;
+				for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+					long start = System.nanoTime();
+					BALSTADT<Integer, Integer> balst = build(tree.getValue(), order.getValue());
+					long time = System.nanoTime() - start;
+					height = balst.getHeight();
+					close(balst);
+					if (round >= 0) {
+						rounds[round] = (double) time / keys.length;
+					}
+				}
+				report("insert-" + order.getKey(), tree.getKey() + " h=" + height, rounds);
+			}
+		}
+	}
+
+	/**
+	 * Prints the memory used per entry by each tree, counting the heap and, for
+	 * trees outside of the heap, their pages. The keys and values are created
+	 * before measuring, so only the structure of the tree is counted.
+	 *
+	 * @param keys keys to insert, each also used as its own value
+	 * @throws Exception if a tree rejects a key
+	 */
+	static void memory(Integer[] keys) throws Exception {
+		for (Map.Entry<String, Supplier<BALSTADT<Integer, Integer>>> tree : TREES.entrySet()) {
+			System.out.printf("memory %-12s %8.1f bytes/entry%n", tree.getKey(),
+					(double) memory(tree.getValue(), keys) / keys.length);
+		}
+	}
+
+	/**
+	 * measures one tree in its own call, so no tree measured before it is still
+	 * reachable from the stack
+	 *
+	 * @param factory creates the empty tree
+	 * @param keys    keys to insert
+	 * @return bytes used by the filled tree
+	 * @throws Exception if the tree rejects a key
+	 */
+	static long memory(Supplier<BALSTADT<Integer, Integer>> factory, Integer[] keys) throws Exception {
+
+		// the tree measured before can survive a few collections after it is dropped,
+		// so this waits until it is really gone
+		for (int i = 0; i < 50 && lastMeasured != null && lastMeasured.get() != null; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+
+		long before = usedMemory();
+		BALSTADT<Integer, Integer> balst = build(factory, keys);
+		long after = usedMemory();
+		if (balst instanceof OffHeapBALST) {
+			after += ((OffHeapBALST<?, ?>) balst).memoryUsed();
+		}
+		Reference.reachabilityFence(balst);
+		close(balst);
+		lastMeasured = new WeakReference<Object>(balst);
+		return after - before;
+	}
+
+	/**
+	 * Prints the average time of a get of a random present key for each tree
+	 *
+	 * @param keys keys to insert and then look up
+	 * @throws Exception if a tree rejects a key
+	 */
+	static void lookup(Integer[] keys) throws Exception {
+		Integer[] probes = keys.clone();
+		shuffle(probes, new Random(7));
+
+		for (Map.Entry<String, Supplier<BALSTADT<Integer, Integer>>> tree : TREES.entrySet()) {
+			BALSTADT<Integer, Integer> balst = build(tree.getValue(), keys);
+			double[] rounds = new double[MEASURED_ROUNDS];
+			for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+				long start = System.nanoTime();
+				for (Integer probe : probes) {
+					sink += balst.get(probe);
+				}
+				long time = System.nanoTime() - start;
+				if (round >= 0) {
+					rounds[round] = (double) time / probes.length;
+				}
+			}
+			report("lookup", tree.getKey(), rounds);
+			close(balst);
+		}
+	}
+
+	/**
+	 * Prints the time to open a checkpointed MappedBALST and look up one key,
+	 * next to the time to build a BALST of the same keys with insert
+	 *
+	 * @param keys keys of the trees
+	 * @throws Exception if the file cannot be written or a tree rejects a key
+	 */
+	static void reopen(Integer[] keys) throws Exception {
+		Path dir = Files.createTempDirectory("balst-bench");
+		Path file = dir.resolve("tree.balst");
+		try {
+			MappedBALST<Integer, Integer> mapped = MappedBALST.open(file, BALSTCodec.INT, BALSTCodec.INT);
+			for (Integer key : keys) {
+				mapped.insert(key, key);
+			}
+			mapped.checkpoint();
+			mapped.close();
+
+			double[] opens = new double[MEASURED_ROUNDS];
+			double[] builds = new double[MEASURED_ROUNDS];
+			for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+				long start = System.nanoTime();
+				mapped = MappedBALST.open(file, BALSTCodec.INT, BALSTCodec.INT);
+				sink += mapped.get(keys[0]);
+				long open = System.nanoTime() - start;
+				mapped.close();
+
+				start = System.nanoTime();
+				sink += build(BALST::new, keys).numKeys();
+				long build = System.nanoTime() - start;
+				if (round >= 0) {
+					opens[round] = open;
+					builds[round] = build;
+				}
+			}
+			report("reopen", "MappedBALST", opens);
+			report("reopen", "BALST", builds);
+		} finally {
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	/**
+	 * Prints the average time of an insert into a LoggedBALST for a few numbers of
+	 * changes per force of the log. At most WAL_KEYS keys are inserted, since
+	 * forcing every change is slow.
+	 *
+	 * @param keys keys to insert
+	 * @throws Exception if the log cannot be written or the tree rejects a key
+	 */
+	static void wal(Integer[] keys) throws Exception {
+		int n = Math.min(keys.length, WAL_KEYS);
+		for (int syncEvery : new int[] { 1, 16, 256 }) {
+			Path dir = Files.createTempDirectory("balst-bench");
+			try {
+				LoggedBALST<Integer, Integer> logged = LoggedBALST.open(dir, BALSTCodec.INT, BALSTCodec.INT,
+						syncEvery);
+				long start = System.nanoTime();
+				for (int i = 0; i < n; i++) {
+					logged.insert(keys[i], keys[i]);
+				}
+				logged.sync();
+				double perInsert = (double) (System.nanoTime() - start) / n;
+				logged.close();
+				report("wal", "syncEvery=" + syncEvery, new double[] { perInsert });
+			} finally {
+				Files.deleteIfExists(dir.resolve(LoggedBALST.LOG));
+				Files.deleteIfExists(dir);
+			}
+		}
+	}
+
+	/**
+	 * Prints the gets per second of a ConcurrentBALST, a SkipListBALST, a
+	 * ShardedBALST and a BALST wrapped in a SynchronizedBALST, for 1, 2, 4 and so
+	 * on reader threads up to the number of processors, with and without one
+	 * thread inserting and removing keys
+	 *
+	 * @param keys keys of the trees, the writer uses keys above them
+	 * @throws Exception if a tree rejects a key
+	 */
+	static void concurrent(Integer[] keys) throws Exception {
+		Map<String, BALSTADT<Integer, Integer>> trees = new LinkedHashMap<>();
+		trees.put("synchronized", new SynchronizedBALST<Integer, Integer>(build(BALST::new, keys)));
+		trees.put("stamped", build(ConcurrentBALST::new, keys));
+		trees.put("skiplist", build(SkipListBALST::new, keys));
+		trees.put("sharded", build(ShardedBALST::new, keys));
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		for (boolean writing : new boolean[] { false, true }) {
+			for (int readers = 1; readers <= processors; readers *= 2) {
+				for (Map.Entry<String, BALSTADT<Integer, Integer>> tree : trees.entrySet()) {
+					double[] rounds = new double[MEASURED_ROUNDS];
+					for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+						double perSecond = readThroughput(tree.getValue(), keys, readers, writing);
+						if (round >= 0) {
+							rounds[round] = perSecond;
+						}
+					}
+					Arrays.sort(rounds);
+					System.out.printf("%-15s %-17s %12.0f gets/s median%n",
+							(writing ? "read-write" : "read-only") + " r=" + readers, tree.getKey(),
+							rounds[rounds.length / 2]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * runs reader threads for CONCURRENT_MILLIS, with one writer if asked for
+	 *
+	 * @return the gets per second of all the readers together
+	 */
+	static double readThroughput(BALSTADT<Integer, Integer> tree, Integer[] keys, int readers, boolean writing)
+			throws InterruptedException {
+		AtomicBoolean stop = new AtomicBoolean();
+		LongAdder gets = new LongAdder();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < readers; t++) {
+			final Random random = new Random(t);
+			threads.add(new Thread(() -> {
+				long count = 0;
+				long sum = 0;
+				try {
+					while (!stop.get()) {
+						sum += tree.get(keys[random.nextInt(keys.length)]);
+						count++;
+					}
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+				gets.add(count);
+				sinkAdd(sum);
+			}));
+		}
+		if (writing) {
+			threads.add(new Thread(() -> {
+				try {
+					// keeps adding and removing keys above the ones readers look up
+					for (int key = keys.length; !stop.get(); key++) {
+						tree.insert(key, key);
+						tree.remove(key);
+					}
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		Thread.sleep(CONCURRENT_MILLIS);
+		stop.set(true);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return gets.sum() * 1000.0 / CONCURRENT_MILLIS;
+	}
+
+	/**
+	 * A tree that locks its monitor around every call to the tree it wraps, the
+	 * plain way to share a BALST between threads that the concurrent trees are
+	 * compared with
+	 */
+	static final class SynchronizedBALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
+
+		private final BALSTADT<K, V> balst;
+
+		SynchronizedBALST(BALSTADT<K, V> balst) {
+			this.balst = balst;
+		}
+
+		public synchronized K getKeyAtRoot() {
+			return balst.getKeyAtRoot();
+		}
+
+		public synchronized K getKeyOfLeftChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+			return balst.getKeyOfLeftChildOf(key);
+		}
+
+		public synchronized K getKeyOfRightChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+			return balst.getKeyOfRightChildOf(key);
+		}
+
+		public synchronized int getHeight() {
+			return balst.getHeight();
+		}
+
+		public synchronized List<K> getInOrderTraversal() {
+			return balst.getInOrderTraversal();
+		}
+
+		public synchronized List<K> getPreOrderTraversal() {
+			return balst.getPreOrderTraversal();
+		}
+
+		public synchronized List<K> getPostOrderTraversal() {
+			return balst.getPostOrderTraversal();
+		}
+
+		public synchronized List<K> getLevelOrderTraversal() {
+			return balst.getLevelOrderTraversal();
+		}
+
+		public synchronized void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+			balst.insert(key, value);
+		}
+
+		public synchronized boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+			return balst.remove(key);
+		}
+
+		public synchronized V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
+			return balst.get(key);
+		}
+
+		public synchronized boolean contains(K key) throws IllegalNullKeyException {
+			return balst.contains(key);
+		}
+
+		public synchronized int numKeys() {
+			return balst.numKeys();
+		}
+
+		public synchronized void print() {
+			balst.print();
+		}
+	}
+
+	/**
+	 * adds to the sink from any thread
+	 */
+	private static synchronized void sinkAdd(long value) {
+		sink += value;
+	}
+
+	/**
+	 * Prints the time to take a point in time view of a tree: a PersistentBALST
+	 * snapshot next to copying the keys of a BALST with getInOrderTraversal
+	 *
+	 * @param keys keys of the trees
+	 * @throws Exception if a tree rejects a key
+	 */
+	static void snapshot(Integer[] keys) throws Exception {
+		PersistentBALST<Integer, Integer> persistent = (PersistentBALST<Integer, Integer>) build(PersistentBALST::new,
+				keys);
+		BALSTADT<Integer, Integer> plain = build(BALST::new, keys);
+		double[] snapshots = new double[MEASURED_ROUNDS];
+		double[] copies = new double[MEASURED_ROUNDS];
+		for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+			long start = System.nanoTime();
+			sink += persistent.snapshot().numKeys();
+			long snapshot = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			sink += plain.getInOrderTraversal().size();
+			long copy = System.nanoTime() - start;
+			if (round >= 0) {
+				snapshots[round] = snapshot;
+				copies[round] = copy;
+			}
+		}
+		report("snapshot", "PersistentBALST", snapshots);
+		report("snapshot", "BALST copy", copies);
+	}
+
+	/**
+	 * prints the median and best of the measured rounds
+	 *
+	 * @param scenario name of the scenario
+	 * @param tree     name of the implementation
+	 * @param rounds   nanoseconds per operation of each round
+	 */
+	static void report(String scenario, String tree, double[] rounds) {
+		double[] sorted = rounds.clone();
+		Arrays.sort(sorted);
+		System.out.printf("%-15s %-17s %12.1f ns/op median %12.1f ns/op best%n", scenario, tree,
+				sorted[sorted.length / 2], sorted[0]);
+	}
+
+	/**
+	 * builds a tree holding every key, mapped to itself
+	 *
+	 * @param factory creates the empty tree
+	 * @param keys    keys to insert
+	 * @return the filled tree
+	 * @throws Exception if the tree rejects a key
+	 */
+	static BALSTADT<Integer, Integer> build(Supplier<BALSTADT<Integer, Integer>> factory, Integer[] keys)
+			throws Exception {
+		BALSTADT<Integer, Integer> balst = factory.get();
+		for (Integer key : keys) {
+			balst.insert(key, key);
+		}
+		return balst;
+	}
+
+	/**
+	 * releases the memory of trees that hold it outside of the heap
+	 *
+	 * @param balst the tree that is no longer needed
+	 */
+	static void close(BALSTADT<?, ?> balst) throws Exception {
+		if (balst instanceof AutoCloseable) {
+			((AutoCloseable) balst).close();
+		}
+	}
+
+	/**
+	 * @return the keys 0 to n - 1 in a random order fixed by the seed
+	 */
+	static Integer[] shuffledKeys(int n, long seed) {
+		Integer[] keys = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = i;
+		}
+		shuffle(keys, new Random(seed));
+		return keys;
+	}
+
+	/**
+	 * shuffles the array in place
+	 */
+	static void shuffle(Object[] array, Random random) {
+		for (int i = array.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			Object swap = array[i];
+			array[i] = array[j];
+			array[j] = swap;
+		}
+	}
+
+	/**
+	 * @return bytes of heap in use after asking for a few full collections
+	 */
+	static long usedMemory() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,215 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns keys or values into a fixed number of bytes and back, so trees that keep
+ * their nodes outside of the Java heap can store them. Every value written takes
+ * exactly width() bytes, whatever its contents.
+ *
+ * @param <T> is the type of key or value encoded
+ */
+public interface BALSTCodec<T> {
+
+	/**
+	 * @return number of bytes every encoded value takes
+	 */
+	int width();
+
+	/**
+	 * Writes the value into the buffer at the given offset, without moving the
+	 * position of the buffer
+	 *
+	 * @param buffer buffer to write into
+	 * @param offset index of the first byte to write
+	 * @param value  the value to encode
+	 * @throws IllegalArgumentException if the value cannot be encoded in width()
+	 *                                  bytes
+	 */
+	void write(ByteBuffer buffer, int offset, T value);
+
+	/**
+	 * Reads back a value written at the given offset, without moving the position
+	 * of the buffer
+	 *
+	 * @param buffer buffer to read from
+	 * @param offset index of the first byte to read
+	 * @return the decoded value
+	 */
+	T read(ByteBuffer buffer, int offset);
+
+	/**
+	 * Compares two encoded values in the order of the values they decode to. The
+	 * default decodes both, codecs whose bytes can be compared where they lie
+	 * override it.
+	 *
+	 * @param a       buffer holding the first value
+	 * @param offsetA index of the first byte of the first value
+	 * @param b       buffer holding the second value
+	 * @param offsetB index of the first byte of the second value
+	 * @return negative, zero or positive as the first value is less than, equal to
+	 *         or greater than the second
+	 * @throws ClassCastException if the values are not Comparable
+	 */
+	@SuppressWarnings("unchecked")
+	default int compare(ByteBuffer a, int offsetA, ByteBuffer b, int offsetB) {
+		return ((Comparable<T>) read(a, offsetA)).compareTo(read(b, offsetB));
+	}
+
+	/**
+	 * throws for a null value, which a codec of primitives has no bytes for
+	 *
+	 * @param value the value to encode
+	 * @throws IllegalArgumentException if value is null
+	 */
+	private static void checkNotNull(Object value) {
+		if (value == null) {
+			throw new IllegalArgumentException("null cannot be encoded");
+		}
+	}
+
+	/** Integers as 4 bytes, null is not allowed */
+	BALSTCodec<Integer> INT = new BALSTCodec<Integer>() {
+		@Override
+		public int width() {
+			return Integer.BYTES;
+		}
+
+		@Override
+		public void write(ByteBuffer buffer, int offset, Integer value) {
+			checkNotNull(value);
+			buffer.putInt(offset, value);
+		}
+
+		@Override
+		public Integer read(ByteBuffer buffer, int offset) {
+			return buffer.getInt(offset);
+		}
+
+		@Override
+		public int compare(ByteBuffer a, int offsetA, ByteBuffer b, int offsetB) {
+			return Integer.compare(a.getInt(offsetA), b.getInt(offsetB));
+		}
+	};
+
+	/** Longs as 8 bytes, null is not allowed */
+	BALSTCodec<Long> LONG = new BALSTCodec<Long>() {
+		@Override
+		public int width() {
+			return Long.BYTES;
+		}
+
+		@Override
+		public void write(ByteBuffer buffer, int offset, Long value) {
+			checkNotNull(value);
+			buffer.putLong(offset, value);
+		}
+
+		@Override
+		public Long read(ByteBuffer buffer, int offset) {
+			return buffer.getLong(offset);
+		}
+
+		@Override
+		public int compare(ByteBuffer a, int offsetA, ByteBuffer b, int offsetB) {
+			return Long.compare(a.getLong(offsetA), b.getLong(offsetB));
+		}
+	};
+
+	/** Doubles as 8 bytes, null is not allowed */
+	BALSTCodec<Double> DOUBLE = new BALSTCodec<Double>() {
+		@Override
+		public int width() {
+			return Double.BYTES;
+		}
+
+		@Override
+		public void write(ByteBuffer buffer, int offset, Double value) {
+			checkNotNull(value);
+			buffer.putDouble(offset, value);
+		}
+
+		@Override
+		public Double read(ByteBuffer buffer, int offset) {
+			return buffer.getDouble(offset);
+		}
+
+		@Override
+		public int compare(ByteBuffer a, int offsetA, ByteBuffer b, int offsetB) {
+			return Double.compare(a.getDouble(offsetA), b.getDouble(offsetB));
+		}
+	};
+
+	/**
+	 * Returns a codec for strings of up to the given number of UTF-8 bytes. Each
+	 * string takes 2 bytes for its length plus maxBytes, and null is stored as a
+	 * length of -1.
+	 *
+	 * @param maxBytes largest number of UTF-8 bytes of a string
+	 * @return the codec
+	 * @throws IllegalArgumentException if maxBytes is negative or does not fit in a
+	 *                                  short
+	 */
+	static BALSTCodec<String> utf8(int maxBytes) {
+		if (maxBytes < 0 || maxBytes > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("illegal string width " + maxBytes);
+		}
+		return new BALSTCodec<String>() {
+			@Override
+			public int width() {
+				return Short.BYTES + maxBytes;
+			}
+
+			@Override
+			public void write(ByteBuffer buffer, int offset, String value) {
+				if (value == null) {
+					buffer.putShort(offset, (short) -1);
+					return;
+				}
+				byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				if (bytes.length > maxBytes) {
+					throw new IllegalArgumentException(
+							"string of " + bytes.length + " bytes is longer than " + maxBytes);
+				}
+				buffer.putShort(offset, (short) bytes.length);
+				// a duplicate takes the bulk put, so the position of the buffer is left alone
+				buffer.duplicate().position(offset + Short.BYTES).put(bytes);
+			}
+
+			@Override
+			public String read(ByteBuffer buffer, int offset) {
+				int length = buffer.getShort(offset);
+				if (length < 0) {
+					return null;
+				}
+				byte[] bytes = new byte[length];
+				buffer.duplicate().position(offset + Short.BYTES).get(bytes);
+				return new String(bytes, StandardCharsets.UTF_8);
+			}
+
+			@Override
+			public int compare(ByteBuffer a, int offsetA, ByteBuffer b, int offsetB) {
+				int lengthA = a.getShort(offsetA);
+				int lengthB = b.getShort(offsetB);
+				if (lengthA < 0 || lengthB < 0) {
+					// null comes first
+					return Integer.compare(lengthA, lengthB);
+				}
+				int common = Math.min(lengthA, lengthB);
+				for (int i = Short.BYTES; i < Short.BYTES + common; i++) {
+					int byteA = a.get(offsetA + i) & 0xFF;
+					int byteB = b.get(offsetB + i) & 0xFF;
+					if (byteA != byteB) {
+						// UTF-8 bytes sort by code point, but strings sort by UTF-16 char, which
+						// puts code points above U+FFFF (lead bytes 0xF0 and up) before U+E000
+						// to U+FFFF (lead bytes 0xEE and 0xEF)
+						if (byteA >= 0xEE && byteB >= 0xEE && (byteA >= 0xF0) != (byteB >= 0xF0)) {
+							return byteB - byteA;
+						}
+						return byteA - byteB;
+					}
+				}
+				return lengthA - lengthB;
+			}
+		};
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * Hook that a BALST reports its lookups and restructuring to. Every method has
+ * an empty default, so an implementation only overrides the events it cares
+ * about. The shared {@link #NONE} instance is used when no hook is given; since
+ * its calls do nothing they are inlined away by the JIT.
+ */
+public interface BALSTDiagnostics {
+
+	/**
+	 * Diagnostics that ignore every event
+	 */
+	BALSTDiagnostics NONE = new BALSTDiagnostics() {
+	};
+
+	/**
+	 * Called when a lookup finds the key it was looking for
+	 */
+	default void onHit() {
+	}
+
+	/**
+	 * Called when a lookup does not find the key it was looking for
+	 */
+	default void onMiss() {
+	}
+
+	/**
+	 * Called once per lookup with the number of key comparisons it made
+	 * 
+	 * @param comparisons number of compareTo calls made by the lookup
+	 */
+	default void onComparisons(int comparisons) {
+	}
+
+	/**
+	 * Called every time the tree is rotated to restore its balance
+	 */
+	default void onRotation() {
+	}
+}
@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a BALST to a channel and reads it back, in a compact binary format of
+ *
+ * magic | version | key width | value width | number of pairs | pairs | CRC32
+ *
+ * where the header fields and the CRC32 of the pairs are little endian ints, and
+ * each pair is its key and value encoded by the codecs, in sorted order of the
+ * keys. Writing walks the tree in order through a small buffer, so the tree is
+ * never copied. Reading checks the data and builds the tree bottom up with
+ * BALST.fromSorted in O(n). When reading from a FileChannel the data is mapped
+ * and decoded where it lies instead of being copied into a buffer first.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public final class BALSTSerializer<K extends Comparable<K>, V> {
+
+	static final int MAGIC = 0x42414C54; // "BALT"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 20;
+	private static final int BUFFER_BYTES = 1 << 16;
+
+	private final BALSTCodec<K> keyCodec;
+	private final BALSTCodec<V> valueCodec;
+	private final int pairBytes; // bytes of one encoded pair
+
+	/**
+	 * Constructor for a serializer using the given codecs
+	 *
+	 * @param keyCodec   encodes the keys
+	 * @param valueCodec encodes the values
+	 */
+	public BALSTSerializer(BALSTCodec<K> keyCodec, BALSTCodec<V> valueCodec) {
+		if (keyCodec == null || valueCodec == null) {
+			throw new NullPointerException("codecs are required");
+		}
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		pairBytes = keyCodec.width() + valueCodec.width();
+	}
+
+	/**
+	 * Writes every pair of the tree to the channel, in sorted order of the keys.
+	 * The tree must not be changed while it is written.
+	 *
+	 * @param tree the tree to write
+	 * @param out  the channel to write to, left open
+	 * @throws IOException                     if the channel fails
+	 * @throws IllegalArgumentException        if a codec cannot encode a pair
+	 * @throws java.util.ConcurrentModificationException if the tree is changed
+	 *                                         while it is written
+	 */
+	public void write(BALST<K, V> tree, WritableByteChannel out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_BYTES, HEADER_BYTES + pairBytes))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(keyCodec.width()).putInt(valueCodec.width())
+				.putInt(tree.numKeys());
+		CRC32 crc = new CRC32();
+		int crcFrom = buffer.position(); // the header is not part of the checksum
+
+		Iterator<Map.Entry<K, V>> entries = tree.entryIterator();
+		while (entries.hasNext()) {
+			if (buffer.remaining() < pairBytes) {
+				flush(out, buffer, crc, crcFrom);
+				crcFrom = 0;
+			}
+			Map.Entry<K, V> entry = entries.next();
+			int position = buffer.position();
+			keyCodec.write(buffer, position, entry.getKey());
+			valueCodec.write(buffer, position + keyCodec.width(), entry.getValue());
+			buffer.position(position + pairBytes);
+		}
+		flush(out, buffer, crc, crcFrom);
+
+		buffer.putInt((int) crc.getValue());
+		flush(out, buffer, null, 0);
+	}
+
+	/**
+	 * Reads a tree written by write, leaving the channel just after it so that
+	 * whatever follows can be read next
+	 *
+	 * @param in the channel to read from, left open
+	 * @return a new tree holding the pairs read
+	 * @throws IOException if the channel fails, ends early or does not hold a tree
+	 *                     written with codecs of the same widths
+	 */
+	public BALST<K, V> read(ReadableByteChannel in) throws IOException {
+		Input input;
+		long mappable = in instanceof FileChannel ? ((FileChannel) in).size() - ((FileChannel) in).position() : -1;
+		if (mappable >= 0 && mappable <= Integer.MAX_VALUE) {
+			FileChannel file = (FileChannel) in;
+			input = new Input(file.map(FileChannel.MapMode.READ_ONLY, file.position(), mappable), null);
+		} else {
+			// too much to map in one piece, or not a file, so it is read in pieces
+			input = new Input(ByteBuffer.allocateDirect(Math.max(BUFFER_BYTES, pairBytes)).limit(0), in);
+		}
+		ByteBuffer buffer = input.buffer;
+
+		// checks the header
+		input.require(HEADER_BYTES);
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			throw new IOException("data is not a tree of version " + VERSION);
+		}
+		if (buffer.getInt() != keyCodec.width() || buffer.getInt() != valueCodec.width()) {
+			throw new IOException("data was written with codecs of different widths");
+		}
+		int count = buffer.getInt();
+		if (count < 0) {
+			throw new IOException("data has a negative number of pairs");
+		}
+		if (keyCodec.width() == 0 && count > 1) {
+			// keys of no bytes all decode alike, so a tree holds at most one of them,
+			// and with no bytes per pair the length of the data cannot bound the count
+			throw new IOException("data has more pairs than keys of width 0 allow");
+		}
+		long bytes = (long) count * pairBytes + Integer.BYTES;
+		if (input.channel == null && bytes > mappable - HEADER_BYTES) {
+			throw new IOException("data ends early");
+		}
+		input.unread += bytes;
+
+		// a mapped file now holds every pair, but a stream may end long before the
+		// count it claims, so its arrays start small and grow as pairs arrive, with
+		// room for at least one pair even if a pair is wider than the buffer size
+		int capacity = input.channel == null ? count
+				: Math.min(count, Math.max(1, BUFFER_BYTES / Math.max(1, pairBytes)));
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		K[] keys = (K[]) new Comparable[capacity];
+		@SuppressWarnings("unchecked")
+		V[] values = (V[]) new Object[capacity];
+
+		// decodes the pairs where they lie
+		input.startChecksum();
+		for (int i = 0; i < count; i++) {
+			input.require(pairBytes);
+			if (i == keys.length) {
+				int length = (int) Math.min(count, 2L * keys.length);
+				keys = Arrays.copyOf(keys, length);
+				values = Arrays.copyOf(values, length);
+			}
+			int position = buffer.position();
+			try {
+				keys[i] = keyCodec.read(buffer, position);
+				values[i] = valueCodec.read(buffer, position + keyCodec.width());
+			} catch (RuntimeException e) {
+				// damaged bytes can make a codec read outside of its width
+				throw new IOException("data is damaged, a pair cannot be decoded", e);
+			}
+			buffer.position(position + pairBytes);
+		}
+		int checksum = input.endChecksum();
+
+		input.require(Integer.BYTES);
+		if (buffer.getInt() != checksum) {
+			throw new IOException("data is damaged, its checksum does not match");
+		}
+		if (input.channel == null) {
+			FileChannel file = (FileChannel) in;
+			file.position(file.position() + buffer.position());
+		}
+
+		try {
+			return BALST.fromSorted(keys, values);
+		} catch (IllegalNullKeyException | DuplicateKeyException | IllegalArgumentException e) {
+			throw new IOException("data does not hold keys in increasing order", e);
+		}
+	}
+
+	/**
+	 * writes the bytes put in the buffer so far to the channel, adding the ones
+	 * from crcFrom on to the checksum, and empties the buffer
+	 */
+	private static void flush(WritableByteChannel out, ByteBuffer buffer, CRC32 crc, int crcFrom)
+			throws IOException {
+		buffer.flip();
+		if (crc != null) {
+			crc.update(buffer.duplicate().position(crcFrom));
+		}
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Bytes of a tree being read, either all of them already in a buffer or read
+	 * from a channel into the buffer as they are needed, never reading past the end
+	 * of the tree
+	 */
+	private static final class Input {
+
+		final ByteBuffer buffer;
+		final ReadableByteChannel channel; // null if all of the bytes are in the buffer
+		long unread = HEADER_BYTES; // bytes of the tree known about but not read yet
+		private CRC32 crc; // checksum of the bytes being summed, null if none are
+		private int crcFrom; // position in the buffer the checksum has reached
+
+		Input(ByteBuffer buffer, ReadableByteChannel channel) {
+			this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+			this.channel = channel;
+		}
+
+		/**
+		 * makes sure the buffer has at least the given number of bytes left, reading
+		 * more from the channel if needed
+		 *
+		 * @throws IOException if the data ends first
+		 */
+		void require(int bytes) throws IOException {
+			if (buffer.remaining() >= bytes) {
+				return;
+			}
+			if (channel != null) {
+				// bytes about to be moved out of the buffer are summed first
+				if (crc != null) {
+					crc.update(buffer.duplicate().position(crcFrom).limit(buffer.position()));
+					crcFrom = 0;
+				}
+				buffer.compact();
+				while (buffer.position() < bytes && unread > 0) {
+					buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + unread));
+					int read = channel.read(buffer);
+					if (read < 0) {
+						break;
+					}
+					unread -= read;
+				}
+				buffer.flip();
+				if (buffer.remaining() >= bytes) {
+					return;
+				}
+			}
+			throw new IOException("data ends early");
+		}
+
+		/**
+		 * starts summing the bytes from the current position on
+		 */
+		void startChecksum() {
+			crc = new CRC32();
+			crcFrom = buffer.position();
+		}
+
+		/**
+		 * stops summing at the current position
+		 *
+		 * @return the checksum of the bytes summed
+		 */
+		int endChecksum() {
+			crc.update(buffer.duplicate().position(crcFrom).limit(buffer.position()));
+			int checksum = (int) crc.getValue();
+			crc = null;
+			return checksum;
+		}
+	}
+}
@@ -1,5 +1,36 @@
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
 import org.junit.Assert;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -93,8 +124,8 @@ public class BALSTTest {
                 fail("RBT insert at root does not work");
             
             balst2.insert(20, "20");
-            if (!balst2.getKeyOfRightChildOf(30).equals(20)) 
-                fail("RBT insert to right child of root does not work");
+            if (!balst2.getKeyOfLeftChildOf(30).equals(20)) 
+                fail("RBT insert to left child of root does not work");
             
             balst2.insert(10, "10");
             Integer k = balst2.getKeyAtRoot();
@@ -129,9 +160,29 @@ public class BALSTTest {
      */
     @Test
     void testBALST_003_insert_smallest_largest_middle_order_simple() {
-        
-        // TODO: implement this test
-        
+        try {
+            balst2.insert(10, "10");
+            balst2.insert(30, "30");
+            if (!balst2.getKeyOfRightChildOf(10).equals(30)) 
+                fail("RBT insert to right child of root does not work");
+            
+            balst2.insert(20, "20");
+            Integer k = balst2.getKeyAtRoot();
+            if (!k.equals(20)) 
+                fail("RBT right-left rotate does not work");
+
+            Assert.assertEquals(balst2.getKeyAtRoot(), Integer.valueOf(20));
+            Assert.assertEquals(balst2.getKeyOfLeftChildOf(20), Integer.valueOf(10));
+            Assert.assertEquals(balst2.getKeyOfRightChildOf(20), Integer.valueOf(30));
+            Assert.assertEquals(2, balst2.getHeight());
+            balst2.verifyInvariants();
+
+            balst2.print();
+            
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 003: "+e.getMessage() );
+        }
     }
 
     /** 
@@ -145,9 +196,29 @@ public class BALSTTest {
      */
     @Test
     void testBALST_004_insert_largest_smallest_middle_order_simple() {
-        
-        
-        
+        try {
+            balst2.insert(30, "30");
+            balst2.insert(10, "10");
+            if (!balst2.getKeyOfLeftChildOf(30).equals(10)) 
+                fail("RBT insert to left child of root does not work");
+            
+            balst2.insert(20, "20");
+            Integer k = balst2.getKeyAtRoot();
+            if (!k.equals(20)) 
+                fail("RBT left-right rotate does not work");
+
+            Assert.assertEquals(balst2.getKeyAtRoot(), Integer.valueOf(20));
+            Assert.assertEquals(balst2.getKeyOfLeftChildOf(20), Integer.valueOf(10));
+            Assert.assertEquals(balst2.getKeyOfRightChildOf(20), Integer.valueOf(30));
+            Assert.assertEquals(2, balst2.getHeight());
+            balst2.verifyInvariants();
+
+            balst2.print();
+            
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 004: "+e.getMessage() );
+        }
     }
     
     
@@ -162,4 +233,2133 @@ public class BALSTTest {
     
     // Does delete work?  Does the tree maintain balance when a key is deleted?
 
+
+    /**
+     * Looks up keys that are and are not in the tree and checks that a single
+     * lookup reports the outcomes the ADT specifies: missing keys throw
+     * KeyNotFoundException and duplicates throw DuplicateKeyException without
+     * changing the number of keys.
+     */
+    @Test
+    void testBALST_005_lookup_missing_and_duplicate_keys() {
+        try {
+            Assert.assertFalse(balst2.contains(10));
+
+            balst2.insert(10, "10");
+            Assert.assertTrue(balst2.contains(10));
+            Assert.assertEquals("10", balst2.get(10));
+            Assert.assertNull(balst2.getKeyOfLeftChildOf(10));
+            Assert.assertNull(balst2.getKeyOfRightChildOf(10));
+
+            try {
+                balst2.insert(10, "dup");
+                fail("inserting a duplicate key did not throw DuplicateKeyException");
+            } catch (DuplicateKeyException e) {
+                // expected
+            }
+            Assert.assertEquals(1, balst2.numKeys());
+            Assert.assertEquals("10", balst2.get(10));
+
+            try {
+                balst2.get(20);
+                fail("get of a missing key did not throw KeyNotFoundException");
+            } catch (KeyNotFoundException e) {
+                // expected
+            }
+            try {
+                balst2.getKeyOfLeftChildOf(20);
+                fail("getKeyOfLeftChildOf a missing key did not throw KeyNotFoundException");
+            } catch (KeyNotFoundException e) {
+                // expected
+            }
+            try {
+                balst2.remove(20);
+                fail("remove of a missing key did not throw KeyNotFoundException");
+            } catch (KeyNotFoundException e) {
+                // expected
+            }
+            Assert.assertEquals(1, balst2.numKeys());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 005: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Gives a tree counting diagnostics and checks that hits, misses and
+     * comparisons of lookups are reported to it.
+     */
+    @Test
+    void testBALST_006_diagnostics_count_lookups() {
+        try {
+            CountingBALSTDiagnostics counts = new CountingBALSTDiagnostics();
+            BALST<Integer, String> tree = new BALST<Integer, String>(counts);
+
+            Assert.assertFalse(tree.contains(10));
+            Assert.assertEquals(1, counts.getMisses());
+            Assert.assertEquals(0, counts.getComparisons());
+
+            tree.insert(10, "10");
+            Assert.assertTrue(tree.contains(10));
+            Assert.assertEquals("10", tree.get(10));
+            Assert.assertFalse(tree.contains(20));
+
+            // the insert into the empty tree is a miss without comparisons
+            Assert.assertEquals(2, counts.getHits());
+            Assert.assertEquals(3, counts.getMisses());
+            Assert.assertEquals(3, counts.getComparisons());
+
+            counts.reset();
+            Assert.assertEquals(0, counts.getHits());
+
+            // a plain insert looks the key up like put, and a duplicate is a hit
+            tree.insert(5, "5");
+            try {
+                tree.insert(5, "five");
+                fail("inserted a duplicate key");
+            } catch (DuplicateKeyException expected) {
+            }
+            Assert.assertEquals(1, counts.getHits());
+            Assert.assertEquals(1, counts.getMisses());
+            Assert.assertEquals(3, counts.getComparisons());
+            Assert.assertTrue(tree.remove(5));
+
+            counts.reset();
+
+            // the upserts look the key up too
+            Assert.assertEquals("10", tree.put(10, "ten"));
+            Assert.assertNull(tree.putIfAbsent(20, "20"));
+            Assert.assertEquals(1, counts.getHits());
+            Assert.assertEquals(1, counts.getMisses());
+            Assert.assertEquals(2, counts.getComparisons());
+
+            // and so do the batch changes, once per key
+            counts.reset();
+            tree.insertAll(Arrays.asList(30, 10), Arrays.asList("30", "ten"));
+            tree.removeAll(Arrays.asList(30, 99));
+            Assert.assertEquals(2, counts.getHits());
+            Assert.assertEquals(2, counts.getMisses());
+            Assert.assertTrue(counts.getComparisons() >= 4);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 006: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Randomly inserts and removes keys, comparing the tree to a TreeMap after
+     * every step, and checks that the height stays within the red black bound
+     * of 2 * log2(n + 1) while the tree grows and shrinks.
+     */
+    @Test
+    void testBALST_007_random_insert_remove_churn() {
+        try {
+            Random random = new Random(7);
+            TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+
+            for (int i = 0; i < 20000; i++) {
+                Integer key = random.nextInt(2000);
+                if (random.nextInt(3) == 0 || expected.containsKey(key)) {
+                    if (expected.containsKey(key)) {
+                        Assert.assertTrue(balst2.remove(key));
+                        expected.remove(key);
+                    } else {
+                        Assert.assertFalse(balst2.contains(key));
+                    }
+                } else {
+                    balst2.insert(key, "" + key);
+                    expected.put(key, "" + key);
+                }
+
+                Assert.assertEquals(expected.size(), balst2.numKeys());
+                Assert.assertEquals(balst2.computeHeight(), balst2.getHeight());
+                Assert.assertTrue(balst2.getHeight() <= 2 * log2(balst2.numKeys() + 1));
+            }
+
+            balst2.verifyInvariants();
+            Assert.assertEquals(new ArrayList<Integer>(expected.keySet()), balst2.getInOrderTraversal());
+            for (Integer key : expected.keySet()) {
+                Assert.assertEquals(expected.get(key), balst2.get(key));
+            }
+
+            // removes everything that is left
+            for (Integer key : new ArrayList<Integer>(expected.keySet())) {
+                balst2.remove(key);
+                Assert.assertFalse(balst2.contains(key));
+            }
+            Assert.assertEquals(0, balst2.numKeys());
+            Assert.assertEquals(0, balst2.getHeight());
+            Assert.assertNull(balst2.getKeyAtRoot());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 007: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Fills a tree, removes every key again and checks that the removed values
+     * are no longer reachable from the tree, so the memory can be reclaimed.
+     */
+    @Test
+    void testBALST_008_removed_entries_are_collected() {
+        try {
+            BALST<Integer, Object> tree = new BALST<Integer, Object>();
+            List<WeakReference<Object>> values = new ArrayList<WeakReference<Object>>();
+
+            for (int i = 0; i < 1000; i++) {
+                Object value = new byte[1024];
+                values.add(new WeakReference<Object>(value));
+                tree.insert(i, value);
+            }
+            for (int i = 0; i < 1000; i += 2) {
+                tree.remove(i);
+            }
+            for (int i = 1; i < 1000; i += 2) {
+                tree.remove(i);
+            }
+
+            for (int attempt = 0; attempt < 10 && !allCleared(values); attempt++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            Assert.assertTrue("removed values are still reachable", allCleared(values));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 008: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Runs millions of seeded random inserts, removes and lookups over a few
+     * key ranges, checking the tree against a TreeMap and running the full red
+     * black invariant check regularly. The height must never go above
+     * 2 * log2(n + 1).
+     */
+    @Test
+    void testBALST_009_randomized_invariant_stress() {
+        long[] seeds = { 1, 42, 2019 };
+        int[] keyRanges = { 64, 4096, 1 << 20 };
+
+        for (long seed : seeds) {
+            for (int keyRange : keyRanges) {
+                try {
+                    stress(seed, keyRange, 400000);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    fail( "Unexpected exception 009 with seed " + seed + " and key range "
+                            + keyRange + ": " + e.getMessage() );
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the given number of random operations against a new tree and a
+     * TreeMap, checking that both agree.
+     */
+    private static void stress(long seed, int keyRange, int operations) throws Exception {
+        Random random = new Random(seed);
+        BALST<Integer, Integer> tree = new BALST<Integer, Integer>();
+        TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+
+        for (int i = 0; i < operations; i++) {
+            Integer key = random.nextInt(keyRange);
+            int operation = random.nextInt(10);
+
+            if (operation < 5) {
+                boolean added = !expected.containsKey(key);
+                try {
+                    tree.insert(key, i);
+                    Assert.assertTrue("insert of duplicate " + key + " did not throw", added);
+                    expected.put(key, i);
+                } catch (DuplicateKeyException e) {
+                    Assert.assertFalse("insert of new key " + key + " threw", added);
+                }
+            } else if (operation < 8) {
+                boolean present = expected.containsKey(key);
+                try {
+                    Assert.assertTrue(tree.remove(key));
+                    Assert.assertTrue("remove of missing " + key + " did not throw", present);
+                    expected.remove(key);
+                } catch (KeyNotFoundException e) {
+                    Assert.assertFalse("remove of present key " + key + " threw", present);
+                }
+            } else {
+                Assert.assertEquals(expected.containsKey(key), tree.contains(key));
+            }
+
+            Assert.assertEquals(expected.size(), tree.numKeys());
+            Assert.assertTrue(tree.getHeight() <= 2 * log2(tree.numKeys() + 1));
+            if (i % 4999 == 0) {
+                tree.verifyInvariants();
+                Assert.assertEquals(tree.computeHeight(), tree.getHeight());
+            }
+        }
+
+        tree.verifyInvariants();
+        Assert.assertEquals(new ArrayList<Integer>(expected.keySet()), tree.getInOrderTraversal());
+    }
+
+    /**
+     * Builds a tree whose shape is known and checks the level order of its
+     * keys: the root first, then each level from left to right.
+     */
+    @Test
+    void testBALST_010_level_order_traversal() {
+        try {
+            Assert.assertTrue(balst2.getLevelOrderTraversal().isEmpty());
+
+            for (int key = 10; key <= 90; key += 10) {
+                balst2.insert(key, "" + key);
+            }
+
+            //        40
+            //      /    \
+            //    20      60
+            //   /  \    /  \
+            //  10  30  50  80
+            //             /  \
+            //            70  90
+            Assert.assertEquals(Arrays.asList(40, 20, 60, 10, 30, 50, 80, 70, 90),
+                    balst2.getLevelOrderTraversal());
+            balst2.print();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 010: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Builds the same tree as test 010 and checks the in, pre and post order
+     * traversals, both as lists and streamed to a consumer.
+     */
+    @Test
+    void testBALST_011_depth_first_traversals() {
+        try {
+            Assert.assertTrue(balst2.getPreOrderTraversal().isEmpty());
+            Assert.assertTrue(balst2.getPostOrderTraversal().isEmpty());
+
+            for (int key = 10; key <= 90; key += 10) {
+                balst2.insert(key, "" + key);
+            }
+
+            List<Integer> inOrder = Arrays.asList(10, 20, 30, 40, 50, 60, 70, 80, 90);
+            List<Integer> preOrder = Arrays.asList(40, 20, 10, 30, 60, 50, 80, 70, 90);
+            List<Integer> postOrder = Arrays.asList(10, 30, 20, 50, 70, 90, 80, 60, 40);
+
+            Assert.assertEquals(inOrder, balst2.getInOrderTraversal());
+            Assert.assertEquals(preOrder, balst2.getPreOrderTraversal());
+            Assert.assertEquals(postOrder, balst2.getPostOrderTraversal());
+
+            List<Integer> streamed = new ArrayList<Integer>();
+            balst2.forEachInOrder(streamed::add);
+            Assert.assertEquals(inOrder, streamed);
+
+            streamed.clear();
+            balst2.forEachPreOrder(streamed::add);
+            Assert.assertEquals(preOrder, streamed);
+
+            streamed.clear();
+            balst2.forEachPostOrder(streamed::add);
+            Assert.assertEquals(postOrder, streamed);
+
+            streamed.clear();
+            balst2.forEachLevelOrder(streamed::add);
+            Assert.assertEquals(balst2.getLevelOrderTraversal(), streamed);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 011: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Walks the tree with its key and entry iterators and its stream, removes
+     * keys through the iterator and checks that changing the tree while an
+     * iterator is in use makes the iterator fail fast.
+     */
+    @Test
+    void testBALST_012_iterators_and_stream() {
+        try {
+            Assert.assertFalse(balst2.iterator().hasNext());
+
+            for (int key = 10; key <= 90; key += 10) {
+                balst2.insert(key, "" + key);
+            }
+
+            List<Integer> keys = new ArrayList<Integer>();
+            for (Integer key : balst2) {
+                keys.add(key);
+            }
+            Assert.assertEquals(balst2.getInOrderTraversal(), keys);
+
+            Iterator<Map.Entry<Integer, String>> entries = balst2.entryIterator();
+            Map.Entry<Integer, String> first = entries.next();
+            Assert.assertEquals(Integer.valueOf(10), first.getKey());
+            Assert.assertEquals("10", first.getValue());
+
+            Assert.assertEquals(Arrays.asList(60, 70, 80, 90),
+                    balst2.stream().filter(key -> key > 50).collect(Collectors.toList()));
+            Assert.assertEquals(9, balst2.spliterator().getExactSizeIfKnown());
+            Assert.assertTrue(balst2.spliterator().hasCharacteristics(Spliterator.SORTED));
+
+            // removes every other key through the iterator
+            Iterator<Integer> iterator = balst2.iterator();
+            boolean removeNext = true;
+            while (iterator.hasNext()) {
+                iterator.next();
+                if (removeNext) {
+                    iterator.remove();
+                }
+                removeNext = !removeNext;
+            }
+            Assert.assertEquals(Arrays.asList(20, 40, 60, 80), balst2.getInOrderTraversal());
+            Assert.assertEquals(4, balst2.numKeys());
+            balst2.verifyInvariants();
+
+            iterator = balst2.iterator();
+            iterator.next();
+            balst2.insert(50, "50");
+            try {
+                iterator.next();
+                fail("iterator did not fail after the tree was changed");
+            } catch (ConcurrentModificationException e) {
+                // expected
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 012: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Fills a tree and a TreeMap with the same random keys and checks the
+     * navigation methods and range views of the tree against the TreeMap.
+     */
+    @Test
+    void testBALST_013_navigation_and_ranges() {
+        try {
+            Assert.assertNull(balst2.firstKey());
+            Assert.assertNull(balst2.lastKey());
+            Assert.assertNull(balst2.floorKey(10));
+
+            Random random = new Random(13);
+            TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+            while (expected.size() < 500) {
+                Integer key = random.nextInt(5000) * 2;
+                if (!expected.containsKey(key)) {
+                    balst2.insert(key, "" + key);
+                    expected.put(key, "" + key);
+                }
+            }
+
+            Assert.assertEquals(expected.firstKey(), balst2.firstKey());
+            Assert.assertEquals(expected.lastKey(), balst2.lastKey());
+
+            for (int key = -1; key <= 10001; key++) {
+                Assert.assertEquals(expected.floorKey(key), balst2.floorKey(key));
+                Assert.assertEquals(expected.lowerKey(key), balst2.lowerKey(key));
+                Assert.assertEquals(expected.ceilingKey(key), balst2.ceilingKey(key));
+                Assert.assertEquals(expected.higherKey(key), balst2.higherKey(key));
+            }
+
+            for (int i = 0; i < 200; i++) {
+                int from = random.nextInt(10000);
+                int to = from + random.nextInt(2000);
+                boolean fromInclusive = random.nextBoolean();
+                boolean toInclusive = random.nextBoolean();
+
+                Assert.assertEquals(new ArrayList<Integer>(expected.subMap(from, fromInclusive, to, toInclusive).keySet()),
+                        balst2.subMap(from, fromInclusive, to, toInclusive).toList());
+                Assert.assertEquals(new ArrayList<Integer>(expected.headMap(to, toInclusive).keySet()),
+                        balst2.headMap(to, toInclusive).toList());
+                Assert.assertEquals(new ArrayList<Integer>(expected.tailMap(from, fromInclusive).keySet()),
+                        balst2.tailMap(from, fromInclusive).toList());
+                Assert.assertEquals(expected.subMap(from, fromInclusive, to, toInclusive).size(),
+                        balst2.subMap(from, fromInclusive, to, toInclusive).size());
+            }
+
+            // the view is live and its entries carry the values
+            BALST<Integer, String>.Range range = balst2.subMap(0, 100);
+            balst2.insert(1, "1");
+            Map.Entry<Integer, String> first = range.entryIterator().next();
+            Assert.assertEquals(Integer.valueOf(1), first.getKey());
+            Assert.assertEquals("1", first.getValue());
+            Assert.assertEquals(balst2.subMap(0, 100).toList(),
+                    range.stream().collect(Collectors.toList()));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 013: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Checks rank, select and countInRange against the sorted keys while keys
+     * are inserted and removed, so the subtree sizes have to follow every
+     * rotation and removal.
+     */
+    @Test
+    void testBALST_014_rank_and_select() {
+        try {
+            Random random = new Random(14);
+            TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+
+            for (int round = 0; round < 50; round++) {
+                for (int i = 0; i < 100; i++) {
+                    Integer key = random.nextInt(3000);
+                    if (expected.containsKey(key)) {
+                        balst2.remove(key);
+                        expected.remove(key);
+                    } else {
+                        balst2.insert(key, "" + key);
+                        expected.put(key, "" + key);
+                    }
+                }
+                balst2.verifyInvariants();
+
+                List<Integer> sorted = new ArrayList<Integer>(expected.keySet());
+                for (int index = 0; index < sorted.size(); index++) {
+                    Assert.assertEquals(sorted.get(index), balst2.select(index));
+                    Assert.assertEquals(index, balst2.rank(sorted.get(index)));
+                }
+                for (int i = 0; i < 20; i++) {
+                    int lo = random.nextInt(3000);
+                    int hi = lo + random.nextInt(500);
+                    Assert.assertEquals(expected.headMap(lo).size(), balst2.rank(lo));
+                    Assert.assertEquals(expected.subMap(lo, true, hi, true).size(), balst2.countInRange(lo, hi));
+                }
+            }
+            Assert.assertEquals(0, balst2.countInRange(10, 5));
+
+            try {
+                balst2.select(balst2.numKeys());
+                fail("select past the last key did not throw");
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 014: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Builds trees of many sizes from sorted and shuffled keys and checks that
+     * each one is a valid red black tree holding exactly the given pairs, and
+     * that bad input is rejected.
+     */
+    @Test
+    void testBALST_015_bulk_load() {
+        try {
+            Random random = new Random(15);
+            for (int n = 0; n <= 600; n += (n < 70 ? 1 : 37)) {
+                Integer[] keys = new Integer[n];
+                String[] values = new String[n];
+                for (int i = 0; i < n; i++) {
+                    keys[i] = i * 3;
+                    values[i] = "" + i * 3;
+                }
+
+                BALST<Integer, String> sorted = BALST.fromSorted(keys, values);
+                sorted.verifyInvariants();
+                Assert.assertEquals(n, sorted.numKeys());
+                Assert.assertEquals(Arrays.asList(keys), sorted.getInOrderTraversal());
+                Assert.assertTrue(sorted.getHeight() <= 2 * log2(n + 1));
+
+                // shuffles the pairs together
+                for (int i = n - 1; i > 0; i--) {
+                    int j = random.nextInt(i + 1);
+                    Integer key = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = key;
+                    String value = values[i];
+                    values[i] = values[j];
+                    values[j] = value;
+                }
+                BALST<Integer, String> unsorted = BALST.fromUnsorted(keys, values);
+                unsorted.verifyInvariants();
+                Assert.assertEquals(sorted.getInOrderTraversal(), unsorted.getInOrderTraversal());
+                for (Integer key : keys) {
+                    Assert.assertEquals("" + key, unsorted.get(key));
+                }
+
+                // the built tree keeps working as a normal tree
+                if (n > 0) {
+                    unsorted.insert(1, "1");
+                    unsorted.remove(keys[0]);
+                    unsorted.verifyInvariants();
+                }
+            }
+
+            try {
+                BALST.fromSorted(new Integer[] { 1, 2, 2 }, new String[] { "1", "2", "2" });
+                fail("duplicate keys did not throw DuplicateKeyException");
+            } catch (DuplicateKeyException e) {
+                // expected
+            }
+            try {
+                BALST.fromUnsorted(new Integer[] { 2, 1, 2 }, new String[] { "2", "1", "2" });
+                fail("duplicate keys did not throw DuplicateKeyException");
+            } catch (DuplicateKeyException e) {
+                // expected
+            }
+            try {
+                BALST.fromSorted(new Integer[] { 1, null }, new String[] { "1", "2" });
+                fail("null key did not throw IllegalNullKeyException");
+            } catch (IllegalNullKeyException e) {
+                // expected
+            }
+            try {
+                BALST.fromSorted(new Integer[] { 2, 1 }, new String[] { "2", "1" });
+                fail("unsorted keys did not throw IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 015: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Runs random batches of inserts, removes and lookups, including null keys
+     * and keys repeated within a batch, and checks every reported outcome and
+     * the final tree against a TreeMap.
+     */
+    @Test
+    void testBALST_016_batch_operations() {
+        try {
+            Random random = new Random(16);
+            TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+
+            for (int round = 0; round < 200; round++) {
+                List<Integer> keys = new ArrayList<Integer>();
+                List<String> values = new ArrayList<String>();
+                int base = random.nextInt(5000);
+                for (int i = 0; i < 50; i++) {
+                    keys.add(random.nextInt(20) == 0 ? null : base + random.nextInt(200));
+                    values.add("" + round);
+                }
+
+                BALST.BatchOutcome[] outcomes;
+                switch (random.nextInt(3)) {
+                case 0:
+                    outcomes = balst2.insertAll(keys, values);
+                    for (int i = 0; i < keys.size(); i++) {
+                        Integer key = keys.get(i);
+                        if (key == null) {
+                            Assert.assertEquals(BALST.BatchOutcome.NULL_KEY, outcomes[i]);
+                        } else if (expected.containsKey(key)) {
+                            Assert.assertEquals(BALST.BatchOutcome.DUPLICATE, outcomes[i]);
+                        } else {
+                            Assert.assertEquals(BALST.BatchOutcome.INSERTED, outcomes[i]);
+                            expected.put(key, values.get(i));
+                        }
+                    }
+                    break;
+                case 1:
+                    outcomes = balst2.removeAll(keys);
+                    for (int i = 0; i < keys.size(); i++) {
+                        Integer key = keys.get(i);
+                        if (key == null) {
+                            Assert.assertEquals(BALST.BatchOutcome.NULL_KEY, outcomes[i]);
+                        } else if (expected.containsKey(key)) {
+                            Assert.assertEquals(BALST.BatchOutcome.REMOVED, outcomes[i]);
+                            expected.remove(key);
+                        } else {
+                            Assert.assertEquals(BALST.BatchOutcome.NOT_FOUND, outcomes[i]);
+                        }
+                    }
+                    break;
+                default:
+                    List<String> found = new ArrayList<String>();
+                    outcomes = balst2.getAll(keys, found);
+                    Assert.assertArrayEquals(outcomes, balst2.containsAll(keys));
+                    for (int i = 0; i < keys.size(); i++) {
+                        Integer key = keys.get(i);
+                        if (key == null) {
+                            Assert.assertEquals(BALST.BatchOutcome.NULL_KEY, outcomes[i]);
+                        } else {
+                            Assert.assertEquals(expected.containsKey(key) ? BALST.BatchOutcome.FOUND
+                                    : BALST.BatchOutcome.NOT_FOUND, outcomes[i]);
+                        }
+                        Assert.assertEquals(key == null ? null : expected.get(key), found.get(i));
+                    }
+                }
+
+                balst2.verifyInvariants();
+                Assert.assertEquals(expected.size(), balst2.numKeys());
+            }
+            Assert.assertEquals(new ArrayList<Integer>(expected.keySet()), balst2.getInOrderTraversal());
+
+            // a sorted batch of removes keeps its finger, so it compares far less than
+            // removing the keys one by one
+            CountingBALSTDiagnostics counts = new CountingBALSTDiagnostics();
+            BALST<Integer, Integer> batched = new BALST<Integer, Integer>(counts);
+            List<Integer> range = new ArrayList<Integer>();
+            for (int key = 0; key < 10000; key++) {
+                batched.insert(key, key);
+                if (key >= 1000 && key < 3000) {
+                    range.add(key);
+                }
+            }
+            counts.reset();
+            for (BALST.BatchOutcome outcome : batched.removeAll(range)) {
+                Assert.assertEquals(BALST.BatchOutcome.REMOVED, outcome);
+            }
+            long batchComparisons = counts.getComparisons();
+            batched.verifyInvariants();
+            Assert.assertEquals(8000, batched.numKeys());
+            Assert.assertFalse(batched.contains(2999));
+            Assert.assertTrue(batched.contains(999) && batched.contains(3000));
+
+            for (Integer key : range) {
+                batched.insert(key, key);
+            }
+            counts.reset();
+            for (Integer key : range) {
+                batched.remove(key);
+            }
+            Assert.assertTrue(batchComparisons * 2 < counts.getComparisons());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 016: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Updates values with put, putIfAbsent, computeIfAbsent, compute and merge,
+     * checking the returned values and that none of them throw for existing
+     * or missing keys.
+     */
+    @Test
+    void testBALST_017_upsert_operations() {
+        try {
+            Assert.assertNull(balst2.put(10, "a"));
+            Assert.assertEquals("a", balst2.put(10, "b"));
+            Assert.assertEquals("b", balst2.get(10));
+
+            Assert.assertEquals("b", balst2.putIfAbsent(10, "c"));
+            Assert.assertNull(balst2.putIfAbsent(20, "c"));
+            Assert.assertEquals("c", balst2.get(20));
+
+            Assert.assertEquals("b", balst2.computeIfAbsent(10, key -> "x"));
+            Assert.assertEquals("30", balst2.computeIfAbsent(30, key -> "" + key));
+            Assert.assertNull(balst2.computeIfAbsent(40, key -> null));
+            Assert.assertFalse(balst2.contains(40));
+
+            Assert.assertEquals("b!", balst2.compute(10, (key, old) -> old + "!"));
+            Assert.assertEquals("new", balst2.compute(40, (key, old) -> old == null ? "new" : old));
+            Assert.assertNull(balst2.compute(40, (key, old) -> null));
+            Assert.assertFalse(balst2.contains(40));
+
+            Assert.assertEquals("m", balst2.merge(50, "m", String::concat));
+            Assert.assertEquals("mn", balst2.merge(50, "n", String::concat));
+            Assert.assertNull(balst2.merge(50, "n", (old, value) -> null));
+            Assert.assertFalse(balst2.contains(50));
+
+            Assert.assertEquals(3, balst2.numKeys());
+            balst2.verifyInvariants();
+
+            // counts with merge the way a word count would
+            BALST<String, Integer> counts = new BALST<String, Integer>();
+            for (String word : "aa bb aa cc aa bb".split(" ")) {
+                counts.merge(word, 1, Integer::sum);
+            }
+            Assert.assertEquals(Integer.valueOf(3), counts.get("aa"));
+            Assert.assertEquals(Integer.valueOf(2), counts.get("bb"));
+            Assert.assertEquals(Integer.valueOf(1), counts.get("cc"));
+
+            try {
+                balst2.computeIfAbsent(60, key -> {
+                    Iterator<Integer> iterator = balst2.iterator();
+                    iterator.next();
+                    iterator.remove();
+                    return "60";
+                });
+                fail("changing the tree inside computeIfAbsent did not throw");
+            } catch (ConcurrentModificationException e) {
+                // expected
+            }
+
+            // the strict methods still throw the ADT exceptions
+            try {
+                balst2.get(70);
+                fail("get of a missing key did not throw KeyNotFoundException");
+            } catch (KeyNotFoundException e) {
+                Assert.assertEquals(0, e.getStackTrace().length);
+            }
+            try {
+                balst2.insert(20, "20");
+                fail("insert of an existing key did not throw DuplicateKeyException");
+            } catch (DuplicateKeyException e) {
+                Assert.assertEquals(0, e.getStackTrace().length);
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 017: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Runs random inserts and removes on the long, int and double keyed trees,
+     * checks their keys against a TreeMap and their height against the red
+     * black bound, and checks that doubles keep Double.compare order.
+     */
+    @Test
+    void testBALST_018_primitive_key_variants() {
+        try {
+            LongBALST<String> longs = new LongBALST<String>();
+            IntBALST<String> ints = new IntBALST<String>();
+            TreeMap<Long, String> expected = new TreeMap<Long, String>();
+            Random random = new Random(18);
+            for (int i = 0; i < 20000; i++) {
+                long key = random.nextInt(4000) - 2000;
+                if (random.nextBoolean()) {
+                    if (expected.containsKey(key)) {
+                        Assert.assertTrue(longs.contains(key));
+                        Assert.assertTrue(ints.contains((int) key));
+                    } else {
+                        longs.insert(key, "" + key);
+                        ints.insert((int) key, "" + key);
+                        expected.put(key, "" + key);
+                    }
+                } else if (expected.remove(key) != null) {
+                    longs.remove(key);
+                    ints.remove((int) key);
+                }
+            }
+            Assert.assertEquals(expected.size(), longs.numKeys());
+            Assert.assertEquals(expected.size(), ints.numKeys());
+            long[] longKeys = longs.getInOrderTraversal();
+            int[] intKeys = ints.getInOrderTraversal();
+            int i = 0;
+            for (Map.Entry<Long, String> entry : expected.entrySet()) {
+                Assert.assertEquals((long) entry.getKey(), longKeys[i]);
+                Assert.assertEquals((long) entry.getKey(), intKeys[i]);
+                Assert.assertEquals(entry.getValue(), longs.get(longKeys[i]));
+                Assert.assertEquals(entry.getValue(), ints.get(intKeys[i]));
+                i++;
+            }
+            Assert.assertEquals((long) expected.firstKey(), longs.firstKey());
+            Assert.assertEquals((long) expected.lastKey(), ints.lastKey());
+            Assert.assertTrue(longs.getHeight() <= 2 * log2(longs.numKeys() + 1));
+            longs.verifyInvariants();
+            ints.verifyInvariants();
+
+            // the int keyed tree is built the same way, keeping the keys as ints
+            long[] longLevels = longs.getLevelOrderTraversal();
+            int[] intLevels = ints.getLevelOrderTraversal();
+            Assert.assertEquals(longLevels.length, intLevels.length);
+            for (int j = 0; j < intLevels.length; j++) {
+                Assert.assertEquals(longLevels[j], intLevels[j]);
+            }
+            ints.insert(Integer.MIN_VALUE, "min");
+            ints.insert(Integer.MAX_VALUE, "max");
+            Assert.assertEquals(Integer.MIN_VALUE, ints.firstKey());
+            Assert.assertEquals(Integer.MAX_VALUE, ints.lastKey());
+            Assert.assertEquals("max", ints.get(Integer.MAX_VALUE));
+            ints.verifyInvariants();
+
+            try {
+                longs.insert(longKeys[0], "again");
+                fail("insert of an existing key did not throw DuplicateKeyException");
+            } catch (DuplicateKeyException e) {
+                // expected
+            }
+            try {
+                ints.get(5000);
+                fail("get of a missing key did not throw KeyNotFoundException");
+            } catch (KeyNotFoundException e) {
+                // expected
+            }
+
+            // doubles come back out in the order Double.compare gives them
+            double[] values = { Double.NaN, 1.5, -0.0, 0.0, Double.NEGATIVE_INFINITY, -1.5,
+                Double.POSITIVE_INFINITY, Double.MIN_VALUE, -Double.MAX_VALUE, 1e300 };
+            DoubleBALST<Double> doubles = new DoubleBALST<Double>();
+            for (double value : values) {
+                doubles.insert(value, value);
+            }
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            Assert.assertArrayEquals(sorted, doubles.getInOrderTraversal(), 0.0);
+            Assert.assertEquals(Double.valueOf(-0.0), doubles.get(-0.0));
+            Assert.assertTrue(doubles.contains(Double.NaN));
+            Assert.assertEquals(Double.NEGATIVE_INFINITY, doubles.firstKey(), 0.0);
+            Assert.assertTrue(Double.isNaN(doubles.lastKey()));
+            doubles.remove(0.0);
+            Assert.assertFalse(doubles.contains(0.0));
+            Assert.assertTrue(doubles.contains(-0.0));
+            doubles.verifyInvariants();
+
+            // prints one level per line, like every other tree
+            DoubleBALST<Double> small = new DoubleBALST<Double>();
+            small.insert(2.5, null);
+            small.insert(-1.0, null);
+            small.insert(4.0, null);
+            PrintStream stdout = System.out;
+            ByteArrayOutputStream printed = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(printed, true));
+            try {
+                small.print();
+            } finally {
+                System.setOut(stdout);
+            }
+            String newline = System.lineSeparator();
+            Assert.assertEquals("2.5 " + newline + "-1.0 4.0 " + newline, printed.toString());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 018: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Runs random inserts and removes on an ArrayBALST next to a BALST and checks
+     * they keep the same shape, that removed slots are reused instead of growing
+     * the arrays, and that the ADT exceptions still come out.
+     */
+    @Test
+    void testBALST_019_array_backed_storage() {
+        try {
+            ArrayBALST<Integer, String> array = new ArrayBALST<Integer, String>(4);
+            Random random = new Random(19);
+            for (int i = 0; i < 20000; i++) {
+                Integer key = random.nextInt(3000);
+                if (random.nextInt(3) > 0) {
+                    if (!balst2.contains(key)) {
+                        balst2.insert(key, "" + key);
+                        array.insert(key, "" + key);
+                    }
+                } else if (balst2.contains(key)) {
+                    balst2.remove(key);
+                    array.remove(key);
+                }
+            }
+            // both trees balance the same way, so they have the same shape
+            Assert.assertEquals(balst2.numKeys(), array.numKeys());
+            Assert.assertEquals(balst2.getLevelOrderTraversal(), array.getLevelOrderTraversal());
+            Assert.assertEquals(balst2.getPreOrderTraversal(), array.getPreOrderTraversal());
+            Assert.assertEquals(balst2.getPostOrderTraversal(), array.getPostOrderTraversal());
+            Assert.assertEquals(balst2.getInOrderTraversal(), array.getInOrderTraversal());
+            Assert.assertEquals(balst2.getHeight(), array.getHeight());
+            Assert.assertEquals(balst2.getKeyAtRoot(), array.getKeyAtRoot());
+            Integer root = array.getKeyAtRoot();
+            Assert.assertEquals(balst2.getKeyOfLeftChildOf(root), array.getKeyOfLeftChildOf(root));
+            Assert.assertEquals(balst2.getKeyOfRightChildOf(root), array.getKeyOfRightChildOf(root));
+            for (Integer key : balst2.getInOrderTraversal()) {
+                Assert.assertEquals(balst2.get(key), array.get(key));
+            }
+            array.verifyInvariants();
+
+            // emptying and refilling the tree reuses the freed slots
+            int capacity = array.capacity();
+            for (Integer key : balst2.getInOrderTraversal()) {
+                array.remove(key);
+            }
+            Assert.assertEquals(0, array.numKeys());
+            Assert.assertNull(array.getKeyAtRoot());
+            Assert.assertEquals(0, array.getHeight());
+            for (int i = 0; i < capacity; i++) {
+                array.insert(i, "" + i);
+            }
+            Assert.assertEquals(capacity, array.capacity());
+            Assert.assertTrue(array.getHeight() <= 2 * log2(capacity + 1));
+            array.verifyInvariants();
+
+            try {
+                array.insert(0, "again");
+                fail("insert of an existing key did not throw DuplicateKeyException");
+            } catch (DuplicateKeyException e) {
+                // expected
+            }
+            try {
+                array.remove(-1);
+                fail("remove of a missing key did not throw KeyNotFoundException");
+            } catch (KeyNotFoundException e) {
+                // expected
+            }
+            try {
+                array.contains(null);
+                fail("contains of null did not throw IllegalNullKeyException");
+            } catch (IllegalNullKeyException e) {
+                // expected
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 019: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Runs random inserts and removes on an OffHeapBALST next to a BALST, checks
+     * that values come back through the codecs, that a pair the codec rejects
+     * leaves the tree unchanged, and that close frees the memory of the pages and
+     * nothing works after it.
+     */
+    @Test
+    void testBALST_020_off_heap_storage() {
+        OffHeapBALST<Integer, String> offHeap = new OffHeapBALST<Integer, String>(BALSTCodec.INT,
+                BALSTCodec.utf8(8));
+        try {
+            Random random = new Random(20);
+            for (int i = 0; i < 20000; i++) {
+                Integer key = random.nextInt(3000) - 1500;
+                if (random.nextInt(3) > 0) {
+                    if (!balst2.contains(key)) {
+                        balst2.insert(key, "v" + key);
+                        offHeap.insert(key, "v" + key);
+                    }
+                } else if (balst2.contains(key)) {
+                    balst2.remove(key);
+                    offHeap.remove(key);
+                }
+            }
+            Assert.assertEquals(balst2.numKeys(), offHeap.numKeys());
+            Assert.assertEquals(balst2.getLevelOrderTraversal(), offHeap.getLevelOrderTraversal());
+            Assert.assertEquals(balst2.getInOrderTraversal(), offHeap.getInOrderTraversal());
+            Assert.assertEquals(balst2.getHeight(), offHeap.getHeight());
+            for (Integer key : balst2.getInOrderTraversal()) {
+                Assert.assertEquals(balst2.get(key), offHeap.get(key));
+            }
+            Assert.assertTrue(offHeap.memoryUsed() > 0);
+            offHeap.verifyInvariants();
+
+            // a value too long for the codec is rejected without changing the tree
+            int size = offHeap.numKeys();
+            try {
+                offHeap.insert(5000, "much too long");
+                fail("insert of a value the codec cannot hold did not throw");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            Assert.assertEquals(size, offHeap.numKeys());
+            Assert.assertFalse(offHeap.contains(5000));
+            offHeap.insert(5000, null);
+            Assert.assertNull(offHeap.get(5000));
+            offHeap.verifyInvariants();
+
+            try {
+                offHeap.get(9999);
+                fail("get of a missing key did not throw KeyNotFoundException");
+            } catch (KeyNotFoundException e) {
+                // expected
+            }
+
+            BufferPoolMXBean direct = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                    .filter(pool -> pool.getName().equals("direct")).findFirst().get();
+            long before = direct.getMemoryUsed();
+            long pages = offHeap.memoryUsed();
+            offHeap.close();
+            Assert.assertTrue(before - direct.getMemoryUsed() >= pages);
+            offHeap.close();
+            Assert.assertTrue(offHeap.isClosed());
+            try {
+                offHeap.contains(5000);
+                fail("contains after close did not throw IllegalStateException");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            try {
+                offHeap.insert(6000, "6000");
+                fail("insert after close did not throw IllegalStateException");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 020: "+e.getMessage() );
+        } finally {
+            offHeap.close();
+        }
+    }
+
+    /**
+     * Checkpoints a MappedBALST, changes it without checkpointing and reopens it,
+     * which has to give back exactly the checkpointed keys. Also checks a damaged
+     * header is refused and a leftover temporary file is ignored.
+     */
+    @Test
+    void testBALST_021_memory_mapped_checkpoint() {
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("balst");
+            Path file = dir.resolve("tree.balst");
+            MappedBALST<Integer, Long> mapped = MappedBALST.open(file, BALSTCodec.INT, BALSTCodec.LONG);
+            Assert.assertEquals(0, mapped.numKeys());
+            for (int i = 0; i < 50000; i++) {
+                mapped.insert(i * 7 % 50000, (long) i);
+            }
+            for (int i = 0; i < 50000; i += 3) {
+                mapped.remove(i);
+            }
+            mapped.checkpoint();
+            List<Integer> saved = mapped.getLevelOrderTraversal();
+
+            // changes after the checkpoint are not in the file
+            mapped.insert(-1, -1L);
+            mapped.remove(1);
+            mapped.close();
+
+            mapped = MappedBALST.open(file, BALSTCodec.INT, BALSTCodec.LONG);
+            Assert.assertEquals(saved, mapped.getLevelOrderTraversal());
+            Assert.assertFalse(mapped.contains(-1));
+            Assert.assertEquals(Long.valueOf(7143), mapped.get(1));
+            mapped.verifyInvariants();
+
+            // the reopened tree keeps working and grows past the mapped pages
+            for (int i = 50000; i < 120000; i++) {
+                mapped.insert(i, (long) i);
+            }
+            mapped.remove(2);
+            mapped.checkpoint();
+            List<Integer> grown = mapped.getInOrderTraversal();
+            mapped.insert(-2, -2L);
+            Assert.assertTrue(mapped.contains(-2));
+            mapped.close();
+
+            // a temporary file left by a crashed checkpoint does not matter
+            Files.write(dir.resolve("tree.balst.tmp"), new byte[] { 1, 2, 3 });
+            mapped = MappedBALST.open(file, BALSTCodec.INT, BALSTCodec.LONG);
+            Assert.assertEquals(grown, mapped.getInOrderTraversal());
+            mapped.verifyInvariants();
+            mapped.close();
+
+            try {
+                MappedBALST.open(file, BALSTCodec.LONG, BALSTCodec.LONG);
+                fail("open with a different key width did not throw IOException");
+            } catch (IOException e) {
+                // expected
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[] { 9 }), 28);
+            }
+            try {
+                MappedBALST.open(file, BALSTCodec.INT, BALSTCodec.LONG);
+                fail("open of a damaged header did not throw IOException");
+            } catch (IOException e) {
+                // expected
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 021: "+e.getMessage() );
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Writes trees with BALSTSerializer and reads them back from a file, which is
+     * mapped, and from a stream, which is read in pieces, checking the trees come
+     * back the same and that damaged or mismatched data is refused.
+     */
+    @Test
+    void testBALST_022_binary_serialization() {
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("balst");
+            Path file = dir.resolve("trees.bin");
+            BALSTSerializer<Integer, String> serializer = new BALSTSerializer<Integer, String>(BALSTCodec.INT,
+                    BALSTCodec.utf8(6));
+            for (int i = 0; i < 30000; i++) {
+                balst2.insert(i * 2, "v" + i);
+            }
+            BALST<Integer, String> empty = createInstance2();
+
+            // two trees written one after the other to the same file
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                serializer.write(balst2, out);
+                serializer.write(empty, out);
+            }
+            Assert.assertEquals(2 * (BALSTSerializer.HEADER_BYTES + 4) + 30000 * 12, Files.size(file));
+
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                BALST<Integer, String> copy = serializer.read(in);
+                Assert.assertEquals(balst2.getInOrderTraversal(), copy.getInOrderTraversal());
+                Assert.assertEquals("v12345", copy.get(24690));
+                Assert.assertTrue(copy.getHeight() <= 2 * log2(copy.numKeys() + 1));
+                copy.verifyInvariants();
+                Assert.assertEquals(0, serializer.read(in).numKeys());
+                Assert.assertEquals(in.size(), in.position());
+            }
+
+            // a stream is read in pieces and left right after the first tree
+            byte[] bytes = Files.readAllBytes(file);
+            ReadableByteChannel stream = Channels.newChannel(new ByteArrayInputStream(bytes));
+            BALST<Integer, String> copy = serializer.read(stream);
+            Assert.assertEquals(balst2.getInOrderTraversal(), copy.getInOrderTraversal());
+            Assert.assertEquals(0, serializer.read(stream).numKeys());
+
+            // a changed byte in the pairs is caught by the checksum
+            bytes[BALSTSerializer.HEADER_BYTES + 5000] ^= 1;
+            try {
+                serializer.read(Channels.newChannel(new ByteArrayInputStream(bytes)));
+                fail("read of damaged data did not throw IOException");
+            } catch (IOException e) {
+                // expected
+            }
+            try {
+                serializer.read(Channels.newChannel(new ByteArrayInputStream(bytes, 0, 1000)));
+                fail("read of cut off data did not throw IOException");
+            } catch (IOException e) {
+                // expected
+            }
+
+            // a forged count of pairs is refused before arrays for it are made
+            bytes[BALSTSerializer.HEADER_BYTES + 5000] ^= 1;
+            ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(16, Integer.MAX_VALUE);
+            try {
+                serializer.read(Channels.newChannel(new ByteArrayInputStream(bytes, 0,
+                        BALSTSerializer.HEADER_BYTES + 4 + 30000 * 12)));
+                fail("read of a stream with a forged count did not throw IOException");
+            } catch (IOException e) {
+                Assert.assertEquals("data ends early", e.getMessage());
+            }
+            Path forged = dir.resolve("forged.bin");
+            Files.write(forged, bytes);
+            try (FileChannel in = FileChannel.open(forged, StandardOpenOption.READ)) {
+                serializer.read(in);
+                fail("read of a file with a forged count did not throw IOException");
+            } catch (IOException e) {
+                Assert.assertEquals("data ends early", e.getMessage());
+            }
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                new BALSTSerializer<Long, String>(BALSTCodec.LONG, BALSTCodec.utf8(6)).read(in);
+                fail("read with a different key width did not throw IOException");
+            } catch (IOException e) {
+                // expected
+            }
+
+            // pairs of no bytes cannot be bounded by the data, so a count above the
+            // single key they can hold is refused instead of looped over
+            BALSTCodec<Integer> none = new BALSTCodec<Integer>() {
+                @Override
+                public int width() {
+                    return 0;
+                }
+
+                @Override
+                public void write(ByteBuffer buffer, int offset, Integer value) {
+                }
+
+                @Override
+                public Integer read(ByteBuffer buffer, int offset) {
+                    return 0;
+                }
+            };
+            BALSTSerializer<Integer, Integer> nothing = new BALSTSerializer<Integer, Integer>(none, none);
+            ByteBuffer header = ByteBuffer.allocate(BALSTSerializer.HEADER_BYTES + 4).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(BALSTSerializer.MAGIC).putInt(BALSTSerializer.VERSION).putInt(0).putInt(0)
+                    .putInt(Integer.MAX_VALUE).putInt(0);
+            try {
+                nothing.read(Channels.newChannel(new ByteArrayInputStream(header.array())));
+                fail("read of a forged count of empty pairs did not throw IOException");
+            } catch (IOException e) {
+                // expected
+            }
+
+            // a null value is refused by the primitive codecs like a too long string
+            BALST<Integer, Long> nulls = new BALST<Integer, Long>();
+            nulls.insert(1, null);
+            try {
+                new BALSTSerializer<Integer, Long>(BALSTCodec.INT, BALSTCodec.LONG).write(nulls,
+                        Channels.newChannel(new ByteArrayOutputStream()));
+                fail("write of a null value did not throw IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 022: "+e.getMessage() );
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Changes a LoggedBALST from several threads, reopens it without closing as a
+     * crash would, and checks the log gives back every change that was forced,
+     * that a torn record at the end is dropped and that checkpoint compacts the
+     * log without losing anything, even if the old log is replayed again.
+     */
+    @Test
+    void testBALST_023_write_ahead_log() {
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("balst");
+            LoggedBALST<Integer, Long> logged = LoggedBALST.open(dir, BALSTCodec.INT, BALSTCodec.LONG, 1);
+
+            // four threads insert their own keys, each insert is forced before it returns
+            List<Thread> threads = new ArrayList<Thread>();
+            List<Throwable> errors = new ArrayList<Throwable>();
+            final LoggedBALST<Integer, Long> shared = logged;
+            for (int t = 0; t < 4; t++) {
+                final int first = t;
+                Thread thread = new Thread(() -> {
+                    try {
+                        for (int key = first; key < 2000; key += 4) {
+                            shared.insert(key, (long) key);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals(Collections.emptyList(), errors);
+            for (int key = 0; key < 2000; key += 3) {
+                logged.remove(key);
+            }
+
+            // opened again without closing, as after a crash
+            LoggedBALST<Integer, Long> reopened = LoggedBALST.open(dir, BALSTCodec.INT, BALSTCodec.LONG, 64);
+            Assert.assertEquals(logged.getInOrderTraversal(), reopened.getInOrderTraversal());
+            Assert.assertEquals(Long.valueOf(1999), reopened.get(1999));
+            logged.close();
+            logged = reopened;
+
+            // a record cut off by a crash is dropped and cut from the log
+            for (int key = 2000; key < 2100; key++) {
+                logged.insert(key, (long) key);
+            }
+            logged.sync();
+            long synced = logged.logBytes();
+            List<Integer> keys = logged.getInOrderTraversal();
+            try (FileChannel log = FileChannel.open(dir.resolve(LoggedBALST.LOG), StandardOpenOption.WRITE)) {
+                log.write(ByteBuffer.wrap(new byte[] { LoggedBALST.INSERT, 1, 2, 3 }), synced);
+            }
+            reopened = LoggedBALST.open(dir, BALSTCodec.INT, BALSTCodec.LONG, 64);
+            Assert.assertEquals(keys, reopened.getInOrderTraversal());
+            Assert.assertEquals(synced, reopened.logBytes());
+            logged.close();
+            logged = reopened;
+
+            // checkpoint empties the log, and replaying the old log again changes nothing
+            Path oldLog = dir.resolve("old.log");
+            Files.copy(dir.resolve(LoggedBALST.LOG), oldLog);
+            logged.checkpoint();
+            Assert.assertEquals(LoggedBALST.LOG_HEADER_BYTES, logged.logBytes());
+            logged.remove(2050);
+            logged.insert(-5, -5L);
+            keys = logged.getInOrderTraversal();
+            logged.close();
+            logged.close();
+            try {
+                logged.insert(-6, -6L);
+                fail("insert after close did not throw IllegalStateException");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            logged = LoggedBALST.open(dir, BALSTCodec.INT, BALSTCodec.LONG, 64);
+            Assert.assertEquals(keys, logged.getInOrderTraversal());
+            logged.close();
+            Files.move(oldLog, dir.resolve(LoggedBALST.LOG), StandardCopyOption.REPLACE_EXISTING);
+            logged = LoggedBALST.open(dir, BALSTCodec.INT, BALSTCodec.LONG, 64);
+            List<Integer> beforeCheckpoint = new ArrayList<Integer>(keys);
+            beforeCheckpoint.add(2050);
+            beforeCheckpoint.remove(Integer.valueOf(-5));
+            Collections.sort(beforeCheckpoint);
+            Assert.assertEquals(beforeCheckpoint, logged.getInOrderTraversal());
+            logged.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 023: "+e.getMessage() );
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Inserts many keys in sorted, reverse sorted and random order and checks
+     * every key is linked into the tree, that no insert takes more than two
+     * rotations, and that the height stays within the red black bound.
+     */
+    @Test
+    void testBALST_024_insert_orders_stay_balanced() {
+        try {
+            int n = 50000;
+            List<Integer> sorted = new ArrayList<Integer>();
+            for (int i = 0; i < n; i++) {
+                sorted.add(i);
+            }
+            List<Integer> reversed = new ArrayList<Integer>(sorted);
+            Collections.reverse(reversed);
+            List<Integer> shuffled = new ArrayList<Integer>(sorted);
+            Collections.shuffle(shuffled, new Random(24));
+
+            for (List<Integer> order : Arrays.asList(sorted, reversed, shuffled)) {
+                CountingBALSTDiagnostics counts = new CountingBALSTDiagnostics();
+                BALST<Integer, String> balst = new BALST<Integer, String>(counts);
+                for (Integer key : order) {
+                    long rotations = counts.getRotations();
+                    balst.insert(key, "" + key);
+                    Assert.assertTrue(counts.getRotations() - rotations <= 2);
+                }
+                Assert.assertEquals(n, balst.numKeys());
+                Assert.assertEquals(sorted, balst.getInOrderTraversal());
+                Assert.assertEquals(n, balst.getLevelOrderTraversal().size());
+                Assert.assertTrue(balst.getHeight() <= 2 * log2(n + 1));
+                Assert.assertEquals(balst.computeHeight(), balst.getHeight());
+                for (Integer key : order) {
+                    Assert.assertEquals("" + key, balst.get(key));
+                }
+                balst.verifyInvariants();
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 024: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Runs writers that keep inserting and removing even keys against readers
+     * that look up the odd keys, which are never removed, and checks the
+     * optimistic reads never miss an odd key or return a wrong neighbor.
+     */
+    @Test
+    void testBALST_025_concurrent_optimistic_reads() {
+        try {
+            ConcurrentBALST<Integer, String> shared = new ConcurrentBALST<Integer, String>();
+            Assert.assertNull(shared.firstKey());
+            for (int key = 1; key < 2000; key += 2) {
+                shared.insert(key, "" + key);
+            }
+            Assert.assertEquals(Integer.valueOf(1), shared.firstKey());
+            Assert.assertEquals(Integer.valueOf(1999), shared.lastKey());
+            Assert.assertEquals(Integer.valueOf(9), shared.lowerKey(11));
+            Assert.assertEquals(Integer.valueOf(13), shared.higherKey(11));
+            Assert.assertNull(shared.higherKey(1999));
+
+            List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 2; t++) {
+                final Random random = new Random(t);
+                final int writer = t;
+                threads.add(new Thread(() -> {
+                    try {
+                        // each writer has its own half of the even keys
+                        for (int i = 0; i < 20000; i++) {
+                            Integer key = (random.nextInt(500) * 2 + writer) * 2;
+                            if (shared.put(key, "" + key) != null) {
+                                shared.remove(key);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }));
+            }
+            for (int t = 0; t < 3; t++) {
+                final Random random = new Random(10 + t);
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 40000; i++) {
+                            Integer key = random.nextInt(1000) * 2 + 1;
+                            Assert.assertEquals("" + key, shared.get(key));
+                            Assert.assertTrue(shared.contains(key));
+                            Assert.assertEquals(key, shared.floorKey(key));
+                            Integer higher = shared.higherKey(key);
+                            Assert.assertTrue(key == 1999 ? higher == null : higher == key + 1 || higher == key + 2);
+                            Assert.assertTrue(shared.getHeight() <= 2 * log2(shared.numKeys() + 1));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals(Collections.emptyList(), errors);
+
+            List<Integer> keys = shared.getInOrderTraversal();
+            Assert.assertEquals(shared.numKeys(), keys.size());
+            for (int i = 1; i < keys.size(); i++) {
+                Assert.assertTrue(keys.get(i - 1) < keys.get(i));
+            }
+            try {
+                shared.get(-1);
+                fail("get of a missing key did not throw KeyNotFoundException");
+            } catch (KeyNotFoundException e) {
+                // expected
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 025: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * tests that a SkipListBALST changed by many threads at once behaves like some
+     * order of its calls, checked by a history checker, and that its other
+     * methods agree with a BALST of the same keys
+     */
+    @Test
+    void testBALST_026_skip_list_linearizable() {
+        try {
+            // the checker itself accepts an overlapping call and rejects a stale read
+            List<Call> history = new ArrayList<Call>();
+            history.add(new Call(Call.INSERT, 0, 1, true, 0, 10));
+            history.add(new Call(Call.GET, 0, -1, false, 5, 6));
+            Assert.assertTrue(linearizable(history));
+            history.add(new Call(Call.GET, 0, -1, false, 11, 12));
+            Assert.assertFalse(linearizable(history));
+
+            SkipListBALST<Integer, Integer> shared = new SkipListBALST<Integer, Integer>();
+            List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            List<List<Call>> histories = new ArrayList<List<Call>>();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 4; t++) {
+                final Random random = new Random(t);
+                final int thread = t;
+                final List<Call> calls = new ArrayList<Call>();
+                histories.add(calls);
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 1000; i++) {
+                            int kind = random.nextInt(3);
+                            int key = random.nextInt(8);
+                            int value = thread * 1000000 + i; // unique, so a get shows which insert it saw
+                            boolean ok = true;
+                            long start = System.nanoTime();
+                            try {
+                                if (kind == Call.INSERT) {
+                                    shared.insert(key, value);
+                                } else if (kind == Call.REMOVE) {
+                                    shared.remove(key);
+                                } else {
+                                    value = shared.get(key);
+                                }
+                            } catch (DuplicateKeyException | KeyNotFoundException e) {
+                                ok = false;
+                            }
+                            calls.add(new Call(kind, key, value, ok, start, System.nanoTime()));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals(Collections.emptyList(), errors);
+
+            // calls on different keys do not affect each other, so the history is
+            // linearizable if the calls on each key are
+            Map<Integer, List<Call>> byKey = new TreeMap<Integer, List<Call>>();
+            for (List<Call> calls : histories) {
+                for (Call call : calls) {
+                    byKey.computeIfAbsent(call.key, k -> new ArrayList<Call>()).add(call);
+                }
+            }
+            for (Map.Entry<Integer, List<Call>> calls : byKey.entrySet()) {
+                Assert.assertTrue("calls on key " + calls.getKey() + " are not linearizable",
+                        linearizable(calls.getValue()));
+            }
+
+            // the rest of the methods, once the threads are done
+            SkipListBALST<Integer, String> skip = new SkipListBALST<Integer, String>();
+            BALST<Integer, String> tree = new BALST<Integer, String>();
+            for (int key = 0; key < 100; key += 3) {
+                skip.insert(key, "" + key);
+                tree.insert(key, "" + key);
+            }
+            skip.insert(200, null);
+            tree.insert(200, null);
+            Assert.assertNull(skip.get(200));
+            Assert.assertTrue(skip.contains(200));
+            Assert.assertEquals(tree.numKeys(), skip.numKeys());
+            Assert.assertEquals(tree.getInOrderTraversal(), skip.getInOrderTraversal());
+            Assert.assertEquals(BALST.fromSorted(tree.getInOrderTraversal().toArray(new Integer[0]),
+                    new String[tree.numKeys()]).getLevelOrderTraversal(), skip.getLevelOrderTraversal());
+            Assert.assertTrue(skip.getHeight() <= 2 * log2(skip.numKeys() + 1));
+            BALST<Integer, String> snapshot = skip.snapshot();
+            Assert.assertEquals(snapshot.getKeyAtRoot(), skip.getKeyAtRoot());
+            Assert.assertEquals(snapshot.getKeyOfLeftChildOf(snapshot.getKeyAtRoot()),
+                    skip.getKeyOfLeftChildOf(skip.getKeyAtRoot()));
+            Assert.assertEquals(snapshot.getPreOrderTraversal(), skip.getPreOrderTraversal());
+            skip.insert(150, "150");
+            Assert.assertFalse(snapshot.contains(150));
+            Assert.assertEquals(skip.snapshot().getPostOrderTraversal(), skip.getPostOrderTraversal());
+            skip.remove(150);
+            Assert.assertEquals(snapshot.getLevelOrderTraversal(), skip.getLevelOrderTraversal());
+            Assert.assertEquals(tree.floorKey(50), skip.floorKey(50));
+            Assert.assertEquals(tree.ceilingKey(50), skip.ceilingKey(50));
+            Assert.assertEquals(tree.lowerKey(48), skip.lowerKey(48));
+            Assert.assertEquals(tree.higherKey(48), skip.higherKey(48));
+            Assert.assertEquals(Integer.valueOf(0), skip.firstKey());
+            Assert.assertEquals(Integer.valueOf(200), skip.lastKey());
+            Assert.assertEquals("3", skip.put(3, "three"));
+            Assert.assertEquals("three", skip.putIfAbsent(3, "3"));
+            try {
+                skip.insert(3, "3");
+                fail("insert of an existing key did not throw DuplicateKeyException");
+            } catch (DuplicateKeyException e) {
+                // expected
+            }
+            Assert.assertTrue(skip.remove(3));
+            try {
+                skip.remove(3);
+                fail("remove of a missing key did not throw KeyNotFoundException");
+            } catch (KeyNotFoundException e) {
+                // expected
+            }
+            try {
+                skip.get(null);
+                fail("get of a null key did not throw IllegalNullKeyException");
+            } catch (IllegalNullKeyException e) {
+                // expected
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 026: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * tests that a PersistentBALST matches a TreeMap under random changes, stays
+     * balanced, and that its snapshots never change, even while another thread
+     * keeps changing the tree
+     */
+    @Test
+    void testBALST_027_persistent_snapshots() {
+        try {
+            PersistentBALST<Integer, String> tree = new PersistentBALST<Integer, String>();
+            TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+            Random random = new Random(27);
+            List<PersistentBALST<Integer, String>> snapshots = new ArrayList<PersistentBALST<Integer, String>>();
+            List<TreeMap<Integer, String>> snapshotKeys = new ArrayList<TreeMap<Integer, String>>();
+            for (int i = 0; i < 20000; i++) {
+                Integer key = random.nextInt(2000);
+                if (random.nextBoolean()) {
+                    Assert.assertEquals(expected.put(key, "" + i), tree.put(key, "" + i));
+                } else if (expected.remove(key) != null) {
+                    Assert.assertTrue(tree.remove(key));
+                } else {
+                    try {
+                        tree.remove(key);
+                        fail("remove of a missing key did not throw KeyNotFoundException");
+                    } catch (KeyNotFoundException e) {
+                        // expected
+                    }
+                }
+                if (i % 1000 == 0) {
+                    snapshots.add(tree.snapshot());
+                    snapshotKeys.add(new TreeMap<Integer, String>(expected));
+                }
+            }
+            Assert.assertEquals(expected.size(), tree.numKeys());
+            Assert.assertEquals(new ArrayList<Integer>(expected.keySet()), tree.getInOrderTraversal());
+            Assert.assertTrue(tree.getHeight() <= 1.45 * log2(tree.numKeys() + 2));
+            for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+                Assert.assertEquals(entry.getValue(), tree.get(entry.getKey()));
+            }
+            Assert.assertEquals(expected.floorKey(1000), tree.floorKey(1000));
+            Assert.assertEquals(expected.ceilingKey(1000), tree.ceilingKey(1000));
+            Assert.assertEquals(expected.firstKey(), tree.firstKey());
+            Assert.assertEquals(expected.lastKey(), tree.lastKey());
+
+            // keys added in order end up in a full tree, walked without recursion
+            PersistentBALST<Integer, String> full = new PersistentBALST<Integer, String>();
+            for (int key = 1; key <= 7; key++) {
+                full.insert(key, "" + key);
+            }
+            Assert.assertEquals(Arrays.asList(4, 2, 1, 3, 6, 5, 7), full.getPreOrderTraversal());
+            Assert.assertEquals(Arrays.asList(1, 3, 2, 5, 7, 6, 4), full.getPostOrderTraversal());
+            Assert.assertEquals(Arrays.asList(4, 2, 6, 1, 3, 5, 7), full.getLevelOrderTraversal());
+            ByteArrayOutputStream printed = new ByteArrayOutputStream();
+            PrintStream stdout = System.out;
+            System.setOut(new PrintStream(printed, true));
+            try {
+                full.print();
+            } finally {
+                System.setOut(stdout);
+            }
+            String newline = System.lineSeparator();
+            Assert.assertEquals("4 " + newline + "2 6 " + newline + "1 3 5 7 " + newline, printed.toString());
+            full.remove(4);
+            Assert.assertEquals(Arrays.asList(5, 2, 6, 1, 3, 7), full.getLevelOrderTraversal());
+            Assert.assertEquals("5", full.get(5));
+
+            // every snapshot still holds the keys and values it was taken with
+            for (int i = 0; i < snapshots.size(); i++) {
+                PersistentBALST<Integer, String> snapshot = snapshots.get(i);
+                Assert.assertEquals(new ArrayList<Integer>(snapshotKeys.get(i).keySet()),
+                        snapshot.getInOrderTraversal());
+                for (Map.Entry<Integer, String> entry : snapshotKeys.get(i).entrySet()) {
+                    Assert.assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+                }
+            }
+
+            // a change to a snapshot is not seen by the tree it came from
+            PersistentBALST<Integer, String> snapshot = tree.snapshot();
+            snapshot.insert(-1, "-1");
+            Assert.assertTrue(snapshot.contains(-1));
+            Assert.assertFalse(tree.contains(-1));
+            try {
+                snapshot.insert(-1, "again");
+                fail("insert of an existing key did not throw DuplicateKeyException");
+            } catch (DuplicateKeyException e) {
+                // expected
+            }
+
+            // readers of a snapshot see the same keys while a writer changes the tree
+            PersistentBALST<Integer, String> frozen = tree.snapshot();
+            List<Integer> frozenKeys = frozen.getInOrderTraversal();
+            List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            Thread writer = new Thread(() -> {
+                try {
+                    Random changes = new Random(72);
+                    for (int i = 0; i < 20000; i++) {
+                        Integer key = changes.nextInt(2000);
+                        if (tree.put(key, "w") != null) {
+                            tree.remove(key);
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            writer.start();
+            for (int i = 0; i < 50; i++) {
+                List<Integer> seen = new ArrayList<Integer>();
+                for (Integer key : frozen) {
+                    seen.add(key);
+                }
+                Assert.assertEquals(frozenKeys, seen);
+                Assert.assertEquals(frozenKeys.size(), frozen.numKeys());
+            }
+            writer.join();
+            Assert.assertEquals(Collections.emptyList(), errors);
+            Assert.assertEquals(tree.numKeys(), tree.getInOrderTraversal().size());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 027: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * tests that a ShardedBALST routes keys to its shards, splits shards that grow
+     * too large, scans ranges across shards in order, and keeps every key while
+     * threads change it and shards split under them
+     */
+    @Test
+    void testBALST_028_sharded() {
+        try {
+            try {
+                new ShardedBALST<Integer, String>(16, Arrays.asList(5, 5));
+                fail("split keys out of order were accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+            ShardedBALST<Integer, String> sharded = new ShardedBALST<Integer, String>(16, Arrays.asList(100, 200));
+            Assert.assertEquals(3, sharded.shardCount());
+            TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+            Random random = new Random(28);
+            for (int i = 0; i < 5000; i++) {
+                Integer key = random.nextInt(1000) - 100;
+                if (random.nextInt(3) > 0) {
+                    Assert.assertEquals(expected.put(key, "" + i), sharded.put(key, "" + i));
+                } else if (expected.remove(key) != null) {
+                    Assert.assertTrue(sharded.remove(key));
+                } else {
+                    Assert.assertFalse(sharded.contains(key));
+                }
+            }
+            Assert.assertTrue(sharded.shardCount() >= expected.size() / 16);
+            Assert.assertEquals(expected.size(), sharded.numKeys());
+            Assert.assertEquals(new ArrayList<Integer>(expected.keySet()), sharded.getInOrderTraversal());
+            for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+                Assert.assertEquals(entry.getValue(), sharded.get(entry.getKey()));
+            }
+            Assert.assertEquals(new ArrayList<Integer>(expected.subMap(150, 620).keySet()),
+                    sharded.getKeysInRange(150, 620));
+            Assert.assertEquals(Collections.emptyList(), sharded.getKeysInRange(7, 7));
+            Assert.assertEquals(expected.size(), sharded.getLevelOrderTraversal().size());
+            Assert.assertTrue(sharded.getHeight() <= 2 * log2(sharded.numKeys() + 1));
+            BALST<Integer, String> snapshot = sharded.snapshot();
+            Assert.assertEquals(snapshot.getKeyAtRoot(), sharded.getKeyAtRoot());
+            Assert.assertEquals(snapshot.getKeyOfRightChildOf(snapshot.getKeyAtRoot()),
+                    sharded.getKeyOfRightChildOf(sharded.getKeyAtRoot()));
+            Assert.assertEquals(snapshot.getPreOrderTraversal(), sharded.getPreOrderTraversal());
+            sharded.put(5000, "5000");
+            Assert.assertEquals(sharded.snapshot().getPostOrderTraversal(), sharded.getPostOrderTraversal());
+            sharded.remove(5000);
+            Assert.assertEquals(snapshot.getLevelOrderTraversal(), sharded.getLevelOrderTraversal());
+            try {
+                sharded.insert(expected.firstKey(), "again");
+                fail("insert of an existing key did not throw DuplicateKeyException");
+            } catch (DuplicateKeyException e) {
+                // expected
+            }
+            try {
+                sharded.get(5000);
+                fail("get of a missing key did not throw KeyNotFoundException");
+            } catch (KeyNotFoundException e) {
+                // expected
+            }
+
+            // shards emptied by removes are merged back with their neighbours
+            ShardedBALST<Integer, Integer> shrinking = new ShardedBALST<Integer, Integer>(16,
+                    new ArrayList<Integer>());
+            for (int key = 0; key < 1000; key++) {
+                shrinking.insert(key, key);
+            }
+            int most = shrinking.shardCount();
+            Assert.assertTrue(most >= 1000 / 16);
+            List<Integer> left = new ArrayList<Integer>();
+            for (int key = 0; key < 1000; key++) {
+                if (key % 100 == 0) {
+                    left.add(key);
+                } else {
+                    shrinking.remove(key);
+                }
+            }
+            Assert.assertTrue(shrinking.shardCount() < most / 10);
+            Assert.assertEquals(left, shrinking.getInOrderTraversal());
+            Assert.assertEquals(left.size(), shrinking.numKeys());
+            for (Integer key : left) {
+                Assert.assertEquals(key, shrinking.get(key));
+            }
+
+            // the odd keys stay while writers add and remove even keys of their own
+            // range and a reader keeps scanning
+            ShardedBALST<Integer, Integer> shared = new ShardedBALST<Integer, Integer>(64, new ArrayList<Integer>());
+            List<Integer> odd = new ArrayList<Integer>();
+            for (int key = 1; key < 8000; key += 2) {
+                shared.insert(key, key);
+                odd.add(key);
+            }
+            List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 4; t++) {
+                final int writer = t;
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int key = writer * 2000; key < (writer + 1) * 2000; key += 2) {
+                            shared.insert(key, key);
+                        }
+                        for (int key = writer * 2000; key < (writer + 1) * 2000; key += 4) {
+                            shared.remove(key);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }));
+            }
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 20; i++) {
+                        List<Integer> keys = shared.getInOrderTraversal();
+                        List<Integer> seen = new ArrayList<Integer>();
+                        for (int j = 0; j < keys.size(); j++) {
+                            Assert.assertTrue(j == 0 || keys.get(j - 1) < keys.get(j));
+                            if (keys.get(j) % 2 != 0) {
+                                seen.add(keys.get(j));
+                            }
+                        }
+                        Assert.assertEquals(odd, seen);
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals(Collections.emptyList(), errors);
+            List<Integer> keys = shared.getInOrderTraversal();
+            Assert.assertEquals(4000 + 2000, keys.size());
+            Assert.assertEquals(keys.size(), shared.numKeys());
+            for (Integer key : keys) {
+                Assert.assertTrue(key % 2 != 0 || key % 4 == 2);
+                Assert.assertEquals(key, shared.get(key));
+            }
+            Assert.assertTrue(shared.shardCount() > 6000 / 64);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 028: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * tests that OffHeapBALST orders keys by comparing their encoded bytes the same
+     * way the keys themselves compare, for strings outside the basic plane,
+     * negative and signed zero doubles, and a key too long for its codec, also
+     * when several threads look keys up at once
+     */
+    @Test
+    void testBALST_029_off_heap_encoded_compare() {
+        try (OffHeapBALST<String, Integer> strings = new OffHeapBALST<String, Integer>(BALSTCodec.utf8(8),
+                BALSTCodec.INT);
+                OffHeapBALST<Double, Integer> doubles = new OffHeapBALST<Double, Integer>(BALSTCodec.DOUBLE,
+                        BALSTCodec.INT)) {
+            String[] keys = { "", "a", "ab", "b", "\u00e9", "\u4e00", "\ud7ff", "\ue000", "\uffff",
+                    "\ud83d\ude00", "\ud800\udc00", "a\ud83d\ude00", "a\uffff" };
+            TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+            for (int i = 0; i < keys.length; i++) {
+                strings.insert(keys[i], i);
+                expected.put(keys[i], i);
+            }
+            Assert.assertEquals(new ArrayList<String>(expected.keySet()), strings.getInOrderTraversal());
+            for (String key : keys) {
+                Assert.assertEquals(expected.get(key), strings.get(key));
+            }
+            Assert.assertFalse(strings.contains("\ue001"));
+            Assert.assertFalse(strings.contains("much too long"));
+            strings.verifyInvariants();
+
+            // lookups on several threads at once each encode their own key
+            List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 4; t++) {
+                final int first = t;
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int round = 0; round < 20000; round++) {
+                            int i = (first + round) % keys.length;
+                            Assert.assertEquals(expected.get(keys[i]), strings.get(new String(keys[i])));
+                            Assert.assertFalse(strings.contains(keys[i] + "\u0001"));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals(Collections.emptyList(), errors);
+
+            Double[] numbers = { 0.0, -0.0, -1.5, 2.0, Double.NEGATIVE_INFINITY, Double.MAX_VALUE, -Double.MIN_VALUE,
+                    Double.NaN };
+            TreeMap<Double, Integer> sorted = new TreeMap<Double, Integer>();
+            for (int i = 0; i < numbers.length; i++) {
+                doubles.insert(numbers[i], i);
+                sorted.put(numbers[i], i);
+            }
+            Assert.assertEquals(new ArrayList<Double>(sorted.keySet()), doubles.getInOrderTraversal());
+            Assert.assertEquals(Integer.valueOf(1), doubles.get(-0.0));
+            Assert.assertEquals(Integer.valueOf(7), doubles.get(Double.NaN));
+            doubles.verifyInvariants();
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 029: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * Writes pairs wider than the read buffer of BALSTSerializer and reads them back
+     * from a stream, which is not mapped, so the arrays for the pairs must grow from
+     * room for a single pair.
+     */
+    @Test
+    void testBALST_030_serialization_of_wide_pairs() {
+        try {
+            BALSTCodec<String> wide = BALSTCodec.utf8(Short.MAX_VALUE);
+            BALSTSerializer<String, String> serializer = new BALSTSerializer<String, String>(wide, wide);
+            char[] filler = new char[Short.MAX_VALUE - 1];
+            BALST<String, String> tree = new BALST<String, String>();
+            for (int i = 0; i < 5; i++) {
+                Arrays.fill(filler, (char) ('a' + i));
+                String text = new String(filler);
+                tree.insert(i + text, text + i);
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            serializer.write(tree, Channels.newChannel(bytes));
+            Assert.assertEquals(BALSTSerializer.HEADER_BYTES + 4 + 5 * 2 * wide.width(), bytes.size());
+            BALST<String, String> copy = serializer.read(
+                    Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+            Assert.assertEquals(tree.getInOrderTraversal(), copy.getInOrderTraversal());
+            for (String key : tree.getInOrderTraversal()) {
+                Assert.assertEquals(tree.get(key), copy.get(key));
+            }
+            copy.verifyInvariants();
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail( "Unexpected exception 030: "+e.getMessage() );
+        }
+    }
+
+    /**
+     * A call made on a map of int keys during a concurrent test, with the times it
+     * was made and returned
+     */
+    private static final class Call {
+        static final int INSERT = 0;
+        static final int REMOVE = 1;
+        static final int GET = 2;
+
+        final int kind;
+        final int key;
+        final int value; // value inserted, or returned by a get
+        final boolean ok; // false if the call threw DuplicateKeyException or KeyNotFoundException
+        final long start;
+        final long end;
+
+        Call(int kind, int key, int value, boolean ok, long start, long end) {
+            this.kind = kind;
+            this.key = key;
+            this.value = value;
+            this.ok = ok;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * checks that the calls on one key can be put in an order that keeps the order
+     * of calls that did not overlap in time, and in which each call returns what it
+     * would have returned on its own
+     *
+     * @param calls the calls on one key
+     * @return true if there is such an order
+     */
+    private static boolean linearizable(List<Call> calls) {
+        List<Call> sorted = new ArrayList<Call>(calls);
+        sorted.sort((a, b) -> Long.compare(a.start, b.start));
+        return linearizable(sorted, new boolean[sorted.size()], sorted.size(), null,
+                new HashSet<String>());
+    }
+
+    /**
+     * tries every call that can come next in the order, depth first
+     *
+     * @param calls  the calls by time of start
+     * @param done   which calls are already in the order
+     * @param left   number of calls not in the order yet
+     * @param value  value of the key after the calls in the order, null if absent
+     * @param failed states already known to lead nowhere
+     * @return true if the rest of the calls can be ordered
+     */
+    private static boolean linearizable(List<Call> calls, boolean[] done, int left, Integer value,
+            Set<String> failed) {
+        if (left == 0) {
+            return true;
+        }
+        String state = Arrays.toString(done) + value;
+        if (failed.contains(state)) {
+            return false;
+        }
+
+        // a call can come next only if it started before every other call left ended
+        long firstEnd = Long.MAX_VALUE;
+        for (int i = 0; i < calls.size(); i++) {
+            if (!done[i]) {
+                firstEnd = Math.min(firstEnd, calls.get(i).end);
+            }
+        }
+        for (int i = 0; i < calls.size() && calls.get(i).start <= firstEnd; i++) {
+            Call call = calls.get(i);
+            if (done[i]) {
+                continue;
+            }
+            Integer next;
+            if (call.kind == Call.INSERT) {
+                if (call.ok != (value == null)) {
+                    continue;
+                }
+                next = call.ok ? call.value : value;
+            } else if (call.kind == Call.REMOVE) {
+                if (call.ok != (value != null)) {
+                    continue;
+                }
+                next = null;
+            } else {
+                if (call.ok ? value == null || value != call.value : value != null) {
+                    continue;
+                }
+                next = value;
+            }
+            done[i] = true;
+            boolean found = linearizable(calls, done, left - 1, next, failed);
+            done[i] = false;
+            if (found) {
+                return true;
+            }
+        }
+        failed.add(state);
+        return false;
+    }
+
+    /**
+     * @return the base 2 logarithm of the given number
+     */
+    private static double log2(int n) {
+        return Math.log(n) / Math.log(2);
+    }
+
+    /**
+     * deletes a temporary directory and the files in it, if it was created
+     */
+    private static void deleteDirectory(Path dir) {
+        if (dir == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+            Files.delete(dir);
+        } catch (IOException e) {
+            // left for the system to clean up
+        }
+    }
+
+    /**
+     * @return true if every reference in the list has been cleared
+     */
+    private static boolean allCleared(List<WeakReference<Object>> references) {
+        for (WeakReference<Object> reference : references) {
+            if (reference.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 }
@@ -0,0 +1,380 @@
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * BALST that can be shared between threads. Lookups and navigation first walk
+ * the tree without taking any lock, under an optimistic read of a StampedLock,
+ * and only use the result if no writer took the lock meanwhile, so readers do
+ * not block each other or write to any shared memory. A reader that keeps
+ * meeting writers falls back to the shared read lock. Changes take the
+ * exclusive write lock, and traversals, which touch every node, take the read
+ * lock.
+ *
+ * An optimistic walk may see the tree in the middle of a change, with links
+ * that lead nowhere or in a circle, so it is cut off after more steps than any
+ * red black tree of int size can be tall, and any exception it throws is treated
+ * like a failed validation.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class ConcurrentBALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
+
+	private static final int OPTIMISTIC_TRIES = 3; // optimistic walks before locking
+	private static final int MAX_STEPS = 64; // longer than 2 * log2 of any int size
+
+	// what a walk looks for
+	private static final int EXACT = 0;
+	private static final int FLOOR = 1;
+	private static final int LOWER = 2;
+	private static final int CEILING = 3;
+	private static final int HIGHER = 4;
+	private static final int FIRST = 5;
+	private static final int LAST = 6;
+
+	private final BALST<K, V> tree;
+	private final StampedLock lock = new StampedLock();
+
+	/**
+	 * Constructor for the tree
+	 */
+	public ConcurrentBALST() {
+		tree = new BALST<K, V>();
+	}
+
+	@Override
+	public K getKeyAtRoot() {
+		long stamp = lock.readLock();
+		try {
+			return tree.getKeyAtRoot();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public K getKeyOfLeftChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		long stamp = lock.readLock();
+		try {
+			return tree.getKeyOfLeftChildOf(key);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public K getKeyOfRightChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		long stamp = lock.readLock();
+		try {
+			return tree.getKeyOfRightChildOf(key);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public int getHeight() {
+		long stamp = lock.tryOptimisticRead();
+		try {
+			int height = tree.getHeight();
+			if (lock.validate(stamp)) {
+				return height;
+			}
+		} catch (RuntimeException e) {
+			// the root was removed while its height was read
+		}
+		stamp = lock.readLock();
+		try {
+			return tree.getHeight();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public List<K> getInOrderTraversal() {
+		long stamp = lock.readLock();
+		try {
+			return tree.getInOrderTraversal();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public List<K> getPreOrderTraversal() {
+		long stamp = lock.readLock();
+		try {
+			return tree.getPreOrderTraversal();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public List<K> getPostOrderTraversal() {
+		long stamp = lock.readLock();
+		try {
+			return tree.getPostOrderTraversal();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public List<K> getLevelOrderTraversal() {
+		long stamp = lock.readLock();
+		try {
+			return tree.getLevelOrderTraversal();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+		long stamp = lock.writeLock();
+		try {
+			tree.insert(key, value);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Stores the value under the key, replacing the value of the key if it is
+	 * already in the tree
+	 *
+	 * @param key   the key to store the value under
+	 * @param value the value to store
+	 * @return the value the key had before, or null if it was not in the tree
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public V put(K key, V value) throws IllegalNullKeyException {
+		long stamp = lock.writeLock();
+		try {
+			return tree.put(key, value);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		long stamp = lock.writeLock();
+		try {
+			return tree.remove(key);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Returns the value of the key, found without locking unless writers keep
+	 * getting in the way
+	 */
+	@Override
+	public V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkKey(key);
+		for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0) {
+				continue;
+			}
+			try {
+				BALST.BSTNode<K, V> node = walk(key, EXACT);
+				V value = node == null ? null : node.getValue();
+				if (lock.validate(stamp)) {
+					if (node == null) {
+						throw new BALST.StacklessKeyNotFoundException();
+					}
+					return value;
+				}
+			} catch (RuntimeException e) {
+				// the walk saw a change half done, so it is tried again
+			}
+		}
+
+		long stamp = lock.readLock();
+		try {
+			return tree.get(key);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public boolean contains(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return findKey(key, EXACT) != null;
+	}
+
+	@Override
+	public int numKeys() {
+		long stamp = lock.tryOptimisticRead();
+		int size = tree.numKeys();
+		if (lock.validate(stamp)) {
+			return size;
+		}
+		stamp = lock.readLock();
+		try {
+			return tree.numKeys();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public void print() {
+		long stamp = lock.readLock();
+		try {
+			tree.print();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the smallest key, or null if the tree is empty
+	 */
+	public K firstKey() {
+		return findKey(null, FIRST);
+	}
+
+	/**
+	 * @return the largest key, or null if the tree is empty
+	 */
+	public K lastKey() {
+		return findKey(null, LAST);
+	}
+
+	/**
+	 * @param key the key to search for
+	 * @return the largest key less than or equal to the given key, or null
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K floorKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return findKey(key, FLOOR);
+	}
+
+	/**
+	 * @param key the key to search for
+	 * @return the largest key strictly less than the given key, or null
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K lowerKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return findKey(key, LOWER);
+	}
+
+	/**
+	 * @param key the key to search for
+	 * @return the smallest key greater than or equal to the given key, or null
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K ceilingKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return findKey(key, CEILING);
+	}
+
+	/**
+	 * @param key the key to search for
+	 * @return the smallest key strictly greater than the given key, or null
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K higherKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return findKey(key, HIGHER);
+	}
+
+	// helper methods
+	/**
+	 * finds the key a walk of the given kind ends at, optimistically first and
+	 * under the read lock if that keeps failing
+	 *
+	 * @param key  the key to search for, unused for FIRST and LAST
+	 * @param mode what the walk looks for
+	 * @return the key found, null if there is none
+	 */
+	private K findKey(K key, int mode) {
+		for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp == 0) {
+				continue;
+			}
+			try {
+				BALST.BSTNode<K, V> node = walk(key, mode);
+				K found = node == null ? null : node.getKey();
+				if (lock.validate(stamp)) {
+					return found;
+				}
+			} catch (RuntimeException e) {
+				// the walk saw a change half done, so it is tried again
+			}
+		}
+
+		long stamp = lock.readLock();
+		try {
+			BALST.BSTNode<K, V> node = walk(key, mode);
+			return node == null ? null : node.getKey();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * walks down from the root once, the way BALST.floorNode and ceilingNode do,
+	 * giving up after MAX_STEPS nodes
+	 *
+	 * @param key  the key to search for, unused for FIRST and LAST
+	 * @param mode what the walk looks for
+	 * @return the node found, null if there is none
+	 * @throws IllegalStateException if the walk is longer than any tree can be
+	 *                               tall
+	 */
+	private BALST.BSTNode<K, V> walk(K key, int mode) {
+		BALST.BSTNode<K, V> curr = tree.getRoot();
+		BALST.BSTNode<K, V> best = null; // the closest node that qualifies so far
+
+		for (int steps = 0; curr != null; steps++) {
+			if (steps == MAX_STEPS) {
+				throw new IllegalStateException("walk is longer than any tree is tall");
+			}
+			int cmp = mode == FIRST ? -1 : mode == LAST ? 1 : key.compareTo(curr.getKey());
+			if (mode == EXACT) {
+				if (cmp == 0) {
+					return curr;
+				}
+				curr = cmp < 0 ? curr.getLeft() : curr.getRight();
+			} else if (mode == FLOOR || mode == LOWER || mode == LAST) {
+				if (cmp > 0 || (cmp == 0 && mode == FLOOR)) {
+					best = curr;
+					curr = curr.getRight();
+				} else {
+					curr = curr.getLeft();
+				}
+			} else {
+				if (cmp < 0 || (cmp == 0 && mode == CEILING)) {
+					best = curr;
+					curr = curr.getLeft();
+				} else {
+					curr = curr.getRight();
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * throws if the key is null
+	 *
+	 * @param key the key to check
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	private static void checkKey(Object key) throws IllegalNullKeyException {
+		if (key == null) {
+			throw new IllegalNullKeyException();
+		}
+	}
+}
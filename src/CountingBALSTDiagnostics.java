@@ -0,0 +1,72 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Diagnostics that count the hits, misses, comparisons and rotations of every
+ * tree it is given to. The counters can be updated from several threads at once.
+ */
+public class CountingBALSTDiagnostics implements BALSTDiagnostics {
+
+	// counters for each kind of event
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder comparisons = new LongAdder();
+	private final LongAdder rotations = new LongAdder();
+
+	@Override
+	public void onHit() {
+		hits.increment();
+	}
+
+	@Override
+	public void onMiss() {
+		misses.increment();
+	}
+
+	@Override
+	public void onComparisons(int count) {
+		comparisons.add(count);
+	}
+
+	@Override
+	public void onRotation() {
+		rotations.increment();
+	}
+
+	/**
+	 * @return number of lookups that found their key
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return number of lookups that did not find their key
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return number of key comparisons made by all lookups
+	 */
+	public long getComparisons() {
+		return comparisons.sum();
+	}
+
+	/**
+	 * @return number of rotations made to keep the tree balanced
+	 */
+	public long getRotations() {
+		return rotations.sum();
+	}
+
+	/**
+	 * Sets every counter back to zero
+	 */
+	public void reset() {
+		hits.reset();
+		misses.reset();
+		comparisons.reset();
+		rotations.reset();
+	}
+}
@@ -0,0 +1,219 @@
+import java.util.NoSuchElementException;
+import java.util.OptionalDouble;
+import java.util.OptionalLong;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Red Black Tree with primitive double keys, ordered the way Double.compare
+ * orders them: -0.0 comes before 0.0 and NaN after every other value. Each key is
+ * turned into a long whose signed order is that same order, and stored unboxed
+ * in a LongBALST.
+ *
+ * @param <V> is the generic type of value
+ */
+public class DoubleBALST<V> {
+
+	private final LongBALST<V> tree = new LongBALST<V>(); // holds the keys as sortable longs
+
+	/**
+	 * Gets the key at the root of the tree
+	 *
+	 * @return the key at the root, empty if the tree is empty
+	 */
+	public OptionalDouble getKeyAtRoot() {
+		return toDouble(tree.getKeyAtRoot());
+	}
+
+	/**
+	 * Gets the key of the left child of the node with the given key
+	 *
+	 * @param key key of the node whose left child is wanted
+	 * @return the key of the left child, empty if there is none
+	 * @throws KeyNotFoundException if key is not in the tree
+	 */
+	public OptionalDouble getKeyOfLeftChildOf(double key) throws KeyNotFoundException {
+		return toDouble(tree.getKeyOfLeftChildOf(toLong(key)));
+	}
+
+	/**
+	 * Gets the key of the right child of the node with the given key
+	 *
+	 * @param key key of the node whose right child is wanted
+	 * @return the key of the right child, empty if there is none
+	 * @throws KeyNotFoundException if key is not in the tree
+	 */
+	public OptionalDouble getKeyOfRightChildOf(double key) throws KeyNotFoundException {
+		return toDouble(tree.getKeyOfRightChildOf(toLong(key)));
+	}
+
+	/**
+	 * @return height of the tree, 0 if it is empty
+	 */
+	public int getHeight() {
+		return tree.getHeight();
+	}
+
+	/**
+	 * @return array of the keys in-order
+	 */
+	public double[] getInOrderTraversal() {
+		return toDoubles(tree.getInOrderTraversal());
+	}
+
+	/**
+	 * @return array of the keys in pre-order
+	 */
+	public double[] getPreOrderTraversal() {
+		return toDoubles(tree.getPreOrderTraversal());
+	}
+
+	/**
+	 * @return array of the keys in post-order
+	 */
+	public double[] getPostOrderTraversal() {
+		return toDoubles(tree.getPostOrderTraversal());
+	}
+
+	/**
+	 * @return array of the keys in level-order
+	 */
+	public double[] getLevelOrderTraversal() {
+		return toDoubles(tree.getLevelOrderTraversal());
+	}
+
+	/**
+	 * Passes every key to the action in sorted order
+	 *
+	 * @param action called once per key
+	 */
+	public void forEachInOrder(DoubleConsumer action) {
+		tree.forEachInOrder(key -> action.accept(toDouble(key)));
+	}
+
+	/**
+	 * Add the key, value pair to the tree and increase the number of keys.
+	 *
+	 * @param key   the key to add
+	 * @param value the value stored under the key
+	 * @throws DuplicateKeyException if key is already in the tree
+	 */
+	public void insert(double key, V value) throws DuplicateKeyException {
+		tree.insert(toLong(key), value);
+	}
+
+	/**
+	 * Removes the key, value pair and decreases the number of keys
+	 *
+	 * @param key the key to remove
+	 * @return true
+	 * @throws KeyNotFoundException if key is not in the tree
+	 */
+	public boolean remove(double key) throws KeyNotFoundException {
+		return tree.remove(toLong(key));
+	}
+
+	/**
+	 * Returns the value associated with the given key
+	 *
+	 * @param key the key to look up
+	 * @return the value of the key
+	 * @throws KeyNotFoundException if key is not in the tree
+	 */
+	public V get(double key) throws KeyNotFoundException {
+		return tree.get(toLong(key));
+	}
+
+	/**
+	 * @param key the key to look up
+	 * @return true if the key is in the tree
+	 */
+	public boolean contains(double key) {
+		return tree.contains(toLong(key));
+	}
+
+	/**
+	 * @return number of key, value pairs in the tree
+	 */
+	public int numKeys() {
+		return tree.numKeys();
+	}
+
+	/**
+	 * Prints the keys of each level of the tree on its own line
+	 */
+	public void print() {
+		tree.print(key -> Double.toString(toDouble(key)));
+	}
+
+	/**
+	 * @return the smallest key
+	 * @throws NoSuchElementException if the tree is empty
+	 */
+	public double firstKey() {
+		return toDouble(tree.firstKey());
+	}
+
+	/**
+	 * @return the largest key
+	 * @throws NoSuchElementException if the tree is empty
+	 */
+	public double lastKey() {
+		return toDouble(tree.lastKey());
+	}
+
+	/**
+	 * checks the red black properties of the underlying tree
+	 *
+	 * @return true, so it can be used in an assert statement
+	 */
+	boolean verifyInvariants() {
+		return tree.verifyInvariants();
+	}
+
+	/**
+	 * turns a double into a long with the same order. Positive doubles already
+	 * sort by their bits; for negative ones every bit but the sign is flipped so a
+	 * larger magnitude sorts lower. All NaNs become the same value.
+	 *
+	 * @param key the double key
+	 * @return the sortable long for the key
+	 */
+	static long toLong(double key) {
+		long bits = Double.doubleToLongBits(key);
+		return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+	}
+
+	/**
+	 * turns a long made by toLong back into its double, flipping the same bits
+	 *
+	 * @param key the sortable long
+	 * @return the double key
+	 */
+	static double toDouble(long key) {
+		return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+	}
+
+	/**
+	 * turns an optional sortable long back into an optional double
+	 *
+	 * @param key the optional long key
+	 * @return the same key as a double
+	 */
+	private static OptionalDouble toDouble(OptionalLong key) {
+		return key.isPresent() ? OptionalDouble.of(toDouble(key.getAsLong())) : OptionalDouble.empty();
+	}
+
+	/**
+	 * turns sortable longs back into doubles
+	 *
+	 * @param keys the long keys
+	 * @return the same keys as doubles
+	 */
+	private static double[] toDoubles(long[] keys) {
+		double[] doubles = new double[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			doubles[i] = toDouble(keys[i]);
+		}
+		return doubles;
+	}
+}
@@ -0,0 +1,336 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Red Black Tree of Comparable keys whose nodes are numbered slots instead of
+ * objects, so a subclass only has to say where the slots are kept: in arrays on
+ * the heap, or in memory outside of it. The slots and the balancing come from
+ * SlotBALST; this class walks down with compare and implements BALSTADT on top.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+abstract class IndexedBALST<K extends Comparable<K>, V> extends SlotBALST implements BALSTADT<K, V> {
+
+	/**
+	 * Constructor for an empty tree
+	 */
+	IndexedBALST() {
+	}
+
+	// storage of the entries, implemented by subclasses
+	/**
+	 * @param node slot of a node
+	 * @return the key stored in the slot
+	 */
+	abstract K key(int node);
+
+	/**
+	 * @param node slot of a node
+	 * @return the value stored in the slot
+	 */
+	abstract V value(int node);
+
+	/**
+	 * stores a key, value pair in a slot
+	 *
+	 * @param node  slot to store into
+	 * @param key   the key
+	 * @param value the value
+	 */
+	abstract void setEntry(int node, K key, V value);
+
+	/**
+	 * prepares a key for the comparisons of one walk down the tree. Subclasses
+	 * that compare against another form of the key, such as its encoded bytes, may
+	 * return that form here, once per walk, and get it back in every compare of
+	 * the walk.
+	 *
+	 * @param key the key about to be looked for
+	 * @return the form of the key to compare with, null for the key itself
+	 */
+	Object probe(K key) {
+		return null;
+	}
+
+	/**
+	 * compares a key with the key stored in a slot. Subclasses that can compare
+	 * without reading the stored key out may override this.
+	 *
+	 * @param key   the key to compare
+	 * @param probe what probe returned for the key at the start of the walk
+	 * @param node  the slot to compare against
+	 * @return negative, zero or positive as key is less than, equal to or greater
+	 *         than the stored key
+	 */
+	int compare(K key, Object probe, int node) {
+		return key.compareTo(key(node));
+	}
+
+	@Override
+	int compareSlots(int a, int b) {
+		return key(a).compareTo(key(b));
+	}
+
+	@Override
+	String keyString(int node) {
+		return String.valueOf(key(node));
+	}
+
+	/**
+	 * throws if the storage of the slots has been released. Does nothing unless a
+	 * subclass can release its storage.
+	 *
+	 * @throws IllegalStateException if the tree can no longer be used
+	 */
+	void checkOpen() {
+	}
+
+	// public methods
+	/**
+	 * Gets the key at the root of the tree
+	 *
+	 * @return the key at the root, null if the tree is empty
+	 */
+	@Override
+	public K getKeyAtRoot() {
+		checkOpen();
+		if (root == NIL) {
+			return null;
+		}
+		return key(root);
+	}
+
+	@Override
+	public K getKeyOfLeftChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkOpen();
+		checkKey(key);
+		int found = left(getExistingNode(key));
+		return found == NIL ? null : key(found);
+	}
+
+	@Override
+	public K getKeyOfRightChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkOpen();
+		checkKey(key);
+		int found = right(getExistingNode(key));
+		return found == NIL ? null : key(found);
+	}
+
+	/**
+	 * Returns the height of this tree, read from the root in O(1)
+	 *
+	 * @return height of the tree, 0 if it is empty
+	 */
+	@Override
+	public int getHeight() {
+		checkOpen();
+		return height(root);
+	}
+
+	@Override
+	public List<K> getInOrderTraversal() {
+		List<K> list = new ArrayList<K>(size);
+		forEachInOrder(list::add);
+		return list;
+	}
+
+	@Override
+	public List<K> getPreOrderTraversal() {
+		List<K> list = new ArrayList<K>(size);
+		forEachPreOrder(list::add);
+		return list;
+	}
+
+	@Override
+	public List<K> getPostOrderTraversal() {
+		List<K> list = new ArrayList<K>(size);
+		forEachPostOrder(list::add);
+		return list;
+	}
+
+	@Override
+	public List<K> getLevelOrderTraversal() {
+		List<K> list = new ArrayList<K>(size);
+		forEachLevelOrder(list::add);
+		return list;
+	}
+
+	/**
+	 * Passes every key to the action in sorted order (L V R). The path is kept in
+	 * an int array as deep as the tree, so nothing is boxed.
+	 *
+	 * @param action called once per key
+	 */
+	public void forEachInOrder(Consumer<? super K> action) {
+		checkOpen();
+		forEachSlotInOrder(node -> action.accept(key(node)));
+	}
+
+	/**
+	 * Passes every key to the action in pre-order (V L R)
+	 *
+	 * @param action called once per key
+	 */
+	public void forEachPreOrder(Consumer<? super K> action) {
+		checkOpen();
+		forEachSlotPreOrder(node -> action.accept(key(node)));
+	}
+
+	/**
+	 * Passes every key to the action in post-order (L R V)
+	 *
+	 * @param action called once per key
+	 */
+	public void forEachPostOrder(Consumer<? super K> action) {
+		checkOpen();
+		forEachSlotPostOrder(node -> action.accept(key(node)));
+	}
+
+	/**
+	 * Passes every key to the action in level-order
+	 *
+	 * @param action called once per key
+	 */
+	public void forEachLevelOrder(Consumer<? super K> action) {
+		checkOpen();
+		forEachSlotLevelOrder(node -> action.accept(key(node)), null);
+	}
+
+	/**
+	 * Add the key, value pair to the tree and increase the number of keys.
+	 *
+	 * @param key   the key to add
+	 * @param value the value stored under the key
+	 * @throws IllegalNullKeyException if key is null
+	 * @throws DuplicateKeyException   if key is already in the tree
+	 */
+	@Override
+	public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+		checkOpen();
+		checkKey(key);
+
+		// walks down until the empty spot for the new node is reached
+		int curr = root;
+		int parent = NIL;
+		int cmp = 0;
+		Object probe = probe(key);
+		while (curr != NIL) {
+			cmp = compare(key, probe, curr);
+			if (cmp == 0) {
+				throw new BALST.StacklessDuplicateKeyException();
+			}
+			parent = curr;
+			curr = cmp < 0 ? left(curr) : right(curr);
+		}
+
+		// a pair the storage cannot hold gives its slot back before the error is passed on
+		int node = allocate();
+		try {
+			setEntry(node, key, value);
+		} catch (RuntimeException e) {
+			free(node);
+			throw e;
+		}
+		link(node, parent, cmp);
+
+		// only runs when assertions are enabled
+		assert verifyInvariants();
+	}
+
+	/**
+	 * If key is found, remove the key, value pair from the tree and decrease the
+	 * number of keys. The slot of the removed node goes on the free list.
+	 *
+	 * @param key the key to remove
+	 * @return true
+	 * @throws IllegalNullKeyException if key is null
+	 * @throws KeyNotFoundException    if key is not in the tree
+	 */
+	@Override
+	public boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkOpen();
+		checkKey(key);
+		unlink(getExistingNode(key));
+
+		// only runs when assertions are enabled
+		assert verifyInvariants();
+		return true;
+	}
+
+	@Override
+	public V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkOpen();
+		checkKey(key);
+		return value(getExistingNode(key));
+	}
+
+	@Override
+	public boolean contains(K key) throws IllegalNullKeyException {
+		checkOpen();
+		checkKey(key);
+		return getNode(key) != NIL;
+	}
+
+	@Override
+	public int numKeys() {
+		return size;
+	}
+
+	/**
+	 * Prints the keys of each level of the tree on its own line
+	 */
+	@Override
+	public void print() {
+		checkOpen();
+		printLevels(this::keyString);
+	}
+
+	// helper methods
+	/**
+	 * returns the slot of a given key in the tree if it exists
+	 *
+	 * @param key the key to be found
+	 * @return slot of the key found, else NIL
+	 */
+	private int getNode(K key) {
+		int curr = root;
+		Object probe = probe(key);
+		while (curr != NIL) {
+			int cmp = compare(key, probe, curr);
+			if (cmp == 0) {
+				return curr;
+			}
+			curr = cmp < 0 ? left(curr) : right(curr);
+		}
+		return NIL;
+	}
+
+	/**
+	 * returns the slot of a given key in the tree, throwing if it does not exist
+	 *
+	 * @param key the key to be found
+	 * @return slot of the key found
+	 * @throws KeyNotFoundException if no node holds the key
+	 */
+	private int getExistingNode(K key) throws KeyNotFoundException {
+		int found = getNode(key);
+		if (found == NIL) {
+			throw new BALST.StacklessKeyNotFoundException();
+		}
+		return found;
+	}
+
+	/**
+	 * throws if the key is null
+	 *
+	 * @param key the key to check
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	private static void checkKey(Object key) throws IllegalNullKeyException {
+		if (key == null) {
+			throw new IllegalNullKeyException();
+		}
+	}
+}
@@ -0,0 +1,517 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * BALST that records every insert and remove in an append only write ahead log,
+ * so the tree can be rebuilt after a restart from its last snapshot plus the log.
+ * A directory holds the snapshot, written by BALSTSerializer, and the log, which
+ * is a header of magic and version followed by records of
+ *
+ * type (1 byte) | key | value, for inserts only | CRC32 of the bytes before it
+ *
+ * Records are collected in memory and written and forced to disk together. With
+ * syncEvery set to 1 every insert and remove returns only once its record is on
+ * disk, and threads changing the tree at the same time share one force of the
+ * log between them (group commit). With a larger syncEvery only every syncEvery-th
+ * change waits for the disk, so a crash may lose up to syncEvery - 1 of the last
+ * changes, but never leaves the tree half changed. sync forces everything logged
+ * so far.
+ *
+ * checkpoint compacts the log: the tree is written as a new snapshot and the log
+ * is emptied. Replaying puts inserted keys and skips removes of missing keys, so
+ * a crash between the two steps, which replays the old log over the new
+ * snapshot, still gives the same tree.
+ *
+ * Every method is synchronized on the tree. An error writing the log is thrown
+ * as UncheckedIOException from the change that hit it, and every later change
+ * throws it too, since the log no longer matches the tree.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class LoggedBALST<K extends Comparable<K>, V> implements BALSTADT<K, V>, AutoCloseable {
+
+	static final String SNAPSHOT = "snapshot.bin";
+	static final String LOG = "wal.log";
+	static final int LOG_MAGIC = 0x42414C57; // "BALW"
+	static final int LOG_VERSION = 1;
+	static final int LOG_HEADER_BYTES = 8;
+	static final byte INSERT = 1;
+	static final byte REMOVE = 2;
+
+	private final Path dir;
+	private final BALSTCodec<K> keyCodec;
+	private final BALSTCodec<V> valueCodec;
+	private final BALSTSerializer<K, V> serializer;
+	private final int syncEvery; // changes per force of the log
+	private final Object syncLock = new Object(); // held by the thread writing the log
+
+	private BALST<K, V> tree;
+	private FileChannel log;
+	private ByteBuffer pending; // records not written to the log yet
+	private ByteBuffer spare; // second buffer, swapped with pending when it is written
+	private long logged; // number of records added to pending so far
+	private volatile long durable; // number of records forced to disk so far
+	private IOException failure; // first error writing the log, null if none
+
+	/**
+	 * Constructor, used by open
+	 */
+	private LoggedBALST(Path dir, BALSTCodec<K> keyCodec, BALSTCodec<V> valueCodec, int syncEvery) {
+		this.dir = dir;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.syncEvery = syncEvery;
+		serializer = new BALSTSerializer<K, V>(keyCodec, valueCodec);
+		pending = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+		spare = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Opens the tree kept in the given directory, creating the directory if
+	 * needed. The snapshot is read and the log replayed on top of it. A record cut
+	 * off or damaged by a crash ends the replay and is cut from the log.
+	 *
+	 * @param dir        directory of the snapshot and the log
+	 * @param keyCodec   encodes the keys
+	 * @param valueCodec encodes the values
+	 * @param syncEvery  number of changes per force of the log, 1 to force it for
+	 *                   every change
+	 * @param <K>        is the generic type of key
+	 * @param <V>        is the generic type of value
+	 * @return the opened tree
+	 * @throws IOException if the snapshot or log cannot be read
+	 */
+	public static <K extends Comparable<K>, V> LoggedBALST<K, V> open(Path dir, BALSTCodec<K> keyCodec,
+			BALSTCodec<V> valueCodec, int syncEvery) throws IOException {
+		if (syncEvery < 1) {
+			throw new IllegalArgumentException("syncEvery must be at least 1");
+		}
+		Files.createDirectories(dir);
+		LoggedBALST<K, V> tree = new LoggedBALST<K, V>(dir, keyCodec, valueCodec, syncEvery);
+		tree.recover();
+		return tree;
+	}
+
+	/**
+	 * Forces every change made so far to disk
+	 *
+	 * @throws IOException if the log cannot be written
+	 */
+	public void sync() throws IOException {
+		long upTo;
+		synchronized (this) {
+			checkLog();
+			upTo = logged;
+		}
+		syncTo(upTo);
+	}
+
+	/**
+	 * Writes the tree as a new snapshot and empties the log. The snapshot is
+	 * written to a temporary file and renamed into place, so a crash leaves the
+	 * old or the new snapshot, and either one together with the log gives the
+	 * current tree.
+	 *
+	 * @throws IOException if the snapshot or log cannot be written
+	 */
+	public void checkpoint() throws IOException {
+		synchronized (syncLock) {
+			synchronized (this) {
+				checkLog();
+
+				// a failure up to the rename leaves the old snapshot and the log as they were
+				Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+				try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+					serializer.write(tree, out);
+					out.force(true);
+				}
+				Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+				forceDirectory();
+
+				// the snapshot holds every change, so the log can start over
+				try {
+					log.truncate(LOG_HEADER_BYTES);
+					log.force(true);
+					pending.clear();
+					durable = logged;
+				} catch (IOException e) {
+					failure = e;
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes in the log, not counting records still waiting
+	 * to be written
+	 *
+	 * @return size of the log file
+	 * @throws IOException if the size cannot be read
+	 */
+	public synchronized long logBytes() throws IOException {
+		checkLog();
+		return log.size();
+	}
+
+	/**
+	 * Forces every change to disk and closes the log. Calling it again does
+	 * nothing.
+	 *
+	 * @throws IOException if the log cannot be written
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (syncLock) {
+			synchronized (this) {
+				if (log == null) {
+					return;
+				}
+				try {
+					if (failure == null) {
+						syncTo(logged);
+					}
+				} finally {
+					log.close();
+					log = null;
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized K getKeyAtRoot() {
+		return tree.getKeyAtRoot();
+	}
+
+	@Override
+	public synchronized K getKeyOfLeftChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		return tree.getKeyOfLeftChildOf(key);
+	}
+
+	@Override
+	public synchronized K getKeyOfRightChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		return tree.getKeyOfRightChildOf(key);
+	}
+
+	@Override
+	public synchronized int getHeight() {
+		return tree.getHeight();
+	}
+
+	@Override
+	public synchronized List<K> getInOrderTraversal() {
+		return tree.getInOrderTraversal();
+	}
+
+	@Override
+	public synchronized List<K> getPreOrderTraversal() {
+		return tree.getPreOrderTraversal();
+	}
+
+	@Override
+	public synchronized List<K> getPostOrderTraversal() {
+		return tree.getPostOrderTraversal();
+	}
+
+	@Override
+	public synchronized List<K> getLevelOrderTraversal() {
+		return tree.getLevelOrderTraversal();
+	}
+
+	/**
+	 * Adds the pair to the tree and logs it, waiting for the disk if this change
+	 * is one that has to be forced
+	 *
+	 * @throws UncheckedIOException if the log cannot be written
+	 */
+	@Override
+	public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+		long record;
+		synchronized (this) {
+			checkOpen();
+			if (key == null) {
+				throw new IllegalNullKeyException();
+			}
+
+			// the record is encoded before the tree changes, so a pair the codecs
+			// cannot hold changes nothing, and only kept if the insert works
+			int start = encode(INSERT, key, value);
+			tree.insert(key, value);
+			pending.position(start + recordBytes(INSERT));
+			record = ++logged;
+		}
+		commit(record);
+	}
+
+	/**
+	 * Removes the key from the tree and logs it, waiting for the disk if this
+	 * change is one that has to be forced
+	 *
+	 * @throws UncheckedIOException if the log cannot be written
+	 */
+	@Override
+	public boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		long record;
+		synchronized (this) {
+			checkOpen();
+			int start = pending.position();
+			tree.remove(key);
+			encode(REMOVE, key, null);
+			pending.position(start + recordBytes(REMOVE));
+			record = ++logged;
+		}
+		commit(record);
+		return true;
+	}
+
+	@Override
+	public synchronized V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		return tree.get(key);
+	}
+
+	@Override
+	public synchronized boolean contains(K key) throws IllegalNullKeyException {
+		return tree.contains(key);
+	}
+
+	@Override
+	public synchronized int numKeys() {
+		return tree.numKeys();
+	}
+
+	@Override
+	public synchronized void print() {
+		tree.print();
+	}
+
+	// helper methods
+	/**
+	 * reads the snapshot and replays the log over it, then opens the log for
+	 * appending, cutting off a damaged tail
+	 */
+	private void recover() throws IOException {
+		Path snapshot = dir.resolve(SNAPSHOT);
+		if (Files.exists(snapshot)) {
+			try (FileChannel in = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+				tree = serializer.read(in);
+			}
+		} else {
+			tree = new BALST<K, V>();
+		}
+
+		log = FileChannel.open(dir.resolve(LOG), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			long end = replay();
+			if (end < log.size()) {
+				log.truncate(end);
+				log.force(true);
+			}
+			log.position(end);
+		} catch (IOException | RuntimeException e) {
+			log.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * applies every whole record of the log to the tree, writing the log header
+	 * first if the log is new
+	 *
+	 * @return the length of the log up to the end of the last whole record
+	 */
+	private long replay() throws IOException {
+		if (log.size() < LOG_HEADER_BYTES) {
+			ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(LOG_MAGIC).putInt(LOG_VERSION).flip();
+			log.truncate(0);
+			while (header.hasRemaining()) {
+				log.write(header, header.position());
+			}
+			log.force(true);
+			return LOG_HEADER_BYTES;
+		}
+
+		ByteBuffer in = log.map(FileChannel.MapMode.READ_ONLY, 0, log.size()).order(ByteOrder.LITTLE_ENDIAN);
+		if (in.getInt() != LOG_MAGIC || in.getInt() != LOG_VERSION) {
+			throw new IOException(dir.resolve(LOG) + " is not a log of version " + LOG_VERSION);
+		}
+		while (in.hasRemaining()) {
+			int start = in.position();
+			byte type = in.get(start);
+			if (type != INSERT && type != REMOVE) {
+				break;
+			}
+			int bytes = recordBytes(type);
+			if (in.remaining() < bytes || in.getInt(start + bytes - Integer.BYTES) != crc(in, start, bytes)) {
+				break;
+			}
+			K key = keyCodec.read(in, start + 1);
+			try {
+				if (type == INSERT) {
+					tree.put(key, valueCodec.read(in, start + 1 + keyCodec.width()));
+				} else if (tree.contains(key)) {
+					tree.remove(key);
+				}
+			} catch (IllegalNullKeyException | KeyNotFoundException e) {
+				throw new IOException(dir.resolve(LOG) + " has a record without a key", e);
+			}
+			in.position(start + bytes);
+		}
+		return in.position();
+	}
+
+	/**
+	 * @return the bytes of a record of the given type, checksum included
+	 */
+	private int recordBytes(byte type) {
+		return 1 + keyCodec.width() + (type == INSERT ? valueCodec.width() : 0) + Integer.BYTES;
+	}
+
+	/**
+	 * encodes a record at the end of the pending records without adding it yet
+	 *
+	 * @return the position the record starts at
+	 */
+	private int encode(byte type, K key, V value) {
+		int bytes = recordBytes(type);
+		if (pending.remaining() < bytes) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			pending.flip();
+			bigger.put(pending);
+			pending = bigger;
+		}
+		int start = pending.position();
+		pending.put(start, type);
+		keyCodec.write(pending, start + 1, key);
+		if (type == INSERT) {
+			valueCodec.write(pending, start + 1 + keyCodec.width(), value);
+		}
+		pending.putInt(start + bytes - Integer.BYTES, crc(pending, start, bytes));
+		return start;
+	}
+
+	/**
+	 * @return CRC32 of a record, not counting its own checksum
+	 */
+	private static int crc(ByteBuffer buffer, int start, int bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(buffer.duplicate().position(start).limit(start + bytes - Integer.BYTES));
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * waits for the disk if the given record is one that has to be forced
+	 *
+	 * @param record number of the record just added
+	 */
+	private void commit(long record) {
+		if (record % syncEvery != 0) {
+			return;
+		}
+		try {
+			syncTo(record);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * makes sure the records up to the given number are on disk. Only one thread
+	 * writes at a time, and it writes every record added so far, so the threads
+	 * waiting behind it usually find their records already forced.
+	 *
+	 * @param record number of the last record that has to be on disk
+	 */
+	private void syncTo(long record) throws IOException {
+		if (durable >= record) {
+			return;
+		}
+		synchronized (syncLock) {
+			if (durable >= record) {
+				return;
+			}
+			ByteBuffer batch;
+			long upTo;
+			synchronized (this) {
+				checkLog();
+				batch = pending;
+				pending = spare;
+				spare = null;
+				upTo = logged;
+			}
+
+			// the log is written and forced without holding the tree, so other
+			// threads can keep adding records meanwhile
+			try {
+				batch.flip();
+				while (batch.hasRemaining()) {
+					log.write(batch);
+				}
+				log.force(false);
+			} catch (IOException e) {
+				synchronized (this) {
+					failure = e;
+				}
+				throw e;
+			}
+			batch.clear();
+			synchronized (this) {
+				spare = batch;
+			}
+			durable = upTo;
+		}
+	}
+
+	/**
+	 * throws if the tree was closed or its log failed
+	 */
+	private void checkOpen() {
+		try {
+			checkLog();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * throws if the tree was closed or its log failed
+	 *
+	 * @throws IOException the error that made the log unusable
+	 */
+	private void checkLog() throws IOException {
+		if (failure != null) {
+			throw new IOException("log failed earlier", failure);
+		}
+		if (log == null) {
+			throw new IllegalStateException("tree is closed");
+		}
+	}
+
+	/**
+	 * forces the directory to disk, so the rename of a snapshot survives a crash.
+	 * Some systems cannot open a directory for this, and there the rename is left
+	 * to the file system.
+	 */
+	private void forceDirectory() {
+		try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+			directory.force(true);
+		} catch (IOException e) {
+			// not supported on this system
+		}
+	}
+}
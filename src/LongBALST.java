@@ -0,0 +1,309 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.OptionalLong;
+import java.util.function.LongConsumer;
+import java.util.function.LongFunction;
+
+/**
+ * Red Black Tree with primitive long keys. It has the same operations and
+ * balancing as BALST, but the keys are kept unboxed in a long array next to the
+ * slot links of ArraySlotBALST and compared with primitive comparisons, so no Long is
+ * created or dereferenced for a key. Only the descent to a key is written here;
+ * the rebalancing is the one shared with ArrayBALST and OffHeapBALST.
+ *
+ * Methods of BALSTADT that return a key which may be missing return an
+ * OptionalLong instead of null.
+ *
+ * @param <V> is the generic type of value
+ */
+public class LongBALST<V> extends ArraySlotBALST {
+
+	private long[] keys = new long[DEFAULT_CAPACITY + 1]; // key of the node in each slot
+
+	/**
+	 * Constructor for the tree
+	 */
+	public LongBALST() {
+	}
+
+	/**
+	 * Gets the key at the root of the tree
+	 *
+	 * @return the key at the root, empty if the tree is empty
+	 */
+	public OptionalLong getKeyAtRoot() {
+		return root == NIL ? OptionalLong.empty() : OptionalLong.of(keys[root]);
+	}
+
+	/**
+	 * Gets the key of the left child of the node with the given key
+	 *
+	 * @param key key of the node whose left child is wanted
+	 * @return the key of the left child, empty if there is none
+	 * @throws KeyNotFoundException if key is not in the tree
+	 */
+	public OptionalLong getKeyOfLeftChildOf(long key) throws KeyNotFoundException {
+		int left = lefts[getExistingNode(key)];
+		return left == NIL ? OptionalLong.empty() : OptionalLong.of(keys[left]);
+	}
+
+	/**
+	 * Gets the key of the right child of the node with the given key
+	 *
+	 * @param key key of the node whose right child is wanted
+	 * @return the key of the right child, empty if there is none
+	 * @throws KeyNotFoundException if key is not in the tree
+	 */
+	public OptionalLong getKeyOfRightChildOf(long key) throws KeyNotFoundException {
+		int right = rights[getExistingNode(key)];
+		return right == NIL ? OptionalLong.empty() : OptionalLong.of(keys[right]);
+	}
+
+	/**
+	 * Returns the number of levels in the tree, which is kept up to date by every
+	 * change so this is O(1)
+	 *
+	 * @return height of the tree, 0 if it is empty
+	 */
+	public int getHeight() {
+		return height(root);
+	}
+
+	/**
+	 * Returns the keys in sorted order
+	 *
+	 * @return array of the keys in-order
+	 */
+	public long[] getInOrderTraversal() {
+		long[] out = new long[size];
+		int[] count = new int[1];
+		forEachSlotInOrder(node -> out[count[0]++] = keys[node]);
+		return out;
+	}
+
+	/**
+	 * Returns the keys in pre-order (V L R)
+	 *
+	 * @return array of the keys in pre-order
+	 */
+	public long[] getPreOrderTraversal() {
+		long[] out = new long[size];
+		int[] count = new int[1];
+		forEachSlotPreOrder(node -> out[count[0]++] = keys[node]);
+		return out;
+	}
+
+	/**
+	 * Returns the keys in post-order (L R V)
+	 *
+	 * @return array of the keys in post-order
+	 */
+	public long[] getPostOrderTraversal() {
+		long[] out = new long[size];
+		int[] count = new int[1];
+		forEachSlotPostOrder(node -> out[count[0]++] = keys[node]);
+		return out;
+	}
+
+	/**
+	 * Returns the keys level by level, the root first and then each level from left
+	 * to right
+	 *
+	 * @return array of the keys in level-order
+	 */
+	public long[] getLevelOrderTraversal() {
+		long[] out = new long[size];
+		int[] count = new int[1];
+		forEachSlotLevelOrder(node -> out[count[0]++] = keys[node], null);
+		return out;
+	}
+
+	/**
+	 * Passes every key to the action in sorted order without building an array of
+	 * them
+	 *
+	 * @param action called once per key
+	 */
+	public void forEachInOrder(LongConsumer action) {
+		forEachSlotInOrder(node -> action.accept(keys[node]));
+	}
+
+	/**
+	 * Add the key, value pair to the tree and increase the number of keys.
+	 *
+	 * @param key   the key to add
+	 * @param value the value stored under the key
+	 * @throws DuplicateKeyException if key is already in the tree
+	 */
+	public void insert(long key, V value) throws DuplicateKeyException {
+
+		// walks down until the empty spot for the new node is reached
+		int curr = root;
+		int parent = NIL;
+		while (curr != NIL) {
+			if (key == keys[curr]) {
+				throw new BALST.StacklessDuplicateKeyException();
+			}
+			parent = curr;
+			curr = key < keys[curr] ? lefts[curr] : rights[curr];
+		}
+
+		int node = allocate();
+		keys[node] = key;
+		values[node] = value;
+		link(node, parent, parent == NIL || key < keys[parent] ? -1 : 1);
+
+		// only runs when assertions are enabled
+		assert verifyInvariants();
+	}
+
+	/**
+	 * If key is found, remove the key, value pair from the tree and decrease the
+	 * number of keys
+	 *
+	 * @param key the key to remove
+	 * @return true
+	 * @throws KeyNotFoundException if key is not in the tree
+	 */
+	public boolean remove(long key) throws KeyNotFoundException {
+		unlink(getExistingNode(key));
+
+		// only runs when assertions are enabled
+		assert verifyInvariants();
+		return true;
+	}
+
+	/**
+	 * Returns the value associated with the given key
+	 *
+	 * @param key the key to look up
+	 * @return the value of the key
+	 * @throws KeyNotFoundException if key is not in the tree
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) throws KeyNotFoundException {
+		return (V) values[getExistingNode(key)];
+	}
+
+	/**
+	 * Returns true if the key is in the tree
+	 *
+	 * @param key the key to look up
+	 * @return true if it exists, false otherwise
+	 */
+	public boolean contains(long key) {
+		return getNode(key) != NIL;
+	}
+
+	/**
+	 * Returns the number of key, value pairs in the tree
+	 *
+	 * @return number of keys
+	 */
+	public int numKeys() {
+		return size;
+	}
+
+	/**
+	 * Prints the keys of each level of the tree on its own line
+	 */
+	public void print() {
+		print(Long::toString);
+	}
+
+	/**
+	 * prints the keys of each level of the tree on its own line, each key written
+	 * by the given function, so trees storing other keys as longs print those keys
+	 *
+	 * @param format turns a stored key into the text printed for it
+	 */
+	void print(LongFunction<String> format) {
+		printLevels(node -> format.apply(keys[node]));
+	}
+
+	/**
+	 * Returns the smallest key in the tree
+	 *
+	 * @return the first key
+	 * @throws NoSuchElementException if the tree is empty
+	 */
+	public long firstKey() {
+		if (root == NIL) {
+			throw new NoSuchElementException();
+		}
+		int curr = root;
+		while (lefts[curr] != NIL) {
+			curr = lefts[curr];
+		}
+		return keys[curr];
+	}
+
+	/**
+	 * Returns the largest key in the tree
+	 *
+	 * @return the last key
+	 * @throws NoSuchElementException if the tree is empty
+	 */
+	public long lastKey() {
+		if (root == NIL) {
+			throw new NoSuchElementException();
+		}
+		int curr = root;
+		while (rights[curr] != NIL) {
+			curr = rights[curr];
+		}
+		return keys[curr];
+	}
+
+	// helper methods
+	/**
+	 * returns the slot of a given key in the tree if it exists, walking down once
+	 * with primitive comparisons
+	 *
+	 * @param key the key to be found
+	 * @return slot of the key found, else NIL
+	 */
+	private int getNode(long key) {
+		int curr = root;
+		while (curr != NIL && key != keys[curr]) {
+			curr = key < keys[curr] ? lefts[curr] : rights[curr];
+		}
+		return curr;
+	}
+
+	/**
+	 * returns the slot of a given key in the tree, throwing if it does not exist
+	 *
+	 * @param key the key to be found
+	 * @return slot of the key found
+	 * @throws KeyNotFoundException if no node holds the key
+	 */
+	private int getExistingNode(long key) throws KeyNotFoundException {
+		int found = getNode(key);
+		if (found == NIL) {
+			throw new BALST.StacklessKeyNotFoundException();
+		}
+		return found;
+	}
+
+	// storage of the keys, next to the links and values of ArraySlotBALST
+	@Override
+	void copyKey(int from, int to) {
+		keys[to] = keys[from];
+	}
+
+	@Override
+	void resizeKeys(int length) {
+		keys = Arrays.copyOf(keys, length);
+	}
+
+	@Override
+	int compareSlots(int a, int b) {
+		return Long.compare(keys[a], keys[b]);
+	}
+
+	@Override
+	String keyString(int node) {
+		return Long.toString(keys[node]);
+	}
+}
@@ -0,0 +1,302 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * OffHeapBALST whose pages live in a memory mapped file, so a tree saved by
+ * checkpoint is opened again without reading or inserting anything: the pages
+ * are mapped and the operating system reads each one in the first time it is
+ * touched.
+ *
+ * The file is mapped copy on write, so changes made to the tree never reach the
+ * file by themselves, and the file always holds the tree as of the last
+ * checkpoint. A checkpoint writes the whole tree to a temporary file next to it,
+ * forces it to disk and then renames it over the old file in one atomic step, so
+ * a crash at any point leaves either the old or the new file, never a mix. The
+ * file starts with a header of
+ *
+ * magic | version | key width | value width | page shift | page count | root |
+ * size | free head | next slot | CRC32 of the fields before it
+ *
+ * all little endian ints, padded to HEADER_BYTES, followed by the pages. Pages
+ * added since the last checkpoint are kept in direct buffers until the next one.
+ * Closing the tree drops every change made since the last checkpoint, and
+ * unmaps the file and frees those buffers right away.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class MappedBALST<K extends Comparable<K>, V> extends OffHeapBALST<K, V> {
+
+	static final int MAGIC = 0x42414C53; // "BALS"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 64;
+	private static final int CRC_OFFSET = 40;
+	private static final int PAGES_PER_MAPPING = 1024; // pages sliced out of one mapping
+
+	private final Path file; // where checkpoints are written
+	private ByteBuffer[] mappings = new ByteBuffer[0]; // mappings of the file the first pages are sliced from
+	private int mappedPages; // number of pages sliced from the mappings
+
+	/**
+	 * Constructor for a tree backed by the given file
+	 *
+	 * @param file       file the tree is checkpointed to
+	 * @param keyCodec   encodes the keys
+	 * @param valueCodec encodes the values
+	 */
+	private MappedBALST(Path file, BALSTCodec<K> keyCodec, BALSTCodec<V> valueCodec) {
+		super(keyCodec, valueCodec);
+		this.file = file;
+	}
+
+	/**
+	 * Opens the tree saved in the given file by the last checkpoint, or an empty
+	 * tree if the file does not exist yet. Only the header is read, the pages are
+	 * mapped and read in as they are used.
+	 *
+	 * @param file       file the tree is saved in
+	 * @param keyCodec   encodes the keys, with the same width as when it was saved
+	 * @param valueCodec encodes the values, with the same width as when it was
+	 *                   saved
+	 * @param <K>        is the generic type of key
+	 * @param <V>        is the generic type of value
+	 * @return the opened tree
+	 * @throws IOException if the file cannot be read or was not saved by a tree
+	 *                     with the same layout
+	 */
+	public static <K extends Comparable<K>, V> MappedBALST<K, V> open(Path file, BALSTCodec<K> keyCodec,
+			BALSTCodec<V> valueCodec) throws IOException {
+		MappedBALST<K, V> tree = new MappedBALST<K, V>(file, keyCodec, valueCodec);
+		if (Files.exists(file)) {
+			tree.map();
+		}
+		return tree;
+	}
+
+	/**
+	 * Returns the file the tree is saved in
+	 *
+	 * @return path of the file
+	 */
+	public Path file() {
+		return file;
+	}
+
+	/**
+	 * Saves the tree to its file so that the next open sees exactly the current
+	 * keys. The tree is written to a temporary file, forced to disk and renamed
+	 * over the old file, so the old file stays whole until the new one is
+	 * complete. Afterwards the tree is mapped from the new file, and the memory
+	 * held by pages changed since the last checkpoint is freed.
+	 *
+	 * @throws IOException if the tree could not be saved, in which case the old
+	 *                     file is left as it was
+	 */
+	public void checkpoint() throws IOException {
+		checkOpen();
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(out, header(), 0);
+			long position = HEADER_BYTES;
+			for (int i = 0; i < pageCount; i++) {
+				ByteBuffer page = pages[i].duplicate();
+				page.clear();
+				writeFully(out, page, position);
+				position += page.capacity();
+			}
+			out.force(true);
+		}
+
+		try {
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		forceDirectory();
+
+		// the new file holds the same bytes, so the pages can be mapped from it
+		map();
+	}
+
+	/**
+	 * reads the header of the file, checks it matches this tree and maps its pages
+	 * copy on write
+	 *
+	 * @throws IOException if the file cannot be read or does not match
+	 */
+	private void map() throws IOException {
+		// a copy on write mapping needs a writable channel, but nothing is written
+		// through it, and the mapping stays valid after the channel is closed
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining()) {
+				if (in.read(header, header.position()) < 0) {
+					throw new IOException(file + " is too short to be a saved tree");
+				}
+			}
+			int count = checkHeader(header);
+			long pageBytes = (long) slotBytes << pageShift;
+			if (in.size() != HEADER_BYTES + count * pageBytes) {
+				throw new IOException(file + " has " + in.size() + " bytes instead of "
+						+ (HEADER_BYTES + count * pageBytes));
+			}
+
+			// maps many pages at once and slices them apart, to keep the number of
+			// mappings low
+			ByteBuffer[] mapped = new ByteBuffer[Math.max(1, count)];
+			ByteBuffer[] nextMappings = new ByteBuffer[(count + PAGES_PER_MAPPING - 1) / PAGES_PER_MAPPING];
+			try {
+				for (int first = 0; first < count; first += PAGES_PER_MAPPING) {
+					int pagesInMapping = Math.min(PAGES_PER_MAPPING, count - first);
+					ByteBuffer mapping = in.map(FileChannel.MapMode.PRIVATE, HEADER_BYTES + first * pageBytes,
+							pagesInMapping * pageBytes);
+					nextMappings[first / PAGES_PER_MAPPING] = mapping;
+					for (int i = 0; i < pagesInMapping; i++) {
+						int start = (int) (i * pageBytes);
+						mapped[first + i] = mapping.duplicate().position(start).limit(start + (int) pageBytes)
+								.slice().order(ByteOrder.LITTLE_ENDIAN);
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				// the tree keeps the pages it had, and the mappings made so far are let go
+				for (ByteBuffer mapping : nextMappings) {
+					if (mapping != null) {
+						free(mapping);
+					}
+				}
+				throw e;
+			}
+
+			// only now that every page is mapped does the tree take the saved fields,
+			// so a failure above leaves its fields and pages as they were
+			root = header.getInt(24);
+			size = header.getInt(28);
+			freeHead = header.getInt(32);
+			nextSlot = header.getInt(36);
+
+			// the pages and mappings replaced are freed once nothing refers to them
+			ByteBuffer[] oldPages = pages;
+			int oldCount = pageCount;
+			int oldMapped = mappedPages;
+			ByteBuffer[] oldMappings = mappings;
+			pages = mapped;
+			pageCount = count;
+			mappings = nextMappings;
+			mappedPages = count;
+			for (int i = oldMapped; i < oldCount; i++) {
+				free(oldPages[i]);
+			}
+			for (ByteBuffer mapping : oldMappings) {
+				free(mapping);
+			}
+		}
+	}
+
+	/**
+	 * Frees the pages added since the last checkpoint and unmaps the file,
+	 * dropping every change made since the last checkpoint. Calling it again does
+	 * nothing.
+	 */
+	@Override
+	public void close() {
+		if (!isClosed()) {
+			super.close();
+			for (ByteBuffer mapping : mappings) {
+				free(mapping);
+			}
+			mappings = new ByteBuffer[0];
+			mappedPages = 0;
+		}
+	}
+
+	@Override
+	void freePage(int index, ByteBuffer page) {
+		// a page sliced from a mapping is freed with the whole mapping
+		if (index >= mappedPages) {
+			super.freePage(index, page);
+		}
+	}
+
+	/**
+	 * @return the header describing the current tree, ready to be written
+	 */
+	private ByteBuffer header() {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(keyCodec.width()).putInt(valueCodec.width()).putInt(pageShift)
+				.putInt(pageCount).putInt(root).putInt(size).putInt(freeHead).putInt(nextSlot);
+		header.putInt(CRC_OFFSET, crc(header));
+		header.clear();
+		return header;
+	}
+
+	/**
+	 * checks a header read from the file, without changing the tree
+	 *
+	 * @param header the header, read in full
+	 * @return number of pages in the file
+	 * @throws IOException if the header is damaged or from a different layout
+	 */
+	private int checkHeader(ByteBuffer header) throws IOException {
+		if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+			throw new IOException(file + " is not a saved tree of version " + VERSION);
+		}
+		if (header.getInt(CRC_OFFSET) != crc(header)) {
+			throw new IOException(file + " has a damaged header");
+		}
+		if (header.getInt(8) != keyCodec.width() || header.getInt(12) != valueCodec.width()
+				|| header.getInt(16) != pageShift) {
+			throw new IOException(file + " was saved with different key, value or page sizes");
+		}
+		int count = header.getInt(20);
+		int savedNextSlot = header.getInt(36);
+		if (count < 0 || savedNextSlot < 1 || savedNextSlot > ((long) count << pageShift) + 1) {
+			throw new IOException(file + " has a damaged header");
+		}
+		return count;
+	}
+
+	/**
+	 * @return CRC32 of the header fields before the checksum
+	 */
+	private static int crc(ByteBuffer header) {
+		CRC32 crc = new CRC32();
+		ByteBuffer fields = header.duplicate();
+		fields.clear().limit(CRC_OFFSET);
+		crc.update(fields);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * writes the whole buffer at the given position of the channel
+	 */
+	private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += out.write(buffer, position);
+		}
+	}
+
+	/**
+	 * forces the directory of the file to disk, so the rename survives a crash.
+	 * Some systems cannot open a directory for this, and there the rename is left
+	 * to the file system.
+	 */
+	private void forceDirectory() {
+		Path directory = file.toAbsolutePath().getParent();
+		try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+			dir.force(true);
+		} catch (IOException e) {
+			// not supported on this system
+		}
+	}
+}
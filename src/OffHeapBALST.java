@@ -0,0 +1,331 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Red Black Tree that keeps its nodes outside of the Java heap, in direct byte
+ * buffers, so the garbage collector has nothing to trace however many keys the
+ * tree holds. Keys and values are stored through fixed width codecs, and a node
+ * is one slot of
+ *
+ * left (4 bytes) | right (4) | parent (4) | color and height (4) | key | value
+ *
+ * The slots are kept in pages of about a megabyte, so the tree can grow past the
+ * 2GB limit of a single buffer and growing never copies the nodes already
+ * stored. Every get decodes a new key and value object from the bytes, so
+ * changing a returned object does not change the tree.
+ *
+ * A key looked for is encoded once per walk, into a buffer of the calling
+ * thread, and compared with the bytes of each slot on the way down, so no key
+ * object is decoded during a walk and lookups on several threads at once do not
+ * share any state. Like BALST, the tree must not be changed while other threads
+ * use it.
+ *
+ * The tree must be closed when it is no longer needed. Closing frees the memory
+ * of the pages right away, by running the cleaners of the direct buffers
+ * instead of waiting for a garbage collection to find them unreachable, so a
+ * program that opens and closes many trees does not hold more memory outside
+ * of the heap than its open trees use. After close every method throws
+ * IllegalStateException.
+ *
+ * Freeing a direct buffer early is not part of the Java SE API. It is done
+ * through sun.misc.Unsafe.invokeCleaner of the jdk.unsupported module, reached
+ * by reflection, which a JVM may leave out or a later release may remove; the
+ * memory is then left to the garbage collector, as it would be without close.
+ * Freed memory is also not guarded: a read or write by another thread that
+ * overlaps close touches memory that is already freed, which can crash the JVM
+ * or return garbage instead of throwing IllegalStateException. The caller must
+ * make sure no other thread uses the tree once close starts.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class OffHeapBALST<K extends Comparable<K>, V> extends IndexedBALST<K, V> implements AutoCloseable {
+
+	// byte offsets of the fields within a slot
+	static final int LEFT = 0;
+	static final int RIGHT = 4;
+	static final int PARENT = 8;
+	static final int META = 12;
+	static final int KEY = 16;
+
+	private static final int PAGE_BYTES = 1 << 20; // target size of a page
+	private static final MethodHandle INVOKE_CLEANER = invokeCleaner(); // null if the JVM has none
+
+	final BALSTCodec<K> keyCodec;
+	final BALSTCodec<V> valueCodec;
+	final int valueOffset; // byte offset of the value within a slot
+	final int slotBytes; // bytes per slot
+	final int pageShift; // log2 of the slots per page
+	private final int pageMask; // slots per page - 1
+
+	ByteBuffer[] pages; // null once the tree is closed
+	int pageCount; // pages in use, the rest of the array is empty
+
+	private final ThreadLocal<ByteBuffer> probes; // each thread's buffer for the key it looks for
+
+	/**
+	 * Constructor for the tree
+	 *
+	 * @param keyCodec   encodes the keys
+	 * @param valueCodec encodes the values
+	 */
+	public OffHeapBALST(BALSTCodec<K> keyCodec, BALSTCodec<V> valueCodec) {
+		if (keyCodec == null || valueCodec == null) {
+			throw new NullPointerException("codecs are required");
+		}
+		if (keyCodec.width() < 0 || valueCodec.width() < 0
+				|| (long) KEY + keyCodec.width() + valueCodec.width() > PAGE_BYTES) {
+			throw new IllegalArgumentException("codec widths must be between 0 and " + (PAGE_BYTES - KEY));
+		}
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		valueOffset = KEY + keyCodec.width();
+		slotBytes = valueOffset + valueCodec.width();
+		pageShift = 31 - Integer.numberOfLeadingZeros(PAGE_BYTES / slotBytes);
+		pageMask = (1 << pageShift) - 1;
+		pages = new ByteBuffer[1];
+		pageCount = 0;
+		probes = ThreadLocal
+				.withInitial(() -> ByteBuffer.allocate(keyCodec.width()).order(ByteOrder.LITTLE_ENDIAN));
+	}
+
+	/**
+	 * Returns the number of bytes of memory the pages of the tree take
+	 *
+	 * @return bytes of memory outside of the heap held by the tree
+	 */
+	public long memoryUsed() {
+		checkOpen();
+		return (long) pageCount * (slotBytes << pageShift);
+	}
+
+	/**
+	 * Frees the memory of the pages, so the tree can no longer be used. Calling
+	 * it again does nothing.
+	 */
+	@Override
+	public void close() {
+		if (pages != null) {
+			ByteBuffer[] closed = pages;
+			int count = pageCount;
+			// the tree is emptied first, so nothing reaches a page once it is freed
+			pages = null;
+			pageCount = 0;
+			root = NIL;
+			size = 0;
+			for (int i = 0; i < count; i++) {
+				freePage(i, closed[i]);
+				closed[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * @return true once close has been called
+	 */
+	public boolean isClosed() {
+		return pages == null;
+	}
+
+	@Override
+	void checkOpen() {
+		if (pages == null) {
+			throw new IllegalStateException("tree is closed");
+		}
+	}
+
+	/**
+	 * makes a new zero filled page of the given size. Subclasses may place the
+	 * page somewhere other than a direct buffer.
+	 *
+	 * @param index number of the page
+	 * @param bytes size of the page
+	 * @return the page, in little endian order
+	 */
+	ByteBuffer newPage(int index, int bytes) {
+		return ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * frees the memory of a page made by newPage once the tree is done with it.
+	 * Subclasses that place pages elsewhere free them their own way.
+	 *
+	 * @param index number of the page
+	 * @param page  the page, never used again
+	 */
+	void freePage(int index, ByteBuffer page) {
+		free(page);
+	}
+
+	/**
+	 * Frees the memory of a direct buffer now instead of when the buffer is
+	 * collected. The buffer must not be used again, since its memory may be given
+	 * to anything else. Does nothing for a heap buffer, or if the JVM offers no
+	 * way to free a buffer early, in which case its memory is freed when it is
+	 * collected.
+	 *
+	 * @param buffer a direct buffer made by ByteBuffer.allocateDirect or
+	 *               FileChannel.map, not a slice or duplicate of one
+	 */
+	static void free(ByteBuffer buffer) {
+		if (INVOKE_CLEANER == null || !buffer.isDirect()) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invokeExact(buffer);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			// invokeCleaner declares no checked exceptions
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * finds sun.misc.Unsafe.invokeCleaner, an unsupported method of the JDK since
+	 * Java 9 and the only way Java 11 has to free a direct buffer before it is
+	 * collected
+	 *
+	 * @return a handle taking the buffer to free, or null if there is none
+	 */
+	private static MethodHandle invokeCleaner() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return MethodHandles.lookup()
+					.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+					.bindTo(field.get(null));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// left to the garbage collector
+			return null;
+		}
+	}
+
+	/**
+	 * @return the page holding the slot
+	 */
+	private ByteBuffer page(int node) {
+		return pages[node >>> pageShift];
+	}
+
+	/**
+	 * @return byte offset of the slot within its page
+	 */
+	private int offset(int node) {
+		return (node & pageMask) * slotBytes;
+	}
+
+	@Override
+	int left(int node) {
+		return page(node).getInt(offset(node) + LEFT);
+	}
+
+	@Override
+	int right(int node) {
+		return page(node).getInt(offset(node) + RIGHT);
+	}
+
+	@Override
+	int parent(int node) {
+		return page(node).getInt(offset(node) + PARENT);
+	}
+
+	@Override
+	int meta(int node) {
+		return page(node).getInt(offset(node) + META);
+	}
+
+	@Override
+	void setLeft(int node, int child) {
+		page(node).putInt(offset(node) + LEFT, child);
+	}
+
+	@Override
+	void setRight(int node, int child) {
+		page(node).putInt(offset(node) + RIGHT, child);
+	}
+
+	@Override
+	void setParent(int node, int parent) {
+		page(node).putInt(offset(node) + PARENT, parent);
+	}
+
+	@Override
+	void setMeta(int node, int meta) {
+		page(node).putInt(offset(node) + META, meta);
+	}
+
+	@Override
+	K key(int node) {
+		return keyCodec.read(page(node), offset(node) + KEY);
+	}
+
+	@Override
+	Object probe(K key) {
+		// encodes the key once for the whole walk, so each slot is compared by its
+		// bytes instead of decoding a key object per node
+		ByteBuffer probe = probes.get();
+		try {
+			keyCodec.write(probe, 0, key);
+			return probe;
+		} catch (IllegalArgumentException e) {
+			// a key the codec cannot hold is never stored, but still has to be ordered
+			return null;
+		}
+	}
+
+	@Override
+	int compare(K key, Object probe, int node) {
+		if (probe == null) {
+			return super.compare(key, null, node);
+		}
+		return keyCodec.compare((ByteBuffer) probe, 0, page(node), offset(node) + KEY);
+	}
+
+	@Override
+	V value(int node) {
+		return valueCodec.read(page(node), offset(node) + valueOffset);
+	}
+
+	@Override
+	void setEntry(int node, K key, V value) {
+		ByteBuffer page = page(node);
+		int offset = offset(node);
+		keyCodec.write(page, offset + KEY, key);
+		valueCodec.write(page, offset + valueOffset, value);
+	}
+
+	@Override
+	void copyEntry(int from, int to) {
+		// copies the encoded bytes, so nothing is decoded, through duplicates so the
+		// positions of the pages are left alone
+		int start = offset(from) + KEY;
+		ByteBuffer source = page(from).duplicate();
+		source.limit(start + slotBytes - KEY).position(start);
+		ByteBuffer target = page(to).duplicate();
+		target.position(offset(to) + KEY);
+		target.put(source);
+	}
+
+	@Override
+	void clearEntry(int node) {
+		// nothing on the heap is referenced by a slot
+	}
+
+	@Override
+	void ensureCapacity(int slots) {
+		while (((long) pageCount << pageShift) < slots) {
+			if (pageCount == pages.length) {
+				pages = Arrays.copyOf(pages, pageCount * 2);
+			}
+			pages[pageCount] = newPage(pageCount, slotBytes << pageShift);
+			pageCount++;
+		}
+	}
+}
@@ -0,0 +1,640 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * Balanced search tree whose nodes never change once they are built. A change
+ * copies only the nodes on the path from the root down to the key, O(log n) of
+ * them, and shares every other node with the tree as it was before, so each
+ * version of the tree stays whole for as long as anyone holds its root.
+ *
+ * That makes snapshot() O(1): it hands out the current root. A snapshot is a
+ * tree of its own that never sees later changes to this tree, and readers of a
+ * snapshot or of this tree never take a lock, block a writer or see a change
+ * half done, since a change is published by one write of the volatile root.
+ * Writers of the same tree are serialized by its monitor.
+ *
+ * The tree is kept balanced by the heights of the subtrees (AVL) instead of by
+ * colors, since the rebalancing after a removal then only looks at the nodes on
+ * the copied path. Every node also counts the keys below it, so numKeys of any
+ * version is O(1). Changes and traversals walk the tree with loops and explicit
+ * stacks, never by recursion.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class PersistentBALST<K extends Comparable<K>, V> implements BALSTADT<K, V>, Iterable<K> {
+
+	/**
+	 * A node that never changes once it is built
+	 *
+	 * @param <K> is the generic type of key
+	 * @param <V> is the generic type of value
+	 */
+	static final class Node<K, V> {
+		final K key;
+		final V value;
+		final Node<K, V> left;
+		final Node<K, V> right;
+		final int height; // 1 for a leaf
+		final int size; // keys in this subtree
+
+		Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			height = Math.max(height(left), height(right)) + 1;
+			size = size(left) + size(right) + 1;
+		}
+	}
+
+	private volatile Node<K, V> root;
+
+	/**
+	 * Constructor for an empty tree
+	 */
+	public PersistentBALST() {
+	}
+
+	/**
+	 * Constructor for a tree starting out as the version with the given root
+	 *
+	 * @param root the root, null for an empty tree
+	 */
+	private PersistentBALST(Node<K, V> root) {
+		this.root = root;
+	}
+
+	/**
+	 * Returns the tree as it is now, in O(1). The snapshot shares every node with
+	 * this tree, changes to either one are not seen by the other, and it can be
+	 * read from any thread while this tree keeps changing.
+	 *
+	 * @return a tree holding the keys and values of this one at this moment
+	 */
+	public PersistentBALST<K, V> snapshot() {
+		return new PersistentBALST<K, V>(root);
+	}
+
+	@Override
+	public K getKeyAtRoot() {
+		Node<K, V> top = root;
+		return top == null ? null : top.key;
+	}
+
+	@Override
+	public K getKeyOfLeftChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		Node<K, V> left = getExistingNode(key).left;
+		return left == null ? null : left.key;
+	}
+
+	@Override
+	public K getKeyOfRightChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		Node<K, V> right = getExistingNode(key).right;
+		return right == null ? null : right.key;
+	}
+
+	@Override
+	public int getHeight() {
+		return height(root);
+	}
+
+	@Override
+	public List<K> getInOrderTraversal() {
+		Node<K, V> top = root;
+		List<K> keys = new ArrayList<K>(size(top));
+		inOrder(top, keys::add);
+		return keys;
+	}
+
+	@Override
+	public List<K> getPreOrderTraversal() {
+		Node<K, V> top = root;
+		List<K> keys = new ArrayList<K>(size(top));
+		preOrder(top, keys::add);
+		return keys;
+	}
+
+	@Override
+	public List<K> getPostOrderTraversal() {
+		Node<K, V> top = root;
+		List<K> keys = new ArrayList<K>(size(top));
+		postOrder(top, keys::add);
+		return keys;
+	}
+
+	@Override
+	public List<K> getLevelOrderTraversal() {
+		Node<K, V> top = root;
+		List<K> keys = new ArrayList<K>(size(top));
+		levelOrder(top, keys::add, null);
+		return keys;
+	}
+
+	/**
+	 * Passes every key of the current version to the action in sorted order (L V
+	 * R) without building a list of them
+	 *
+	 * @param action called once per key
+	 */
+	public void forEachInOrder(Consumer<? super K> action) {
+		inOrder(root, action);
+	}
+
+	/**
+	 * Passes every key of the current version to the action in pre-order (V L R)
+	 * without building a list of them
+	 *
+	 * @param action called once per key
+	 */
+	public void forEachPreOrder(Consumer<? super K> action) {
+		preOrder(root, action);
+	}
+
+	/**
+	 * Passes every key of the current version to the action in post-order (L R V)
+	 * without building a list of them
+	 *
+	 * @param action called once per key
+	 */
+	public void forEachPostOrder(Consumer<? super K> action) {
+		postOrder(root, action);
+	}
+
+	/**
+	 * Passes every key of the current version to the action in level-order, the
+	 * root first and then each level from left to right, without building a list
+	 * of them
+	 *
+	 * @param action called once per key
+	 */
+	public void forEachLevelOrder(Consumer<? super K> action) {
+		levelOrder(root, action, null);
+	}
+
+	@Override
+	public synchronized void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+		checkKey(key);
+		Node<K, V> top = root;
+		Node<K, V>[] path = newNodeArray(height(top) + 1);
+		boolean[] wentLeft = new boolean[path.length];
+		int depth = descend(top, key, path, wentLeft);
+
+		// a duplicate is found on the way down, before anything is published
+		if (path[depth] != null) {
+			throw new BALST.StacklessDuplicateKeyException();
+		}
+		root = copyPath(path, wentLeft, depth, new Node<K, V>(key, value, null, null), -1, null);
+	}
+
+	/**
+	 * Stores the value under the key, replacing the value of the key if it is
+	 * already in the tree
+	 *
+	 * @param key   the key to store the value under
+	 * @param value the value to store
+	 * @return the value the key had before, or null if it was not in the tree
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public synchronized V put(K key, V value) throws IllegalNullKeyException {
+		checkKey(key);
+		Node<K, V> top = root;
+		Node<K, V>[] path = newNodeArray(height(top) + 1);
+		boolean[] wentLeft = new boolean[path.length];
+		int depth = descend(top, key, path, wentLeft);
+
+		// the same descent tells whether the key is there, so the path is walked once
+		Node<K, V> old = path[depth];
+		Node<K, V> node = old == null ? new Node<K, V>(key, value, null, null)
+				: new Node<K, V>(key, value, old.left, old.right);
+		root = copyPath(path, wentLeft, depth, node, -1, null);
+		return old == null ? null : old.value;
+	}
+
+	@Override
+	public synchronized boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkKey(key);
+		Node<K, V> top = root;
+		Node<K, V>[] path = newNodeArray(height(top) + 1);
+		boolean[] wentLeft = new boolean[path.length];
+		int depth = descend(top, key, path, wentLeft);
+		Node<K, V> found = path[depth];
+		if (found == null) {
+			throw new BALST.StacklessKeyNotFoundException();
+		}
+		if (found.left == null || found.right == null) {
+			root = copyPath(path, wentLeft, depth, found.left == null ? found.right : found.left, -1, null);
+			return true;
+		}
+
+		// the successor takes the place of the removed node, so the path goes on
+		// down to it, and the node of the key is copied with the successor's pair
+		wentLeft[depth] = false;
+		int target = depth;
+		Node<K, V> successor = found.right;
+		for (depth++; successor.left != null; depth++) {
+			path[depth] = successor;
+			wentLeft[depth] = true;
+			successor = successor.left;
+		}
+		root = copyPath(path, wentLeft, depth, successor.right, target, successor);
+		return true;
+	}
+
+	@Override
+	public V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		return getExistingNode(key).value;
+	}
+
+	@Override
+	public boolean contains(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return getNode(root, key) != null;
+	}
+
+	@Override
+	public int numKeys() {
+		return size(root);
+	}
+
+	/**
+	 * Prints the keys of each level of the tree on its own line, in one pass
+	 * over the nodes
+	 */
+	@Override
+	public void print() {
+		StringBuilder out = new StringBuilder();
+		levelOrder(root, key -> out.append(key).append(' '), () -> out.append(System.lineSeparator()));
+		System.out.print(out);
+	}
+
+	/**
+	 * Returns an iterator over the keys in sorted order, of the version of the
+	 * tree there was when it was created. Changes made to the tree afterwards do
+	 * not affect it, and it does not support remove.
+	 *
+	 * @return iterator over the keys in sorted order
+	 */
+	@Override
+	public Iterator<K> iterator() {
+		Node<K, V> top = root;
+		return new Iterator<K>() {
+			// the nodes whose key and right subtree are still to come
+			private final ArrayDeque<Node<K, V>> path = new ArrayDeque<Node<K, V>>();
+			{
+				pushLeft(top);
+			}
+
+			@Override
+			public boolean hasNext() {
+				return !path.isEmpty();
+			}
+
+			@Override
+			public K next() {
+				if (path.isEmpty()) {
+					throw new NoSuchElementException();
+				}
+				Node<K, V> node = path.pop();
+				pushLeft(node.right);
+				return node.key;
+			}
+
+			private void pushLeft(Node<K, V> node) {
+				for (; node != null; node = node.left) {
+					path.push(node);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return the smallest key, or null if the tree is empty
+	 */
+	public K firstKey() {
+		Node<K, V> node = root;
+		if (node == null) {
+			return null;
+		}
+		while (node.left != null) {
+			node = node.left;
+		}
+		return node.key;
+	}
+
+	/**
+	 * @return the largest key, or null if the tree is empty
+	 */
+	public K lastKey() {
+		Node<K, V> node = root;
+		if (node == null) {
+			return null;
+		}
+		while (node.right != null) {
+			node = node.right;
+		}
+		return node.key;
+	}
+
+	/**
+	 * @param key the key to search for
+	 * @return the largest key less than or equal to the given key, or null
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K floorKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		K best = null;
+		for (Node<K, V> node = root; node != null;) {
+			int cmp = key.compareTo(node.key);
+			if (cmp == 0) {
+				return node.key;
+			}
+			if (cmp > 0) {
+				best = node.key;
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param key the key to search for
+	 * @return the smallest key greater than or equal to the given key, or null
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K ceilingKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		K best = null;
+		for (Node<K, V> node = root; node != null;) {
+			int cmp = key.compareTo(node.key);
+			if (cmp == 0) {
+				return node.key;
+			}
+			if (cmp < 0) {
+				best = node.key;
+				node = node.left;
+			} else {
+				node = node.right;
+			}
+		}
+		return best;
+	}
+
+	// helper methods
+	/**
+	 * walks down from the root towards the key, keeping the nodes passed and the
+	 * side taken at each
+	 *
+	 * @param top      root of the version to walk
+	 * @param key      the key to find
+	 * @param path     gets the nodes passed, then the node of the key or null at
+	 *                 the returned depth, at least height(top) + 1 long
+	 * @param wentLeft gets true for each node passed whose left side was taken
+	 * @return number of nodes passed before the key or the empty spot for it
+	 */
+	private static <K extends Comparable<K>, V> int descend(Node<K, V> top, K key, Node<K, V>[] path,
+			boolean[] wentLeft) {
+		int depth = 0;
+		Node<K, V> node = top;
+		while (node != null) {
+			int cmp = key.compareTo(node.key);
+			if (cmp == 0) {
+				break;
+			}
+			path[depth] = node;
+			wentLeft[depth] = cmp < 0;
+			depth++;
+			node = cmp < 0 ? node.left : node.right;
+		}
+		path[depth] = node;
+		return depth;
+	}
+
+	/**
+	 * copies the nodes of a path from the bottom up over a new subtree at its end,
+	 * rebalancing each copy, and shares every node off the path
+	 *
+	 * @param path     the nodes of the path, from the root down
+	 * @param wentLeft true for each node of the path whose left side goes on down
+	 * @param depth    number of nodes in the path
+	 * @param child    the new subtree that replaces the one below the last node
+	 * @param swapAt   index of a node copied with the pair of swapIn instead of its
+	 *                 own, -1 for none
+	 * @param swapIn   node whose key and value go to index swapAt
+	 * @return root of the new version
+	 */
+	private static <K, V> Node<K, V> copyPath(Node<K, V>[] path, boolean[] wentLeft, int depth, Node<K, V> child,
+			int swapAt, Node<K, V> swapIn) {
+		for (int i = depth - 1; i >= 0; i--) {
+			Node<K, V> node = path[i];
+			Node<K, V> pair = i == swapAt ? swapIn : node;
+			child = wentLeft[i] ? balance(pair.key, pair.value, child, node.right)
+					: balance(pair.key, pair.value, node.left, child);
+		}
+		return child;
+	}
+
+	/**
+	 * builds a node over two subtrees whose heights differ by at most two,
+	 * rotating once or twice if they differ by two
+	 *
+	 * @return root of the balanced subtree
+	 */
+	private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right) {
+		int diff = height(left) - height(right);
+		if (diff > 1) {
+			// left heavy, the left child is rotated first if its right side is taller
+			if (height(left.left) < height(left.right)) {
+				Node<K, V> pivot = left.right;
+				return new Node<K, V>(pivot.key, pivot.value,
+						new Node<K, V>(left.key, left.value, left.left, pivot.left),
+						new Node<K, V>(key, value, pivot.right, right));
+			}
+			return new Node<K, V>(left.key, left.value, left.left, new Node<K, V>(key, value, left.right, right));
+		}
+		if (diff < -1) {
+			// right heavy, mirrored
+			if (height(right.right) < height(right.left)) {
+				Node<K, V> pivot = right.left;
+				return new Node<K, V>(pivot.key, pivot.value, new Node<K, V>(key, value, left, pivot.left),
+						new Node<K, V>(right.key, right.value, pivot.right, right.right));
+			}
+			return new Node<K, V>(right.key, right.value, new Node<K, V>(key, value, left, right.left),
+					right.right);
+		}
+		return new Node<K, V>(key, value, left, right);
+	}
+
+	/**
+	 * returns the node of the key in the current version, throwing if it is not
+	 * there
+	 *
+	 * @param key the key to find
+	 * @return the node of the key
+	 * @throws IllegalNullKeyException if key is null
+	 * @throws KeyNotFoundException    if the key is not in the tree
+	 */
+	private Node<K, V> getExistingNode(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkKey(key);
+		Node<K, V> node = getNode(root, key);
+		if (node == null) {
+			throw new BALST.StacklessKeyNotFoundException();
+		}
+		return node;
+	}
+
+	/**
+	 * @return the node of the key in the subtree, null if it is not there
+	 */
+	private static <K extends Comparable<K>, V> Node<K, V> getNode(Node<K, V> node, K key) {
+		while (node != null) {
+			int cmp = key.compareTo(node.key);
+			if (cmp == 0) {
+				return node;
+			}
+			node = cmp < 0 ? node.left : node.right;
+		}
+		return null;
+	}
+
+	/**
+	 * passes the keys of the subtree to the action in sorted order, with a stack
+	 * of the nodes whose left subtree is still being visited
+	 */
+	private static <K, V> void inOrder(Node<K, V> top, Consumer<? super K> action) {
+		Deque<Node<K, V>> stack = new ArrayDeque<Node<K, V>>(height(top));
+		Node<K, V> node = top;
+		while (node != null || !stack.isEmpty()) {
+			while (node != null) {
+				stack.push(node);
+				node = node.left;
+			}
+			node = stack.pop();
+			action.accept(node.key);
+			node = node.right;
+		}
+	}
+
+	/**
+	 * passes the keys of the subtree to the action in pre-order, with a stack of
+	 * the subtrees still to visit
+	 */
+	private static <K, V> void preOrder(Node<K, V> top, Consumer<? super K> action) {
+		if (top == null) {
+			return;
+		}
+		Deque<Node<K, V>> stack = new ArrayDeque<Node<K, V>>(height(top) + 1);
+		stack.push(top);
+		while (!stack.isEmpty()) {
+			Node<K, V> node = stack.pop();
+			action.accept(node.key);
+
+			// the right child is pushed first so the left subtree is visited first
+			if (node.right != null) {
+				stack.push(node.right);
+			}
+			if (node.left != null) {
+				stack.push(node.left);
+			}
+		}
+	}
+
+	/**
+	 * passes the keys of the subtree to the action in post-order, with a stack of
+	 * the nodes whose subtrees are still being visited
+	 */
+	private static <K, V> void postOrder(Node<K, V> top, Consumer<? super K> action) {
+		Deque<Node<K, V>> stack = new ArrayDeque<Node<K, V>>(height(top));
+		Node<K, V> node = top;
+		Node<K, V> lastVisited = null;
+		while (node != null || !stack.isEmpty()) {
+			while (node != null) {
+				stack.push(node);
+				node = node.left;
+			}
+			Node<K, V> next = stack.peek();
+
+			// the right subtree is visited before the node itself
+			if (next.right != null && next.right != lastVisited) {
+				node = next.right;
+			} else {
+				stack.pop();
+				action.accept(next.key);
+				lastVisited = next;
+			}
+		}
+	}
+
+	/**
+	 * passes the keys of the subtree to the action level by level, with one queue
+	 * for the whole walk
+	 *
+	 * @param top      root of the subtree
+	 * @param action   called once per key
+	 * @param levelEnd called after the last key of each level, null if not needed
+	 */
+	private static <K, V> void levelOrder(Node<K, V> top, Consumer<? super K> action, Runnable levelEnd) {
+		if (top == null) {
+			return;
+		}
+		ArrayDeque<Node<K, V>> queue = new ArrayDeque<Node<K, V>>();
+		queue.add(top);
+		while (!queue.isEmpty()) {
+			// the queue holds exactly one level when the level starts
+			for (int left = queue.size(); left > 0; left--) {
+				Node<K, V> node = queue.poll();
+				action.accept(node.key);
+				if (node.left != null) {
+					queue.add(node.left);
+				}
+				if (node.right != null) {
+					queue.add(node.right);
+				}
+			}
+			if (levelEnd != null) {
+				levelEnd.run();
+			}
+		}
+	}
+
+	/**
+	 * @return a new array of nodes
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <K, V> Node<K, V>[] newNodeArray(int count) {
+		return (Node<K, V>[]) new Node[count];
+	}
+
+	/**
+	 * @return height of the subtree, 0 if it is empty
+	 */
+	private static int height(Node<?, ?> node) {
+		return node == null ? 0 : node.height;
+	}
+
+	/**
+	 * @return number of keys in the subtree
+	 */
+	private static int size(Node<?, ?> node) {
+		return node == null ? 0 : node.size;
+	}
+
+	/**
+	 * throws if the key is null
+	 *
+	 * @param key the key to check
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	private static void checkKey(Object key) throws IllegalNullKeyException {
+		if (key == null) {
+			throw new IllegalNullKeyException();
+		}
+	}
+}
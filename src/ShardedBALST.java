@@ -0,0 +1,551 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * BALST split by ranges of keys into shards, each a BALST of its own behind its
+ * own read write lock, so threads working on keys in different shards never
+ * share a lock or a root. A key is routed to its shard by a binary search over
+ * the lowest keys of the shards, and scans walk the shards in order of their
+ * ranges, so their keys come out sorted without any merging.
+ *
+ * A shard that grows past maxShardKeys is split at its middle key into two new
+ * shards, built bottom up with BALST.fromSorted, while only that shard is
+ * locked. Where the keys go is therefore learned from the keys themselves: a
+ * range that gets many keys ends up in many small shards. A shard that a remove
+ * leaves with fewer than a quarter of maxShardKeys keys is merged with a
+ * neighbour, if the two hold at most maxShardKeys keys together and the
+ * neighbour is not locked by another thread at the time, so a range that loses
+ * its keys does not keep many nearly empty shards. The list of shards is
+ * replaced as a whole on a split or merge, and an operation that locked an old
+ * shard in the meantime sees it is retired and routes again.
+ *
+ * Single key operations are atomic. numKeys and the scans are exact while no
+ * other thread changes the tree, and otherwise see each shard as it was when
+ * they reached it. The methods about the shape of the tree answer for the
+ * balanced tree BALST.fromSorted builds from all of the keys, the tree
+ * snapshot() returns. That tree is built in O(n) the first time a shape is asked
+ * for after a change and kept until the next change, so asking for several parts
+ * of the shape between changes neither copies the keys nor locks a shard again.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class ShardedBALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
+
+	static final int DEFAULT_MAX_SHARD_KEYS = 1 << 16;
+
+	/**
+	 * The keys from low, inclusive, up to high, exclusive
+	 *
+	 * @param <K> is the generic type of key
+	 * @param <V> is the generic type of value
+	 */
+	static final class Shard<K extends Comparable<K>, V> {
+		final K low; // null for no lower bound
+		final K high; // null for no upper bound
+		final BALST<K, V> tree;
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		boolean retired; // set once the shard is split or merged, under the write lock
+
+		Shard(K low, K high, BALST<K, V> tree) {
+			this.low = low;
+			this.high = high;
+			this.tree = tree;
+		}
+	}
+
+	private final int maxShardKeys;
+	private volatile Shard<K, V>[] shards; // in order of their ranges, replaced as a whole
+	private final Object splitLock = new Object(); // held while shards is replaced
+	private final LongAdder size = new LongAdder();
+	private final Object shapeLock = new Object(); // taken to rebuild the shape
+	private volatile BALST<K, V> shape; // tree the shape is answered for, null until asked for
+	private volatile boolean changed; // set by writers once the shape is out of date
+
+	/**
+	 * Constructor for a tree that starts as one shard and splits shards of more
+	 * than DEFAULT_MAX_SHARD_KEYS keys
+	 */
+	public ShardedBALST() {
+		this(DEFAULT_MAX_SHARD_KEYS, new ArrayList<K>());
+	}
+
+	/**
+	 * Constructor for a tree that starts with a shard below the first split key,
+	 * one between each pair of split keys and one from the last split key on
+	 *
+	 * @param maxShardKeys most keys a shard holds before it is split, at least 2
+	 * @param splitKeys    lowest keys of every shard but the first, in strictly
+	 *                     increasing order
+	 * @throws IllegalArgumentException if maxShardKeys is less than 2 or the split
+	 *                                  keys are null or not in increasing order
+	 */
+	public ShardedBALST(int maxShardKeys, List<K> splitKeys) {
+		if (maxShardKeys < 2) {
+			throw new IllegalArgumentException("a shard must hold at least 2 keys, not " + maxShardKeys);
+		}
+		for (int i = 0; i < splitKeys.size(); i++) {
+			if (splitKeys.get(i) == null || (i > 0 && splitKeys.get(i - 1).compareTo(splitKeys.get(i)) >= 0)) {
+				throw new IllegalArgumentException("split keys must be non null and increasing: " + splitKeys);
+			}
+		}
+		this.maxShardKeys = maxShardKeys;
+		Shard<K, V>[] initial = newShardArray(splitKeys.size() + 1);
+		for (int i = 0; i < initial.length; i++) {
+			initial[i] = new Shard<K, V>(i == 0 ? null : splitKeys.get(i - 1),
+					i == splitKeys.size() ? null : splitKeys.get(i), new BALST<K, V>());
+		}
+		shards = initial;
+	}
+
+	/**
+	 * Returns the number of shards the keys are split into now
+	 *
+	 * @return number of shards
+	 */
+	public int shardCount() {
+		return shards.length;
+	}
+
+	@Override
+	public K getKeyAtRoot() {
+		return shape().getKeyAtRoot();
+	}
+
+	@Override
+	public K getKeyOfLeftChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkKey(key);
+		return shape().getKeyOfLeftChildOf(key);
+	}
+
+	@Override
+	public K getKeyOfRightChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkKey(key);
+		return shape().getKeyOfRightChildOf(key);
+	}
+
+	@Override
+	public int getHeight() {
+		return shape().getHeight();
+	}
+
+	@Override
+	public List<K> getInOrderTraversal() {
+		List<K> keys = new ArrayList<K>();
+		scan(null, null, keys, null);
+		return keys;
+	}
+
+	@Override
+	public List<K> getPreOrderTraversal() {
+		return shape().getPreOrderTraversal();
+	}
+
+	@Override
+	public List<K> getPostOrderTraversal() {
+		return shape().getPostOrderTraversal();
+	}
+
+	@Override
+	public List<K> getLevelOrderTraversal() {
+		return shape().getLevelOrderTraversal();
+	}
+
+	@Override
+	public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+		checkKey(key);
+		Shard<K, V> shard = lockShard(key, true);
+		try {
+			shard.tree.insert(key, value);
+			size.increment();
+			changed();
+			splitIfFull(shard);
+		} finally {
+			shard.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Stores the value under the key, replacing the value of the key if it is
+	 * already in the tree
+	 *
+	 * @param key   the key to store the value under
+	 * @param value the value to store
+	 * @return the value the key had before, or null if it was not in the tree
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public V put(K key, V value) throws IllegalNullKeyException {
+		checkKey(key);
+		Shard<K, V> shard = lockShard(key, true);
+		try {
+			int before = shard.tree.numKeys();
+			V old = shard.tree.put(key, value);
+			changed();
+			if (shard.tree.numKeys() != before) {
+				size.increment();
+				splitIfFull(shard);
+			}
+			return old;
+		} finally {
+			shard.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkKey(key);
+		Shard<K, V> shard = lockShard(key, true);
+		try {
+			shard.tree.remove(key);
+			size.decrement();
+			changed();
+			mergeIfSparse(shard);
+			return true;
+		} finally {
+			shard.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkKey(key);
+		Shard<K, V> shard = lockShard(key, false);
+		try {
+			return shard.tree.get(key);
+		} finally {
+			shard.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		Shard<K, V> shard = lockShard(key, false);
+		try {
+			return shard.tree.contains(key);
+		} finally {
+			shard.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int numKeys() {
+		return size.intValue();
+	}
+
+	@Override
+	public void print() {
+		shape().print();
+	}
+
+	/**
+	 * Returns the keys from fromKey, inclusive, up to toKey, exclusive, in sorted
+	 * order, visiting only the shards whose ranges overlap them
+	 *
+	 * @param fromKey lower bound of the range
+	 * @param toKey   upper bound of the range
+	 * @return list of the keys in sorted order
+	 * @throws IllegalNullKeyException  if either key is null
+	 * @throws IllegalArgumentException if fromKey is greater than toKey
+	 */
+	public List<K> getKeysInRange(K fromKey, K toKey) throws IllegalNullKeyException {
+		checkKey(fromKey);
+		checkKey(toKey);
+		if (fromKey.compareTo(toKey) > 0) {
+			throw new IllegalArgumentException("fromKey " + fromKey + " is greater than toKey " + toKey);
+		}
+		List<K> keys = new ArrayList<K>();
+		if (fromKey.compareTo(toKey) < 0) {
+			scan(fromKey, toKey, keys, null);
+		}
+		return keys;
+	}
+
+	/**
+	 * Builds the balanced tree of all the pairs, in O(n), reading each shard under
+	 * its read lock in turn. The tree is the caller's own, so it does not change
+	 * with this one and its answers agree with each other however this tree
+	 * changes.
+	 *
+	 * @return a new tree holding a copy of every pair
+	 */
+	public BALST<K, V> snapshot() {
+		List<K> keys = new ArrayList<K>();
+		List<V> values = new ArrayList<V>();
+		scan(null, null, keys, values);
+		try {
+			return BALST.fromSorted(keys.iterator(), values.iterator(), keys.size());
+		} catch (IllegalNullKeyException | DuplicateKeyException e) {
+			// the scan returns each key once, in order
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// helper methods
+	/**
+	 * collects the keys in a range shard by shard, routing again by key after each
+	 * shard so that a split made meanwhile neither drops nor repeats keys
+	 *
+	 * @param from   lowest key to collect, null to start at the first key
+	 * @param to     key to stop before, null to go to the last key
+	 * @param keys   gets the keys in sorted order
+	 * @param values gets the value of each key, null if the values are not needed
+	 */
+	private void scan(K from, K to, List<K> keys, List<V> values) {
+		while (true) {
+			Shard<K, V> shard = lockShard(from, false);
+			try {
+				Iterator<Map.Entry<K, V>> entries;
+				if (from == null) {
+					entries = to == null ? shard.tree.entryIterator() : shard.tree.headMap(to).entryIterator();
+				} else {
+					entries = to == null ? shard.tree.tailMap(from).entryIterator()
+							: shard.tree.subMap(from, to).entryIterator();
+				}
+				while (entries.hasNext()) {
+					Map.Entry<K, V> entry = entries.next();
+					keys.add(entry.getKey());
+					if (values != null) {
+						values.add(entry.getValue());
+					}
+				}
+			} catch (IllegalNullKeyException e) {
+				// the bounds were checked to be non null
+				throw new IllegalStateException(e);
+			} finally {
+				shard.lock.readLock().unlock();
+			}
+			if (shard.high == null || (to != null && shard.high.compareTo(to) >= 0)) {
+				return;
+			}
+			from = shard.high;
+		}
+	}
+
+	/**
+	 * locks the current shard of the key, routing again if the shard found is
+	 * split before it could be locked
+	 *
+	 * @param key   the key to route, null for the first shard
+	 * @param write true for the write lock, false for the read lock
+	 * @return the locked shard
+	 */
+	private Shard<K, V> lockShard(K key, boolean write) {
+		while (true) {
+			Shard<K, V>[] current = shards;
+			Shard<K, V> shard = current[key == null ? 0 : route(current, key)];
+			Lock lock = write ? shard.lock.writeLock() : shard.lock.readLock();
+			lock.lock();
+			if (!shard.retired) {
+				return shard;
+			}
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * finds the shard whose range holds the key by a binary search over the lowest
+	 * keys of the shards
+	 *
+	 * @param current the shards to search
+	 * @param key     the key to route
+	 * @return index of the last shard whose lowest key is at most the key
+	 */
+	private static <K extends Comparable<K>, V> int route(Shard<K, V>[] current, K key) {
+		int lo = 0;
+		int hi = current.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (current[mid].low.compareTo(key) <= 0) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * splits a shard holding more than maxShardKeys keys into two shards of half
+	 * as many, replacing it in the list of shards
+	 *
+	 * @param shard the shard just added to, write locked by the caller
+	 */
+	private void splitIfFull(Shard<K, V> shard) {
+		int count = shard.tree.numKeys();
+		if (count <= maxShardKeys) {
+			return;
+		}
+		List<K> keys = new ArrayList<K>(count);
+		List<V> values = new ArrayList<V>(count);
+		copyPairs(shard, keys, values);
+		int half = count / 2;
+		K middle = keys.get(half);
+		Shard<K, V> lower;
+		Shard<K, V> upper;
+		try {
+			lower = new Shard<K, V>(shard.low, middle,
+					BALST.fromSorted(keys.iterator(), values.iterator(), half));
+			upper = new Shard<K, V>(middle, shard.high, BALST.fromSorted(keys.subList(half, count).iterator(),
+					values.subList(half, count).iterator(), count - half));
+		} catch (IllegalNullKeyException | DuplicateKeyException e) {
+			// the keys come sorted out of a tree
+			throw new IllegalStateException(e);
+		}
+
+		synchronized (splitLock) {
+			Shard<K, V>[] current = shards;
+			int index = shard.low == null ? 0 : route(current, shard.low);
+			Shard<K, V>[] next = newShardArray(current.length + 1);
+			System.arraycopy(current, 0, next, 0, index);
+			next[index] = lower;
+			next[index + 1] = upper;
+			System.arraycopy(current, index + 1, next, index + 2, current.length - index - 1);
+			shard.retired = true;
+			shards = next;
+		}
+	}
+
+	/**
+	 * merges a shard left with fewer than a quarter of maxShardKeys keys with the
+	 * neighbour after it or else the one before it, if the two fit in one shard. A
+	 * neighbour locked by another thread is skipped rather than waited for, since
+	 * that thread may be waiting for this shard, and the merge is tried again on
+	 * a later remove.
+	 *
+	 * @param shard the shard just removed from, write locked by the caller
+	 */
+	private void mergeIfSparse(Shard<K, V> shard) {
+		int count = shard.tree.numKeys();
+		if (count >= maxShardKeys / 4) {
+			return;
+		}
+		Shard<K, V>[] current = shards;
+		int index = shard.low == null ? 0 : route(current, shard.low);
+		if (current[index] != shard) {
+			// the list is being replaced by another split or merge
+			return;
+		}
+		for (int side = index + 1; side >= index - 1; side -= 2) {
+			if (side < 0 || side >= current.length) {
+				continue;
+			}
+			Shard<K, V> neighbour = current[side];
+			Lock lock = neighbour.lock.writeLock();
+			if (!lock.tryLock()) {
+				continue;
+			}
+			try {
+				// a neighbour that is not retired still borders the shard, since ranges
+				// never change
+				if (!neighbour.retired && count + neighbour.tree.numKeys() <= maxShardKeys) {
+					merge(side > index ? shard : neighbour, side > index ? neighbour : shard);
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * replaces two neighbouring shards with one holding the keys of both
+	 *
+	 * @param lower the shard of the lower range, write locked by the caller
+	 * @param upper the shard of the upper range, write locked by the caller
+	 */
+	private void merge(Shard<K, V> lower, Shard<K, V> upper) {
+		int count = lower.tree.numKeys() + upper.tree.numKeys();
+		List<K> keys = new ArrayList<K>(count);
+		List<V> values = new ArrayList<V>(count);
+		copyPairs(lower, keys, values);
+		copyPairs(upper, keys, values);
+		Shard<K, V> merged;
+		try {
+			merged = new Shard<K, V>(lower.low, upper.high,
+					BALST.fromSorted(keys.iterator(), values.iterator(), count));
+		} catch (IllegalNullKeyException | DuplicateKeyException e) {
+			// the keys come sorted out of two trees of neighbouring ranges
+			throw new IllegalStateException(e);
+		}
+
+		synchronized (splitLock) {
+			Shard<K, V>[] current = shards;
+			int index = lower.low == null ? 0 : route(current, lower.low);
+			Shard<K, V>[] next = newShardArray(current.length - 1);
+			System.arraycopy(current, 0, next, 0, index);
+			next[index] = merged;
+			System.arraycopy(current, index + 2, next, index + 1, current.length - index - 2);
+			lower.retired = true;
+			upper.retired = true;
+			shards = next;
+		}
+	}
+
+	/**
+	 * adds the pairs of a shard to the lists, in sorted order
+	 *
+	 * @param shard  the shard to copy, locked by the caller
+	 * @param keys   gets the keys
+	 * @param values gets the value of each key
+	 */
+	private static <K extends Comparable<K>, V> void copyPairs(Shard<K, V> shard, List<K> keys, List<V> values) {
+		Iterator<Map.Entry<K, V>> entries = shard.tree.entryIterator();
+		while (entries.hasNext()) {
+			Map.Entry<K, V> entry = entries.next();
+			keys.add(entry.getKey());
+			values.add(entry.getValue());
+		}
+	}
+
+	/**
+	 * @return the tree the methods about the shape answer for, built again only
+	 *         if a key changed since it was last built
+	 */
+	private BALST<K, V> shape() {
+		BALST<K, V> tree = shape;
+		if (tree != null && !changed) {
+			return tree;
+		}
+		synchronized (shapeLock) {
+			if (shape == null || changed) {
+				// cleared before the copy, so a change the copy misses sets it again
+				changed = false;
+				shape = snapshot();
+			}
+			return shape;
+		}
+	}
+
+	/**
+	 * marks the shape out of date after a change to a shard, reading the flag
+	 * first so writers do not keep writing the same cache line
+	 */
+	private void changed() {
+		if (!changed) {
+			changed = true;
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <K extends Comparable<K>, V> Shard<K, V>[] newShardArray(int count) {
+		return (Shard<K, V>[]) new Shard[count];
+	}
+
+	/**
+	 * throws if the key is null
+	 *
+	 * @param key the key to check
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	private static void checkKey(Object key) throws IllegalNullKeyException {
+		if (key == null) {
+			throw new IllegalNullKeyException();
+		}
+	}
+}
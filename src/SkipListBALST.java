@@ -0,0 +1,301 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Ordered map with the operations of a BALST that many threads can change at
+ * once. The pairs live in a lock free ConcurrentSkipListMap, so inserts,
+ * removes and lookups never block each other, and changes to different keys
+ * only touch the nodes next to those keys instead of going through one lock.
+ * Every single key operation is linearizable: it takes effect at one instant
+ * between its call and its return.
+ *
+ * A skip list has no root or children, so the methods about the shape of the
+ * tree answer for the balanced tree BALST.fromSorted builds from the keys, the
+ * tree snapshot() returns. That tree is built in O(n) the first time a shape is
+ * asked for after a change and kept until the next change, so asking for
+ * several parts of the shape between changes costs O(log n) or less each and
+ * the answers agree with each other. Like numKeys and the traversals they are
+ * only exact while no other thread changes the map. A caller that needs
+ * answers that agree while other threads change the map takes one snapshot and
+ * asks it instead.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class SkipListBALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
+
+	private static final Object NULL = new Object(); // stands for a null value
+
+	private final ConcurrentSkipListMap<K, Object> map = new ConcurrentSkipListMap<K, Object>();
+	private final Object shapeLock = new Object(); // taken to rebuild the shape
+	private volatile BALST<K, V> shape; // tree the shape is answered for, null until asked for
+	private volatile boolean changed; // set by writers once the shape is out of date
+
+	/**
+	 * Constructor for the map
+	 */
+	public SkipListBALST() {
+	}
+
+	@Override
+	public K getKeyAtRoot() {
+		return shape().getKeyAtRoot();
+	}
+
+	@Override
+	public K getKeyOfLeftChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkKey(key);
+		return shape().getKeyOfLeftChildOf(key);
+	}
+
+	@Override
+	public K getKeyOfRightChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkKey(key);
+		return shape().getKeyOfRightChildOf(key);
+	}
+
+	@Override
+	public int getHeight() {
+		return shape().getHeight();
+	}
+
+	@Override
+	public List<K> getInOrderTraversal() {
+		return new ArrayList<K>(map.keySet());
+	}
+
+	@Override
+	public List<K> getPreOrderTraversal() {
+		return shape().getPreOrderTraversal();
+	}
+
+	@Override
+	public List<K> getPostOrderTraversal() {
+		return shape().getPostOrderTraversal();
+	}
+
+	@Override
+	public List<K> getLevelOrderTraversal() {
+		return shape().getLevelOrderTraversal();
+	}
+
+	@Override
+	public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+		checkKey(key);
+		if (map.putIfAbsent(key, wrap(value)) != null) {
+			throw new BALST.StacklessDuplicateKeyException();
+		}
+		changed();
+	}
+
+	/**
+	 * Stores the value under the key, replacing the value of the key if it is
+	 * already in the map
+	 *
+	 * @param key   the key to store the value under
+	 * @param value the value to store
+	 * @return the value the key had before, or null if it was not in the map
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public V put(K key, V value) throws IllegalNullKeyException {
+		checkKey(key);
+		V previous = unwrap(map.put(key, wrap(value)));
+		changed();
+		return previous;
+	}
+
+	/**
+	 * Stores the value under the key only if the key is not in the map yet
+	 *
+	 * @param key   the key to store the value under
+	 * @param value the value to store
+	 * @return the value the key already has, or null if the value was stored
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public V putIfAbsent(K key, V value) throws IllegalNullKeyException {
+		checkKey(key);
+		Object previous = map.putIfAbsent(key, wrap(value));
+		if (previous == null) {
+			changed();
+		}
+		return unwrap(previous);
+	}
+
+	@Override
+	public boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkKey(key);
+		if (map.remove(key) == null) {
+			throw new BALST.StacklessKeyNotFoundException();
+		}
+		changed();
+		return true;
+	}
+
+	@Override
+	public V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
+		checkKey(key);
+		Object value = map.get(key);
+		if (value == null) {
+			throw new BALST.StacklessKeyNotFoundException();
+		}
+		return unwrap(value);
+	}
+
+	@Override
+	public boolean contains(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return map.containsKey(key);
+	}
+
+	/**
+	 * Counts the keys, which takes O(n) since the skip list keeps no count
+	 */
+	@Override
+	public int numKeys() {
+		return map.size();
+	}
+
+	@Override
+	public void print() {
+		shape().print();
+	}
+
+	/**
+	 * @return the smallest key, or null if the map is empty
+	 */
+	public K firstKey() {
+		Map.Entry<K, Object> first = map.firstEntry();
+		return first == null ? null : first.getKey();
+	}
+
+	/**
+	 * @return the largest key, or null if the map is empty
+	 */
+	public K lastKey() {
+		Map.Entry<K, Object> last = map.lastEntry();
+		return last == null ? null : last.getKey();
+	}
+
+	/**
+	 * @param key the key to search for
+	 * @return the largest key less than or equal to the given key, or null
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K floorKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return map.floorKey(key);
+	}
+
+	/**
+	 * @param key the key to search for
+	 * @return the largest key strictly less than the given key, or null
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K lowerKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return map.lowerKey(key);
+	}
+
+	/**
+	 * @param key the key to search for
+	 * @return the smallest key greater than or equal to the given key, or null
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K ceilingKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return map.ceilingKey(key);
+	}
+
+	/**
+	 * @param key the key to search for
+	 * @return the smallest key strictly greater than the given key, or null
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	public K higherKey(K key) throws IllegalNullKeyException {
+		checkKey(key);
+		return map.higherKey(key);
+	}
+
+	/**
+	 * Builds the balanced tree of the pairs present now, in O(n). The tree is the
+	 * caller's own, so it does not change with the map and its answers agree with
+	 * each other however the map changes.
+	 *
+	 * @return a new tree holding a copy of every pair
+	 */
+	public BALST<K, V> snapshot() {
+		// the copy is taken first, since the map can change while it is read
+		List<K> keys = new ArrayList<K>();
+		List<V> values = new ArrayList<V>();
+		for (Map.Entry<K, Object> entry : map.entrySet()) {
+			keys.add(entry.getKey());
+			values.add(unwrap(entry.getValue()));
+		}
+		try {
+			return BALST.fromSorted(keys.iterator(), values.iterator(), keys.size());
+		} catch (IllegalNullKeyException | DuplicateKeyException e) {
+			// the skip list holds neither
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// helper methods
+	/**
+	 * @return the tree the methods about the shape answer for, built again only
+	 *         if the map changed since it was last built
+	 */
+	private BALST<K, V> shape() {
+		BALST<K, V> tree = shape;
+		if (tree != null && !changed) {
+			return tree;
+		}
+		synchronized (shapeLock) {
+			if (shape == null || changed) {
+				// cleared before the copy, so a change the copy misses sets it again
+				changed = false;
+				shape = snapshot();
+			}
+			return shape;
+		}
+	}
+
+	/**
+	 * marks the shape out of date after a change to the map, reading the flag
+	 * first so writers do not keep writing the same cache line
+	 */
+	private void changed() {
+		if (!changed) {
+			changed = true;
+		}
+	}
+
+	/**
+	 * @return the value to store for the given one, since the skip list does not
+	 *         take null values
+	 */
+	private static Object wrap(Object value) {
+		return value == null ? NULL : value;
+	}
+
+	/**
+	 * @return the value the stored one stands for, null for a missing or null value
+	 */
+	@SuppressWarnings("unchecked")
+	private V unwrap(Object stored) {
+		return stored == NULL ? null : (V) stored;
+	}
+
+	/**
+	 * throws if the key is null
+	 *
+	 * @param key the key to check
+	 * @throws IllegalNullKeyException if key is null
+	 */
+	private static void checkKey(Object key) throws IllegalNullKeyException {
+		if (key == null) {
+			throw new IllegalNullKeyException();
+		}
+	}
+}
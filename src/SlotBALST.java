@@ -0,0 +1,739 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * Red black balancing of a tree whose nodes are numbered slots instead of
+ * objects. The links between nodes are slot numbers, and the color and height of
+ * a node are packed into one int. This class never looks at the keys: subclasses
+ * walk down to where a key belongs with their own comparisons, on whatever kind
+ * of key they store, and then hand the slot to link or unlink, which do the
+ * rebalancing the same way BALST does. IndexedBALST builds the BALSTADT of
+ * Comparable keys on it, and ArraySlotBALST keeps the slots in arrays for the
+ * LongBALST and IntBALST trees of primitive keys.
+ *
+ * Slot 0 is never used, so 0 stands for a missing node. Removed slots are kept
+ * on a free list, linked through their left field, and handed out again before
+ * any new slot is used.
+ */
+abstract class SlotBALST {
+
+	/** slot number standing for a missing node */
+	static final int NIL = 0;
+
+	// the lowest bit of a node's meta is its color, the rest is its height
+	private static final int RED = 1;
+	private static final int HEIGHT_SHIFT = 1;
+
+	// package private so subclasses that save the tree can read and restore them
+	int root; // slot of the root, NIL if the tree is empty
+	int size; // number of keys in the tree
+	int freeHead; // first slot of the free list, NIL if it is empty
+	int nextSlot; // lowest slot that has never been handed out
+
+	/**
+	 * Constructor for an empty tree
+	 */
+	SlotBALST() {
+		root = NIL;
+		size = 0;
+		freeHead = NIL;
+		nextSlot = 1;
+	}
+
+	// storage of the slots, implemented by subclasses
+	/**
+	 * @param node slot of a node
+	 * @return slot of its left child, NIL if there is none
+	 */
+	abstract int left(int node);
+
+	/**
+	 * @param node slot of a node
+	 * @return slot of its right child, NIL if there is none
+	 */
+	abstract int right(int node);
+
+	/**
+	 * @param node slot of a node
+	 * @return slot of its parent, NIL if it is the root
+	 */
+	abstract int parent(int node);
+
+	/**
+	 * @param node slot of a node
+	 * @return the packed color and height of the node
+	 */
+	abstract int meta(int node);
+
+	// setters of the fields above, taking the slot and its new value
+	abstract void setLeft(int node, int child);
+
+	abstract void setRight(int node, int child);
+
+	abstract void setParent(int node, int parent);
+
+	abstract void setMeta(int node, int meta);
+
+	/**
+	 * copies the key, value pair of one slot into another
+	 *
+	 * @param from slot to copy from
+	 * @param to   slot to copy into
+	 */
+	abstract void copyEntry(int from, int to);
+
+	/**
+	 * drops the key, value pair of a slot that is being freed
+	 *
+	 * @param node the slot being freed
+	 */
+	abstract void clearEntry(int node);
+
+	/**
+	 * makes room for at least the given number of slots, counting slot 0
+	 *
+	 * @param slots number of slots needed
+	 */
+	abstract void ensureCapacity(int slots);
+
+	/**
+	 * compares the keys stored in two slots, used to check the order of the tree
+	 *
+	 * @param a slot of the first key
+	 * @param b slot of the second key
+	 * @return negative, zero or positive as the first key is less than, equal to
+	 *         or greater than the second
+	 */
+	abstract int compareSlots(int a, int b);
+
+	/**
+	 * @param node slot of a node
+	 * @return the key stored in the slot as text, for messages and print
+	 */
+	abstract String keyString(int node);
+
+	// helper methods
+	/**
+	 * @param node slot of a node, may be NIL
+	 * @return true if the node exists and is red
+	 */
+	final boolean isRed(int node) {
+		return node != NIL && (meta(node) & RED) != 0;
+	}
+
+	private void setRed(int node, boolean red) {
+		int meta = meta(node);
+		setMeta(node, red ? meta | RED : meta & ~RED);
+	}
+
+	/**
+	 * @param node slot of a node, may be NIL
+	 * @return height of the subtree rooted at the node, 0 if there is no node
+	 */
+	final int height(int node) {
+		return node == NIL ? 0 : meta(node) >>> HEIGHT_SHIFT;
+	}
+
+	/**
+	 * recomputes the height of a node from the heights of its children, keeping
+	 * its color
+	 *
+	 * @param node slot of the node
+	 */
+	private void update(int node) {
+		int height = Math.max(height(left(node)), height(right(node))) + 1;
+		setMeta(node, (height << HEIGHT_SHIFT) | (meta(node) & RED));
+	}
+
+	/**
+	 * takes a slot off the free list, or a new one if the list is empty, and makes
+	 * it a red leaf that is not linked into the tree yet. The caller stores the
+	 * entry in it and then links it, or frees it if the entry cannot be stored.
+	 *
+	 * @return slot of the new node
+	 * @throws IllegalStateException if every slot is in use
+	 */
+	final int allocate() {
+		int node;
+		if (freeHead != NIL) {
+			node = freeHead;
+			freeHead = left(node);
+		} else {
+			if (nextSlot == Integer.MAX_VALUE) {
+				throw new IllegalStateException("tree is full");
+			}
+			ensureCapacity(nextSlot + 1);
+			node = nextSlot++;
+		}
+		setLeft(node, NIL);
+		setRight(node, NIL);
+		setParent(node, NIL);
+		setMeta(node, (1 << HEIGHT_SHIFT) | RED);
+		return node;
+	}
+
+	/**
+	 * puts a slot that is not in the tree on the free list
+	 *
+	 * @param node slot of the removed node
+	 */
+	final void free(int node) {
+		clearEntry(node);
+		setParent(node, NIL);
+		setRight(node, NIL);
+		setMeta(node, 0);
+		setLeft(node, freeHead);
+		freeHead = node;
+	}
+
+	/**
+	 * links a node made by allocate below the parent a descent ended at, or as the
+	 * root of an empty tree, and restores the red black properties
+	 *
+	 * @param node   slot of the new node
+	 * @param parent slot of the last node the descent visited, NIL if the tree is
+	 *               empty
+	 * @param cmp    the last comparison of the descent, negative to link the node
+	 *               as the left child
+	 */
+	final void link(int node, int parent, int cmp) {
+		size++;
+		if (parent == NIL) {
+			root = node;
+			setRed(root, false);
+			return;
+		}
+
+		// links the new node to the parent on the side the last comparison chose
+		setParent(node, parent);
+		if (cmp < 0) {
+			setLeft(parent, node);
+		} else {
+			setRight(parent, node);
+		}
+
+		redPropViolation(node);
+
+		// rotated nodes already have their new heights, so only the path back up
+		// from the new node can still be out of date
+		updatePath(parent);
+	}
+
+	/**
+	 * removes the node from the tree, restores the red black properties and frees
+	 * the slot it leaves behind
+	 *
+	 * @param node slot of the node to remove
+	 */
+	final void unlink(int node) {
+		size--;
+		removeHelp(node);
+	}
+
+	/**
+	 * rotates the subtree rooted at the given node to the left, so its right child
+	 * takes its place
+	 *
+	 * @param curr the root of the subtree to rotate
+	 */
+	private void rotateLeft(int curr) {
+		int right = right(curr);
+		int inner = left(right);
+
+		setRight(curr, inner);
+		if (inner != NIL) {
+			setParent(inner, curr);
+		}
+		replaceChild(curr, right);
+		setLeft(right, curr);
+		setParent(curr, right);
+
+		// curr is now below right, so it is updated first
+		update(curr);
+		update(right);
+	}
+
+	/**
+	 * rotates the subtree rooted at the given node to the right, so its left child
+	 * takes its place
+	 *
+	 * @param curr the root of the subtree to rotate
+	 */
+	private void rotateRight(int curr) {
+		int left = left(curr);
+		int inner = right(left);
+
+		setLeft(curr, inner);
+		if (inner != NIL) {
+			setParent(inner, curr);
+		}
+		replaceChild(curr, left);
+		setRight(left, curr);
+		setParent(curr, left);
+
+		// curr is now below left, so it is updated first
+		update(curr);
+		update(left);
+	}
+
+	/**
+	 * puts the replacement node where the old node hangs from its parent, updating
+	 * the root if the old node was the root
+	 *
+	 * @param old         the node being replaced
+	 * @param replacement the node taking its place, may be NIL
+	 */
+	private void replaceChild(int old, int replacement) {
+		int par = parent(old);
+		if (replacement != NIL) {
+			setParent(replacement, par);
+		}
+
+		if (par == NIL) {
+			root = replacement;
+		} else if (left(par) == old) {
+			setLeft(par, replacement);
+		} else {
+			setRight(par, replacement);
+		}
+	}
+
+	/**
+	 * recomputes the heights of the given node and every node above it
+	 *
+	 * @param curr the lowest node that may be out of date, may be NIL
+	 */
+	private void updatePath(int curr) {
+		while (curr != NIL) {
+			update(curr);
+			curr = parent(curr);
+		}
+	}
+
+	/**
+	 * Walks up from the given node fixing red parent red child violations, with at
+	 * most two rotations
+	 *
+	 * @param curr the node that may be in violation
+	 */
+	private void redPropViolation(int curr) {
+
+		while (isRed(parent(curr))) {
+
+			int par = parent(curr);
+			int gp = parent(par);
+
+			if (par == left(gp)) {
+				int uncle = right(gp);
+				if (isRed(uncle)) {
+					// red uncle, recolor and continue from the grandparent
+					setRed(par, false);
+					setRed(uncle, false);
+					setRed(gp, true);
+					curr = gp;
+				} else {
+					// left-right case is turned into the left-left case first
+					if (curr == right(par)) {
+						rotateLeft(par);
+						curr = par;
+						par = parent(curr);
+					}
+					setRed(par, false);
+					setRed(gp, true);
+					rotateRight(gp);
+				}
+			} else {
+				int uncle = left(gp);
+				if (isRed(uncle)) {
+					// red uncle, recolor and continue from the grandparent
+					setRed(par, false);
+					setRed(uncle, false);
+					setRed(gp, true);
+					curr = gp;
+				} else {
+					// right-left case is turned into the right-right case first
+					if (curr == left(par)) {
+						rotateRight(par);
+						curr = par;
+						par = parent(curr);
+					}
+					setRed(par, false);
+					setRed(gp, true);
+					rotateLeft(gp);
+				}
+			}
+		}
+
+		// the root is always black
+		setRed(root, false);
+	}
+
+	/**
+	 * removes the given node from the tree and restores the red black properties,
+	 * the same way BALST does, then frees its slot
+	 *
+	 * @param curr the node to be removed
+	 */
+	private void removeHelp(int curr) {
+
+		// a node with two children takes the contents of its in order predecessor,
+		// which is removed in its place
+		if (left(curr) != NIL && right(curr) != NIL) {
+			int pred = left(curr);
+			while (right(pred) != NIL) {
+				pred = right(pred);
+			}
+			copyEntry(pred, curr);
+			curr = pred;
+		}
+
+		int child = left(curr) != NIL ? left(curr) : right(curr);
+		int changed;// the lowest node whose subtree lost a level, if any
+
+		if (child != NIL) {
+			replaceChild(curr, child);
+			if (!isRed(curr)) {
+				blackViolation(child);
+			}
+			changed = parent(child);
+		} else if (parent(curr) == NIL) {
+			root = NIL;
+			changed = NIL;
+		} else {
+			// a black leaf is fixed while it is still linked and unlinked afterwards
+			if (!isRed(curr)) {
+				blackViolation(curr);
+			}
+			changed = parent(curr);
+			replaceChild(curr, NIL);
+		}
+		updatePath(changed);
+
+		free(curr);
+	}
+
+	/**
+	 * Walks up from the given node fixing the missing black node left on its path by
+	 * a removal
+	 *
+	 * @param curr the node whose path is one black node short
+	 */
+	private void blackViolation(int curr) {
+
+		while (curr != root && !isRed(curr)) {
+
+			int par = parent(curr);
+
+			if (curr == left(par)) {
+				int sib = right(par);
+
+				// a red sibling is rotated up so the sibling becomes black
+				if (isRed(sib)) {
+					setRed(sib, false);
+					setRed(par, true);
+					rotateLeft(par);
+					sib = right(par);
+				}
+
+				if (!isRed(left(sib)) && !isRed(right(sib))) {
+					setRed(sib, true);
+					curr = par;
+				} else {
+					if (!isRed(right(sib))) {
+						setRed(left(sib), false);
+						setRed(sib, true);
+						rotateRight(sib);
+						sib = right(par);
+					}
+					setRed(sib, isRed(par));
+					setRed(par, false);
+					setRed(right(sib), false);
+					rotateLeft(par);
+					curr = root;
+				}
+			} else {
+				int sib = left(par);
+
+				// a red sibling is rotated up so the sibling becomes black
+				if (isRed(sib)) {
+					setRed(sib, false);
+					setRed(par, true);
+					rotateRight(par);
+					sib = left(par);
+				}
+
+				if (!isRed(left(sib)) && !isRed(right(sib))) {
+					setRed(sib, true);
+					curr = par;
+				} else {
+					if (!isRed(left(sib))) {
+						setRed(right(sib), false);
+						setRed(sib, true);
+						rotateLeft(sib);
+						sib = left(par);
+					}
+					setRed(sib, isRed(par));
+					setRed(par, false);
+					setRed(left(sib), false);
+					rotateRight(par);
+					curr = root;
+				}
+			}
+		}
+
+		setRed(curr, false);
+	}
+
+	// traversals over the slots
+	/**
+	 * Passes every slot to the action in sorted order of the keys (L V R). The
+	 * path is kept in an int array as deep as the tree, so nothing is boxed.
+	 *
+	 * @param action called once per slot
+	 */
+	final void forEachSlotInOrder(IntConsumer action) {
+		int[] stack = new int[height(root)];
+		int top = 0;
+		int node = root;
+
+		while (node != NIL || top > 0) {
+
+			// first goes down the left subtree
+			while (node != NIL) {
+				stack[top++] = node;
+				node = left(node);
+			}
+
+			node = stack[--top];
+			action.accept(node);
+
+			// then moves on to the right subtree
+			node = right(node);
+		}
+	}
+
+	/**
+	 * Passes every slot to the action in pre-order (V L R)
+	 *
+	 * @param action called once per slot
+	 */
+	final void forEachSlotPreOrder(IntConsumer action) {
+		int[] stack = new int[height(root)];
+		int top = 0;
+		int node = root;
+
+		while (node != NIL || top > 0) {
+
+			// visits each node on the way down its left side
+			while (node != NIL) {
+				action.accept(node);
+				stack[top++] = node;
+				node = left(node);
+			}
+
+			node = right(stack[--top]);
+		}
+	}
+
+	/**
+	 * Passes every slot to the action in post-order (L R V)
+	 *
+	 * @param action called once per slot
+	 */
+	final void forEachSlotPostOrder(IntConsumer action) {
+		int[] stack = new int[height(root)];
+		int top = 0;
+		int node = root;
+		int last = NIL; // the node visited last
+
+		while (node != NIL || top > 0) {
+			while (node != NIL) {
+				stack[top++] = node;
+				node = left(node);
+			}
+
+			// a node is visited once its right subtree is done or missing
+			int peek = stack[top - 1];
+			int right = right(peek);
+			if (right != NIL && right != last) {
+				node = right;
+			} else {
+				action.accept(peek);
+				last = peek;
+				top--;
+			}
+		}
+	}
+
+	/**
+	 * visits the slots level by level with an int queue, recording where each
+	 * level ends when asked to
+	 *
+	 * @param action    called once per slot
+	 * @param levelEnds filled with the number of slots visited after each level,
+	 *                  may be null
+	 */
+	final void forEachSlotLevelOrder(IntConsumer action, int[] levelEnds) {
+		if (root == NIL) {
+			return;
+		}
+		int[] queue = new int[size];
+		int head = 0;
+		int tail = 0;
+		int level = 0;
+		queue[tail++] = root;
+
+		while (head < tail) {
+			// visits every node of the current level and queues the level below
+			for (int end = tail; head < end; head++) {
+				int node = queue[head];
+				action.accept(node);
+				if (left(node) != NIL) {
+					queue[tail++] = left(node);
+				}
+				if (right(node) != NIL) {
+					queue[tail++] = right(node);
+				}
+			}
+			if (levelEnds != null) {
+				levelEnds[level++] = head;
+			}
+		}
+	}
+
+	/**
+	 * prints the keys of each level of the tree on its own line
+	 *
+	 * @param format turns a slot into the text printed for its key
+	 */
+	final void printLevels(IntFunction<String> format) {
+		int[] slots = new int[size];
+		int[] count = new int[1];
+		int[] levelEnds = new int[height(root)];
+		forEachSlotLevelOrder(node -> slots[count[0]++] = node, levelEnds);
+
+		StringBuilder out = new StringBuilder();
+		int start = 0;
+		for (int end : levelEnds) {
+			for (int i = start; i < end; i++) {
+				out.append(format.apply(slots[i])).append(' ');
+			}
+			out.append(System.lineSeparator());
+			start = end;
+		}
+		System.out.print(out);
+	}
+
+	/**
+	 * Checks the red black and binary search tree properties of the whole tree in
+	 * O(n), like BALST.verifyInvariants, and that every slot ever handed out is
+	 * either in the tree or on the free list. Only called after each change when
+	 * assertions are enabled, and by the tests.
+	 *
+	 * @return true, so it can be used in an assert statement
+	 * @throws IllegalStateException describing the first property found broken
+	 */
+	boolean verifyInvariants() {
+		int free = 0;
+		for (int node = freeHead; node != NIL; node = left(node)) {
+			if (++free > nextSlot) {
+				throw new IllegalStateException("free list has a cycle");
+			}
+		}
+		if (size + free != nextSlot - 1) {
+			throw new IllegalStateException(
+					size + " keys and " + free + " free slots but " + (nextSlot - 1) + " slots handed out");
+		}
+		if (root == NIL) {
+			if (size != 0) {
+				throw new IllegalStateException("empty tree has size " + size);
+			}
+			return true;
+		}
+		if (isRed(root) || parent(root) != NIL) {
+			throw new IllegalStateException("root " + keyString(root) + " is red or has a parent");
+		}
+
+		// walks the tree in order with a stack, carrying the black count of each path
+		Deque<Integer> nodes = new ArrayDeque<>();
+		Deque<Integer> blacks = new ArrayDeque<>();
+		int node = root;
+		int black = 0;
+		int pathBlacks = -1;
+		int count = 0;
+		int previous = NIL;
+
+		while (node != NIL || !nodes.isEmpty()) {
+			while (node != NIL) {
+				black += isRed(node) ? 0 : 1;
+				checkNode(node);
+				nodes.push(node);
+				blacks.push(black);
+				if (left(node) == NIL) {
+					pathBlacks = checkPathBlacks(node, black, pathBlacks);
+				}
+				node = left(node);
+			}
+
+			node = nodes.pop();
+			black = blacks.pop();
+			if (++count > size) {
+				throw new IllegalStateException("more nodes reachable than the size " + size);
+			}
+			if (previous != NIL && compareSlots(previous, node) >= 0) {
+				throw new IllegalStateException("key " + keyString(node) + " comes after " + keyString(previous));
+			}
+			previous = node;
+
+			if (right(node) == NIL) {
+				pathBlacks = checkPathBlacks(node, black, pathBlacks);
+			}
+			node = right(node);
+		}
+
+		if (count != size) {
+			throw new IllegalStateException(count + " nodes reachable but size is " + size);
+		}
+		return true;
+	}
+
+	/**
+	 * checks the links, colors and height between a node and its children
+	 *
+	 * @param node the node to check
+	 */
+	private void checkNode(int node) {
+		int left = left(node);
+		int right = right(node);
+		if ((left != NIL && parent(left) != node) || (right != NIL && parent(right) != node)) {
+			throw new IllegalStateException("a child of " + keyString(node) + " does not point back to it");
+		}
+		if (isRed(node) && (isRed(left) || isRed(right))) {
+			throw new IllegalStateException("red node " + keyString(node) + " has a red child");
+		}
+		int height = Math.max(height(left), height(right)) + 1;
+		if (height(node) != height) {
+			throw new IllegalStateException(
+					"node " + keyString(node) + " has height " + height(node) + " instead of " + height);
+		}
+	}
+
+	/**
+	 * checks that a path ending below the given node has as many black nodes as the
+	 * paths seen before it
+	 *
+	 * @param node       the last node of the path
+	 * @param black      the number of black nodes on the path
+	 * @param pathBlacks the number of black nodes on earlier paths, -1 if none yet
+	 * @return the number of black nodes every path has
+	 */
+	private int checkPathBlacks(int node, int black, int pathBlacks) {
+		if (pathBlacks != -1 && pathBlacks != black) {
+			throw new IllegalStateException(
+					"path below " + keyString(node) + " has " + black + " black nodes instead of " + pathBlacks);
+		}
+		return black;
+	}
+}